@@ -0,0 +1,140 @@
+/**
+ * Copyright (C) 2011 innoQ Deutschland GmbH
+ *
+ * The contents of this file are subject to the OpenMRS Public License
+ * Version 1.0 (the "License"); you may not use this file except in
+ * compliance with the License. You may obtain a copy of the License at
+ * http://license.openmrs.org
+ *
+ * Software distributed under the License is distributed on an "AS IS"
+ * basis, WITHOUT WARRANTY OF ANY KIND, either express or implied. See the
+ * License for the specific language governing rights and limitations
+ * under the License.
+ *
+ * @author Arnd Kleinbeck, innoQ Deutschland GmbH, http://www.innoq.com
+ */
+package org.openmrs.module.soundex;
+
+import java.io.BufferedReader;
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.IOException;
+import java.io.InputStreamReader;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.List;
+import java.util.Random;
+
+/**
+ * Benchmark input seeded from doc/most-popular-names.txt. Every name is repeated according to its
+ * frequency and the resulting lists are shuffled with a fixed seed, so that all benchmark runs see the
+ * same realistic distribution of Malawian names.
+ */
+public class NameCorpus {
+
+  /** system property for the location of the name statistics. */
+  public static final String NAMES_FILE_PROPERTY = "soundex.bench.names";
+
+  /** default location of the name statistics, relative to the project directory. */
+  public static final String NAMES_FILE_DEFAULT = "doc/most-popular-names.txt";
+
+  private final String[] familyNames;
+  private final String[] givenNames;
+  private final String[] searchNames;
+  private final String[] searchQueries;
+
+  /**
+   * Load the corpus from the file given by system property {@link #NAMES_FILE_PROPERTY}.
+   * @return the corpus
+   * @throws IOException if the file cannot be read
+   */
+  public static NameCorpus load() throws IOException {
+    return new NameCorpus(new File(System.getProperty(NAMES_FILE_PROPERTY, NAMES_FILE_DEFAULT)));
+  }
+
+  /**
+   * Constructor.
+   * @param file the name statistics, tab separated name and count per line
+   * @throws IOException if the file cannot be read
+   */
+  public NameCorpus(File file) throws IOException {
+    List<String> family = new ArrayList<String>();
+    List<String> given = new ArrayList<String>();
+
+    BufferedReader reader = new BufferedReader(new InputStreamReader(new FileInputStream(file), "UTF-8"));
+    try {
+      List<String> current = null;
+      String line;
+      while ((line = reader.readLine()) != null) {
+        if (line.startsWith("most popular family names")) {
+          current = family;
+        } else if (line.startsWith("most popular given names")) {
+          current = given;
+        } else if (current != null) {
+          String[] columns = line.trim().split("\t");
+          if (columns.length == 2 && columns[1].matches("\\d+")) {
+            for (int i = Integer.parseInt(columns[1]); i > 0; i--) {
+              current.add(columns[0]);
+            }
+          }
+        }
+      }
+    } finally {
+      reader.close();
+    }
+
+    if (family.isEmpty() || given.isEmpty()) {
+      throw new IOException("no name statistics found in " + file);
+    }
+
+    Random random = new Random(42);
+    Collections.shuffle(family, random);
+    Collections.shuffle(given, random);
+
+    familyNames = family.toArray(new String[family.size()]);
+    givenNames = given.toArray(new String[given.size()]);
+
+    // search strings as typed at the registration desks, with all forms of activator codes
+    String[] activators = {"soundex:%s", "s:%s", "%s:soundex", "%s :s", "%s:s"};
+    searchNames = new String[Math.max(familyNames.length, givenNames.length)];
+    searchQueries = new String[searchNames.length];
+    for (int i = 0; i < searchQueries.length; i++) {
+      searchNames[i] = i % 3 == 0
+              ? givenNames[i % givenNames.length] + " " + familyNames[i % familyNames.length]
+              : (i % 3 == 1 ? familyNames[i % familyNames.length] : givenNames[i % givenNames.length]);
+      searchQueries[i] = String.format(activators[random.nextInt(activators.length)], searchNames[i]);
+    }
+  }
+
+  /**
+   * Family names weighted by frequency.
+   * @return family names
+   */
+  public String[] getFamilyNames() {
+    return familyNames;
+  }
+
+  /**
+   * Given names weighted by frequency.
+   * @return given names
+   */
+  public String[] getGivenNames() {
+    return givenNames;
+  }
+
+  /**
+   * Soundex search strings without activator codes, in the order of {@link #getSearchQueries()}.
+   * @return search strings
+   */
+  public String[] getSearchNames() {
+    return searchNames;
+  }
+
+  /**
+   * Soundex search strings including activator codes, a third of them with given and family name.
+   * @return search strings
+   */
+  public String[] getSearchQueries() {
+    return searchQueries;
+  }
+}
@@ -0,0 +1,109 @@
+/**
+ * Copyright (C) 2011 innoQ Deutschland GmbH
+ *
+ * The contents of this file are subject to the OpenMRS Public License
+ * Version 1.0 (the "License"); you may not use this file except in
+ * compliance with the License. You may obtain a copy of the License at
+ * http://license.openmrs.org
+ *
+ * Software distributed under the License is distributed on an "AS IS"
+ * basis, WITHOUT WARRANTY OF ANY KIND, either express or implied. See the
+ * License for the specific language governing rights and limitations
+ * under the License.
+ *
+ * @author Arnd Kleinbeck, innoQ Deutschland GmbH, http://www.innoq.com
+ */
+package org.openmrs.module.soundex.advisor;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openmrs.api.context.Context;
+import org.openmrs.module.soundex.NameCorpus;
+import org.openmrs.module.soundex.SoundexRuntimePropertyAccess;
+
+import java.io.IOException;
+import java.util.Properties;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Benchmarks for the query construction of PatientServiceAroundAdvisor. No database is involved,
+ * the runtime properties are provided without an OpenMRS context.
+ */
+@State(Scope.Thread)
+@BenchmarkMode({Mode.Throughput, Mode.AverageTime})
+@OutputTimeUnit(TimeUnit.MICROSECONDS)
+public class PatientServiceAroundAdvisorBenchmark {
+
+  private PatientServiceAroundAdvisor advisor;
+  private PatientServiceAroundAdvisor.SoundexSearchAdvice advice;
+  private String[] familyNames;
+  private String[] givenNames;
+  private String[] searchQueries;
+  private int next;
+
+  @Setup
+  public void setUp() throws IOException {
+    Properties properties = new Properties();
+    properties.setProperty(SoundexRuntimePropertyAccess.DEFAULT_SQL_LIMIT_TAG, SoundexRuntimePropertyAccess.DEFAULT_SQL_LIMIT_VALUE);
+    properties.setProperty(SoundexRuntimePropertyAccess.DEFAULT_RESULT_LIMIT_TAG, SoundexRuntimePropertyAccess.DEFAULT_RESULT_LIMIT_VALUE);
+    properties.setProperty(SoundexRuntimePropertyAccess.SOUNDEX_ACTIVATOR_CODE_ALIAS_TAG, "~");
+    Context.setRuntimeProperties(properties);
+
+    NameCorpus corpus = NameCorpus.load();
+    familyNames = corpus.getFamilyNames();
+    givenNames = corpus.getGivenNames();
+    searchQueries = corpus.getSearchQueries();
+
+    advisor = new PatientServiceAroundAdvisor();
+    advice = (PatientServiceAroundAdvisor.SoundexSearchAdvice) advisor.getAdvice();
+  }
+
+  private int next(int length) {
+    next = next + 1 >= length ? 0 : next + 1;
+    return next;
+  }
+
+  @Benchmark
+  public SoundexQuery buildSoundexGivenNameQuery() {
+    return advisor.buildSoundexGivenNameQuery(givenNames[next(givenNames.length)]);
+  }
+
+  @Benchmark
+  public SoundexQuery buildSoundexFamilyNameQuery() {
+    return advisor.buildSoundexFamilyNameQuery(familyNames[next(familyNames.length)]);
+  }
+
+  @Benchmark
+  public SoundexQuery buildSoundexSingleNameQuery() {
+    return advisor.buildSoundexSingleNameQuery(familyNames[next(familyNames.length)]);
+  }
+
+  @Benchmark
+  public SoundexQuery buildSoundexGivenAndFamilyNameQuery() {
+    int i = next(Math.min(givenNames.length, familyNames.length));
+    return advisor.buildSoundexGivenAndFamilyNameQuery(givenNames[i], familyNames[i]);
+  }
+
+  @Benchmark
+  public String getEffectiveSoundexQuery() {
+    return advice.getEffectiveSoundexQuery(searchQueries[next(searchQueries.length)]);
+  }
+
+  /**
+   * Conventional searches pass through the same activator detection and should be as cheap as possible.
+   */
+  @Benchmark
+  public String getEffectiveSoundexQueryConventional() {
+    return advice.getEffectiveSoundexQuery(familyNames[next(familyNames.length)]);
+  }
+
+  @Benchmark
+  public String[] splitNames() {
+    return PatientServiceAroundAdvisor.splitNames(searchQueries[next(searchQueries.length)]);
+  }
+}
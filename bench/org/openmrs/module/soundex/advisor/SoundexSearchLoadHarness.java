@@ -0,0 +1,327 @@
+/**
+ * Copyright (C) 2011 innoQ Deutschland GmbH
+ *
+ * The contents of this file are subject to the OpenMRS Public License
+ * Version 1.0 (the "License"); you may not use this file except in
+ * compliance with the License. You may obtain a copy of the License at
+ * http://license.openmrs.org
+ *
+ * Software distributed under the License is distributed on an "AS IS"
+ * basis, WITHOUT WARRANTY OF ANY KIND, either express or implied. See the
+ * License for the specific language governing rights and limitations
+ * under the License.
+ *
+ * @author Arnd Kleinbeck, innoQ Deutschland GmbH, http://www.innoq.com
+ */
+package org.openmrs.module.soundex.advisor;
+
+import org.aopalliance.intercept.MethodInvocation;
+import org.hibernate.SessionFactory;
+import org.hibernate.cfg.Environment;
+import org.hibernate.dialect.MySQLInnoDBDialect;
+import org.hibernate.stat.Statistics;
+import org.junit.Test;
+import org.openmrs.api.PatientService;
+import org.openmrs.api.context.Context;
+import org.openmrs.module.soundex.NameCorpus;
+import org.openmrs.module.soundex.SoundexActivator;
+import org.openmrs.module.soundex.SoundexContext;
+import org.openmrs.module.soundex.metrics.LatencyHistogram;
+import org.openmrs.module.soundex.metrics.SearchMetrics;
+import org.openmrs.module.soundex.metrics.SearchType;
+import org.openmrs.test.BaseContextSensitiveTest;
+import org.openmrs.test.TestUtil;
+
+import java.lang.reflect.AccessibleObject;
+import java.lang.reflect.Method;
+import java.util.Arrays;
+import java.util.List;
+import java.util.Properties;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Load harness for soundex searches, run with "ant load-test". It passes soundex queries of the form "s:name" to
+ * SoundexSearchAdvice.invoke from concurrent threads, like registration desks searching at the same time. Each
+ * search runs on a session of its own, like a request of the web application. At the end it reports the
+ * throughput, latency percentiles, waits for pooled connections, both the connection of the session and the
+ * read-only connections of concurrent queries, and the database statements per search.
+ * <p>
+ * Like SoundexEncoderDBTest it requires a local MySQL database with the OpenMRS schema, patients and
+ * person_name_code updated to sqldiff 1.0.4. The in-memory HSQLDB database of the OpenMRS tests lacks the code
+ * length and prefix columns the soundex statements match on, and the triggers of 1.0.4 that maintain them are
+ * MySQL triggers, which HSQLDB, whose triggers are Java classes, cannot create.
+ * Search strings are taken from doc/most-popular-names.txt in proportion to the frequency of the names
+ * (see NameCorpus). Runtime properties of the module are taken from system properties, e.g.
+ * -Dsoundex.search.index.enabled=true. The harness itself is set up with the system properties
+ * <ul>
+ *   <li>soundex.load.threads, the number of searching threads, default 50</li>
+ *   <li>soundex.load.searches, the number of searches per thread, default 200</li>
+ *   <li>soundex.load.url, soundex.load.user and soundex.load.password, the database connection</li>
+ * </ul>
+ */
+public class SoundexSearchLoadHarness extends BaseContextSensitiveTest {
+
+  private static final String THREADS_PROPERTY = "soundex.load.threads";
+  private static final String SEARCHES_PROPERTY = "soundex.load.searches";
+  private static final String URL_PROPERTY = "soundex.load.url";
+  private static final String USER_PROPERTY = "soundex.load.user";
+  private static final String PASSWORD_PROPERTY = "soundex.load.password";
+
+  /** connections taking longer to get are counted as waits for the pool. */
+  private static final long POOL_WAIT_NANOS = TimeUnit.MILLISECONDS.toNanos(1);
+
+  /**
+   * Use the local MySQL database.
+   * @return false
+   */
+  @Override
+  public Boolean useInMemoryDatabase() {
+    return false;
+  }
+
+  /**
+   * Connection properties of the local MySQL database, see SoundexEncoderDBTest.
+   * @return the runtime properties
+   */
+  @Override
+  public Properties getRuntimeProperties() {
+    if (runtimeProperties == null) {
+      runtimeProperties = TestUtil.getRuntimeProperties(getWebappName());
+      final String user = System.getProperty(USER_PROPERTY, "openmrs");
+      final String password = System.getProperty(PASSWORD_PROPERTY, "openmrs");
+      runtimeProperties.setProperty(Environment.DIALECT, MySQLInnoDBDialect.class.getName());
+      runtimeProperties.setProperty(Environment.URL, System.getProperty(URL_PROPERTY,
+              "jdbc:mysql://localhost/openmrs?autoReconnect=true&useUnicode=true&characterEncoding=utf8"));
+      runtimeProperties.setProperty(Environment.DRIVER, "com.mysql.jdbc.Driver");
+      runtimeProperties.setProperty(Environment.USER, user);
+      runtimeProperties.setProperty(Environment.PASS, password);
+      runtimeProperties.setProperty("connection.username", user);
+      runtimeProperties.setProperty("connection.password", password);
+      runtimeProperties.setProperty("junit.username", "admin");
+      runtimeProperties.setProperty("junit.password", "test");
+    }
+    return runtimeProperties;
+  }
+
+  /**
+   * Start the module, wait until it is ready and run the searches.
+   * @throws Exception in case of errors
+   */
+  @Test
+  public void runLoad() throws Exception {
+    final Properties properties = new Properties();
+    properties.putAll(Context.getRuntimeProperties());
+    for (String name : System.getProperties().stringPropertyNames()) {
+      if (name.startsWith("soundex.") && !name.startsWith("soundex.load.") && !name.startsWith("soundex.bench.")) {
+        properties.setProperty(name, System.getProperty(name));
+      }
+    }
+    Context.setRuntimeProperties(properties);
+
+    final int threads = Integer.getInteger(THREADS_PROPERTY, 50);
+    final int searches = Integer.getInteger(SEARCHES_PROPERTY, 200);
+    final String[] names = NameCorpus.load().getSearchNames();
+    final SessionFactory sessionFactory = Context.getRegisteredComponents(SessionFactory.class).get(0);
+    final PatientServiceAroundAdvisor.SoundexSearchAdvice advice =
+            (PatientServiceAroundAdvisor.SoundexSearchAdvice) new PatientServiceAroundAdvisor().getAdvice();
+
+    final SoundexActivator activator = new SoundexActivator();
+    activator.startup();
+    try {
+      // the index, if enabled, is loaded and the warm-up has run
+      while (!SoundexContext.isReady()) {
+        Thread.sleep(100);
+      }
+      final Statistics statistics = sessionFactory.getStatistics();
+      statistics.setStatisticsEnabled(true);
+      statistics.clear();
+      SoundexContext.getSearchMetrics().reset();
+
+      final CountDownLatch start = new CountDownLatch(1);
+      final LoadWorker[] workers = new LoadWorker[threads];
+      final Thread[] workerThreads = new Thread[threads];
+      for (int i = 0; i < threads; i++) {
+        // each thread takes its own part of the weighted names
+        workers[i] = new LoadWorker(advice, sessionFactory, names, i * (names.length / threads), searches, start);
+        workerThreads[i] = new Thread(workers[i], "soundex-load-" + (i + 1));
+        workerThreads[i].start();
+      }
+      final long startNanos = System.nanoTime();
+      start.countDown();
+      for (Thread thread : workerThreads) {
+        thread.join();
+      }
+      report(workers, System.nanoTime() - startNanos, SoundexContext.getSearchMetrics(), statistics.getPrepareStatementCount());
+    } finally {
+      activator.shutdown();
+    }
+  }
+
+  /**
+   * Print the results of the run.
+   * @param workers the finished workers
+   * @param elapsedNanos the duration of the run
+   * @param metrics the search metrics of the run
+   * @param hibernateStatements the number of statements prepared by Hibernate, i.e. for loading the patients
+   */
+  private static void report(LoadWorker[] workers, long elapsedNanos, SearchMetrics metrics, long hibernateStatements) {
+    int count = 0;
+    for (LoadWorker worker : workers) {
+      count += worker.completed;
+    }
+    final long[] latencies = new long[count];
+    final long[] checkouts = new long[count];
+    long soundexStatements = 0;
+    for (SearchType type : SearchType.values()) {
+      soundexStatements += metrics.getStatements(type);
+    }
+    long patients = 0;
+    int poolWaits = 0;
+    int failures = 0;
+    Throwable failure = null;
+    int offset = 0;
+    for (LoadWorker worker : workers) {
+      System.arraycopy(worker.latencies, 0, latencies, offset, worker.completed);
+      System.arraycopy(worker.checkouts, 0, checkouts, offset, worker.completed);
+      offset += worker.completed;
+      patients += worker.patients;
+      for (int i = 0; i < worker.completed; i++) {
+        if (worker.checkouts[i] > POOL_WAIT_NANOS) {
+          poolWaits++;
+        }
+      }
+      if (worker.failure != null) {
+        failures++;
+        failure = worker.failure;
+      }
+    }
+    Arrays.sort(latencies);
+    Arrays.sort(checkouts);
+
+    final double seconds = elapsedNanos / 1e9;
+    System.out.println("Soundex search load: " + workers.length + " threads, " + count + " searches in " +
+            String.format("%.1f s", seconds) + ", " + failures + " threads failed");
+    System.out.println(String.format("  throughput         %.1f searches/s", count / seconds));
+    System.out.println(String.format("  latency            p50 %.2f ms, p99 %.2f ms, max %.2f ms",
+            millis(percentile(latencies, 0.50)), millis(percentile(latencies, 0.99)), millis(percentile(latencies, 1.0))));
+    System.out.println(String.format("  connection         %d waits over %d ms, p50 %.2f ms, p99 %.2f ms",
+            poolWaits, TimeUnit.NANOSECONDS.toMillis(POOL_WAIT_NANOS),
+            millis(percentile(checkouts, 0.50)), millis(percentile(checkouts, 0.99))));
+    final LatencyHistogram readOnlyConnections = metrics.getReadOnlyConnections();
+    System.out.println(String.format("  read-only conn.    %d taken by concurrent queries, p50 %.2f ms, p99 %.2f ms",
+            readOnlyConnections.getCount(), readOnlyConnections.getPercentile(0.50) / 1e3,
+            readOnlyConnections.getPercentile(0.99) / 1e3));
+    System.out.println(String.format("  statements/search  %.2f soundex, %.2f hibernate",
+            (double) soundexStatements / Math.max(count, 1), (double) hibernateStatements / Math.max(count, 1)));
+    System.out.println(String.format("  patients/search    %.1f", (double) patients / Math.max(count, 1)));
+    if (failure != null) {
+      throw new AssertionError(failure);
+    }
+  }
+
+  /**
+   * Get a percentile by the nearest rank method.
+   * @param sorted the sorted values
+   * @param fraction the percentile, e.g. 0.99
+   * @return the value or 0, if there are no values
+   */
+  private static long percentile(long[] sorted, double fraction) {
+    return sorted.length == 0 ? 0 : sorted[Math.max((int) Math.ceil(fraction * sorted.length) - 1, 0)];
+  }
+
+  private static double millis(long nanos) {
+    return nanos / 1e6;
+  }
+
+  /**
+   * One searching thread, the results are read after it has been joined.
+   */
+  private static class LoadWorker implements Runnable {
+
+    private final PatientServiceAroundAdvisor.SoundexSearchAdvice advice;
+    private final SessionFactory sessionFactory;
+    private final String[] names;
+    private final int offset;
+    private final CountDownLatch start;
+
+    final long[] latencies;
+    final long[] checkouts;
+    int completed;
+    long patients;
+    Throwable failure;
+
+    LoadWorker(PatientServiceAroundAdvisor.SoundexSearchAdvice advice, SessionFactory sessionFactory, String[] names,
+               int offset, int searches, CountDownLatch start) {
+      this.advice = advice;
+      this.sessionFactory = sessionFactory;
+      this.names = names;
+      this.offset = offset;
+      this.start = start;
+      this.latencies = new long[searches];
+      this.checkouts = new long[searches];
+    }
+
+    public void run() {
+      try {
+        start.await();
+        for (int i = 0; i < latencies.length; i++) {
+          final String name = names[(offset + i) % names.length];
+          Context.openSession();
+          try {
+            final long begin = System.nanoTime();
+            // takes the connection of the session from the pool
+            sessionFactory.getCurrentSession().connection();
+            final long connected = System.nanoTime();
+            patients += ((List<?>) advice.invoke(new SearchInvocation("s:" + name))).size();
+            latencies[i] = System.nanoTime() - begin;
+            checkouts[i] = connected - begin;
+            completed++;
+          } finally {
+            Context.closeSession();
+          }
+        }
+      } catch (InterruptedException e) {
+        Thread.currentThread().interrupt();
+      } catch (Throwable t) {
+        failure = t;
+      }
+    }
+  }
+
+  /**
+   * A call of PatientService.getPatients(String), as intercepted by the advice.
+   */
+  private static class SearchInvocation implements MethodInvocation {
+
+    private final Object[] arguments;
+
+    SearchInvocation(String query) {
+      this.arguments = new Object[] {query};
+    }
+
+    public Method getMethod() {
+      try {
+        return PatientService.class.getMethod("getPatients", String.class);
+      } catch (NoSuchMethodException e) {
+        throw new IllegalStateException(e);
+      }
+    }
+
+    public Object[] getArguments() {
+      return arguments;
+    }
+
+    public Object proceed() {
+      throw new UnsupportedOperationException("not a soundex query: " + arguments[0]);
+    }
+
+    public Object getThis() {
+      return null;
+    }
+
+    public AccessibleObject getStaticPart() {
+      return getMethod();
+    }
+  }
+}
@@ -0,0 +1,75 @@
+/**
+ * Copyright (C) 2011 innoQ Deutschland GmbH
+ *
+ * The contents of this file are subject to the OpenMRS Public License
+ * Version 1.0 (the "License"); you may not use this file except in
+ * compliance with the License. You may obtain a copy of the License at
+ * http://license.openmrs.org
+ *
+ * Software distributed under the License is distributed on an "AS IS"
+ * basis, WITHOUT WARRANTY OF ANY KIND, either express or implied. See the
+ * License for the specific language governing rights and limitations
+ * under the License.
+ *
+ * @author Arnd Kleinbeck, innoQ Deutschland GmbH, http://www.innoq.com
+ */
+package org.openmrs.module.soundex.encoder;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openmrs.module.soundex.NameCorpus;
+
+import java.io.IOException;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Benchmark for SoundexEncoder.encode and CachingSoundexEncoder.encode on the popular name corpus, and for
+ * packed encoding of the whole corpus with SoundexEncoder.encodeAll.
+ */
+@State(Scope.Thread)
+@BenchmarkMode({Mode.Throughput, Mode.AverageTime})
+@OutputTimeUnit(TimeUnit.MICROSECONDS)
+public class SoundexEncoderBenchmark {
+
+  private SoundexEncoder encoder;
+  private SoundexEncoder cachingEncoder;
+  private String[] names;
+  private int[] codes;
+  private int next;
+
+  @Setup
+  public void setUp() throws IOException {
+    NameCorpus corpus = NameCorpus.load();
+    String[] family = corpus.getFamilyNames();
+    String[] given = corpus.getGivenNames();
+    names = new String[family.length + given.length];
+    System.arraycopy(family, 0, names, 0, family.length);
+    System.arraycopy(given, 0, names, family.length, given.length);
+    codes = new int[names.length];
+    encoder = new SoundexEncoder();
+    cachingEncoder = new CachingSoundexEncoder(10000);
+  }
+
+  @Benchmark
+  public String encode() {
+    next = next + 1 == names.length ? 0 : next + 1;
+    return encoder.encode(names[next]);
+  }
+
+  @Benchmark
+  public String encodeCached() {
+    next = next + 1 == names.length ? 0 : next + 1;
+    return cachingEncoder.encode(names[next]);
+  }
+
+  @Benchmark
+  public int[] encodeAll() {
+    encoder.encodeAll(names, codes);
+    return codes;
+  }
+}
@@ -18,7 +18,27 @@ package org.openmrs.module.soundex;
 
 import org.apache.commons.logging.Log;
 import org.apache.commons.logging.LogFactory;
+import org.hibernate.SessionFactory;
+import org.openmrs.api.context.Context;
 import org.openmrs.module.Activator;
+import org.openmrs.module.soundex.cache.SearchResultCache;
+import org.openmrs.module.soundex.encoder.CachingSoundexEncoder;
+import org.openmrs.module.soundex.encoder.SoundexEncoder;
+import org.openmrs.module.soundex.index.SoundexCodeDictionary;
+import org.openmrs.module.soundex.index.SoundexIndex;
+import org.openmrs.module.soundex.index.SoundexIndexLoader;
+import org.openmrs.module.soundex.index.SoundexIndexSnapshot;
+import org.openmrs.module.soundex.metrics.SearchMetricsMBean;
+import org.openmrs.module.soundex.metrics.SlowSearchLog;
+import org.openmrs.module.soundex.warmup.SoundexWarmUp;
+
+import javax.management.JMException;
+import java.util.concurrent.ArrayBlockingQueue;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.ThreadPoolExecutor;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
 
 /**
  * This class contains the logic that is run every time this module is either started or shutdown
@@ -26,12 +46,49 @@ import org.openmrs.module.Activator;
 public class SoundexActivator implements Activator {
 	
 	private Log log = LogFactory.getLog(this.getClass());
+
+	/** thread loading the soundex index, null if the index is disabled. */
+	private Thread indexLoader;
+
+	/** thread loading the code dictionary, null if searches are not repeated with neighbouring codes. */
+	private Thread codeDictionaryLoader;
+
+	/** thread warming up the search, null if the module is not started. */
+	private Thread warmUpThread;
 	
 	/**
 	 * @see org.openmrs.module.Activator#startup()
 	 */
 	public void startup() {
 		log.info("Starting Soundex Module...");
+		final int encoderCacheSize = SoundexRuntimePropertyAccess.getEncoderCacheSize();
+		SoundexContext.setEncoder(encoderCacheSize > 0 ? new CachingSoundexEncoder(encoderCacheSize) : new SoundexEncoder());
+		final int resultCacheSize = SoundexRuntimePropertyAccess.getResultCacheSize();
+		if (resultCacheSize > 0) {
+			SoundexContext.setResultCache(new SearchResultCache(resultCacheSize,
+							SoundexRuntimePropertyAccess.getResultCacheTimeToLive() * 1000L));
+		}
+		final int queryThreads = SoundexRuntimePropertyAccess.getQueryThreads();
+		if (queryThreads > 0) {
+			SoundexContext.setQueryExecutor(createQueryExecutor(queryThreads));
+		}
+		if (SoundexRuntimePropertyAccess.isIndexEnabled()) {
+			startIndexLoader();
+		}
+		if (SoundexRuntimePropertyAccess.getFallbackResults() > 0) {
+			startCodeDictionaryLoader();
+		}
+		final int slowSearchThreshold = SoundexRuntimePropertyAccess.getSlowSearchThreshold();
+		if (slowSearchThreshold > 0) {
+			SoundexContext.setSlowSearchLog(new SlowSearchLog(slowSearchThreshold, SoundexRuntimePropertyAccess.getSlowSearchLogSize(),
+					Context.getRegisteredComponents(SessionFactory.class).get(0)));
+		}
+		try {
+			new SearchMetricsMBean(SoundexContext.getSearchMetrics(), SoundexContext.getSlowSearchLog()).register();
+		} catch (JMException e) {
+			log.warn("Registering the soundex search metrics MBean failed", e);
+		}
+		startWarmUp();
   }
 	
 	/**
@@ -39,6 +96,130 @@ public class SoundexActivator implements Activator {
 	 */
 	public void shutdown() {
 		log.info("Shutting down Soundex Module...");
+		try {
+			SearchMetricsMBean.unregister();
+		} catch (JMException e) {
+			log.warn("Removing the soundex search metrics MBean failed", e);
+		}
+		try {
+			SoundexWarmUp.unregister();
+		} catch (JMException e) {
+			log.warn("Removing the soundex warm-up MBean failed", e);
+		}
+		if (warmUpThread != null) {
+			warmUpThread.interrupt();
+			warmUpThread = null;
+		}
+		SoundexContext.setWarmUp(null);
+		if (indexLoader != null) {
+			indexLoader.interrupt();
+			indexLoader = null;
+		}
+		SoundexContext.setIndex(null);
+		if (codeDictionaryLoader != null) {
+			codeDictionaryLoader.interrupt();
+			codeDictionaryLoader = null;
+		}
+		SoundexContext.setCodeDictionary(null);
+		SoundexContext.setResultCache(null);
+		SoundexContext.setSlowSearchLog(null);
+		final ExecutorService queryExecutor = SoundexContext.getQueryExecutor();
+		if (queryExecutor != null) {
+			SoundexContext.setQueryExecutor(null);
+			queryExecutor.shutdown();
+		}
+		if (SoundexContext.getEncoder() instanceof CachingSoundexEncoder) {
+			log.info("Shut down " + SoundexContext.getEncoder());
+		}
+	}
+
+	/**
+	 * Create the bounded executor for concurrent soundex queries. If all threads are busy and the queue is full,
+	 * the searching thread runs the query itself.
+	 * @param threads the number of threads
+	 * @return the executor
+	 */
+	private ExecutorService createQueryExecutor(int threads) {
+		final AtomicInteger threadNumber = new AtomicInteger();
+		return new ThreadPoolExecutor(threads, threads, 60, TimeUnit.SECONDS, new ArrayBlockingQueue<Runnable>(threads * 4),
+						new ThreadFactory() {
+							public Thread newThread(Runnable runnable) {
+								final Thread thread = new Thread(runnable, "soundex-query-" + threadNumber.incrementAndGet());
+								thread.setDaemon(true);
+								return thread;
+							}
+						},
+						new ThreadPoolExecutor.CallerRunsPolicy());
+	}
+
+	/**
+	 * Load the soundex index in the background, searches use the database until it is available.
+	 * With the snapshot enabled, only the names changed since the last start are read from the database.
+	 */
+	private void startIndexLoader() {
+		final SessionFactory sessionFactory = Context.getRegisteredComponents(SessionFactory.class).get(0);
+		final SoundexIndexSnapshot snapshot = SoundexRuntimePropertyAccess.isIndexSnapshotEnabled() ?
+						SoundexIndexSnapshot.inApplicationDataDirectory() : null;
+		final long generation = SoundexContext.startLoadingIndex();
+		indexLoader = new Thread("soundex-index-loader") {
+			@Override
+			public void run() {
+				try {
+					final long start = System.currentTimeMillis();
+					final SoundexIndex index = SoundexIndexLoader.load(sessionFactory, snapshot);
+					if (!isInterrupted() && SoundexContext.setIndex(index, generation)) {
+						log.info("Loaded " + index + " in " + (System.currentTimeMillis() - start) + " ms.");
+					}
+				} catch (RuntimeException e) {
+					SoundexContext.setIndex(null, generation);
+					log.error("Loading the soundex index failed, searches keep using the database.", e);
+				}
+			}
+		};
+		indexLoader.setDaemon(true);
+		indexLoader.start();
+	}
+
+	/**
+	 * Load the dictionary of distinct codes in the background, searches are not repeated with neighbouring codes
+	 * until it is available. Codes of names saved while it is loading may be missing until the next start.
+	 */
+	private void startCodeDictionaryLoader() {
+		final SessionFactory sessionFactory = Context.getRegisteredComponents(SessionFactory.class).get(0);
+		final long generation = SoundexContext.startLoadingCodeDictionary();
+		codeDictionaryLoader = new Thread("soundex-code-dictionary-loader") {
+			@Override
+			public void run() {
+				try {
+					final SoundexCodeDictionary dictionary = SoundexCodeDictionary.load(sessionFactory);
+					if (!isInterrupted() && SoundexContext.setCodeDictionary(dictionary, generation)) {
+						log.info("Loaded " + dictionary + ".");
+					}
+				} catch (RuntimeException e) {
+					log.error("Loading the soundex code dictionary failed, searches are not repeated with neighbouring codes.", e);
+				}
+			}
+		};
+		codeDictionaryLoader.setDaemon(true);
+		codeDictionaryLoader.start();
+	}
+
+	/**
+	 * Warm up the search in the background. The module reports ready when the index is loaded and the
+	 * warm-up searches have run.
+	 */
+	private void startWarmUp() {
+		final SessionFactory sessionFactory = Context.getRegisteredComponents(SessionFactory.class).get(0);
+		final SoundexWarmUp warmUp = new SoundexWarmUp(sessionFactory, SoundexRuntimePropertyAccess.getWarmUpNames());
+		SoundexContext.setWarmUp(warmUp);
+		try {
+			warmUp.register();
+		} catch (JMException e) {
+			log.warn("Registering the soundex warm-up MBean failed", e);
+		}
+		warmUpThread = new Thread(warmUp, "soundex-warm-up");
+		warmUpThread.setDaemon(true);
+		warmUpThread.start();
 	}
 
 }
@@ -0,0 +1,322 @@
+/**
+ * Copyright (C) 2011 innoQ Deutschland GmbH
+ *
+ * The contents of this file are subject to the OpenMRS Public License
+ * Version 1.0 (the "License"); you may not use this file except in
+ * compliance with the License. You may obtain a copy of the License at
+ * http://license.openmrs.org
+ *
+ * Software distributed under the License is distributed on an "AS IS"
+ * basis, WITHOUT WARRANTY OF ANY KIND, either express or implied. See the
+ * License for the specific language governing rights and limitations
+ * under the License.
+ *
+ * @author Arnd Kleinbeck, innoQ Deutschland GmbH, http://www.innoq.com
+ */
+package org.openmrs.module.soundex;
+
+import org.openmrs.module.soundex.cache.SearchResultCache;
+import org.openmrs.module.soundex.encoder.SoundexEncoder;
+import org.openmrs.module.soundex.index.NameEntry;
+import org.openmrs.module.soundex.index.PatientNamesUpdate;
+import org.openmrs.module.soundex.index.SoundexCodeDictionary;
+import org.openmrs.module.soundex.index.SoundexIndex;
+import org.openmrs.module.soundex.metrics.SearchMetrics;
+import org.openmrs.module.soundex.metrics.SlowSearchLog;
+import org.openmrs.module.soundex.warmup.SoundexWarmUp;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.ExecutorService;
+
+/**
+ * Holder of the module wide search state, set up by the SoundexActivator.
+ */
+public class SoundexContext {
+
+  /** guards publishing the index against concurrent updates. */
+  private static final Object LOCK = new Object();
+
+  /** the soundex encoder shared by searches and index updates. */
+  private static volatile SoundexEncoder encoder = new SoundexEncoder();
+
+  /** the soundex index, null until it is loaded. */
+  private static volatile SoundexIndex index;
+
+  /** updates committed while the index is loading, null if no index is loading. */
+  private static volatile List<PatientNamesUpdate> pendingUpdates;
+
+  /** counts the loads and the unconditional sets of the index, so that the result of an outdated load is dropped. */
+  private static long indexGeneration;
+
+  /** the distinct codes for searching neighbouring codes, null if not loaded. */
+  private static volatile SoundexCodeDictionary codeDictionary;
+
+  /** counts the loads and the unconditional sets of the code dictionary, see {@link #indexGeneration}. */
+  private static long codeDictionaryGeneration;
+
+  /** the search result cache, null if caching is disabled. */
+  private static volatile SearchResultCache resultCache;
+
+  /** the executor for concurrent soundex queries, null if queries run one after the other. */
+  private static volatile ExecutorService queryExecutor;
+
+  /** counters and latencies of the searches. */
+  private static final SearchMetrics searchMetrics = new SearchMetrics();
+
+  /** the log of slow searches, null if slow searches are not logged. */
+  private static volatile SlowSearchLog slowSearchLog;
+
+  /** the warm-up after startup, null if the module is not started. */
+  private static volatile SoundexWarmUp warmUp;
+
+  /**
+   * Get the shared soundex encoder.
+   * @return the encoder
+   */
+  public static SoundexEncoder getEncoder() {
+    return encoder;
+  }
+
+  /**
+   * Set the shared soundex encoder. The encoder is used concurrently and must be thread-safe.
+   * @param encoder the encoder
+   */
+  public static void setEncoder(SoundexEncoder encoder) {
+    SoundexContext.encoder = encoder;
+  }
+
+  /**
+   * Get the soundex index.
+   * @return the index or null, if it is not loaded
+   */
+  public static SoundexIndex getIndex() {
+    return index;
+  }
+
+  /**
+   * Announce that the index is being loaded. Updates applied from now on are replayed on the loaded
+   * index, as the loader may or may not have seen them.
+   * @return the generation of the load, to be passed to {@link #setIndex(SoundexIndex, long)}
+   */
+  public static long startLoadingIndex() {
+    synchronized (LOCK) {
+      pendingUpdates = new ArrayList<PatientNamesUpdate>();
+      return ++indexGeneration;
+    }
+  }
+
+  /**
+   * Checks whether the index is being loaded.
+   * @return true, from {@link #startLoadingIndex()} until the index is set
+   */
+  public static boolean isIndexLoading() {
+    return pendingUpdates != null;
+  }
+
+  /**
+   * Set the soundex index and replay the updates committed while it was loading. Loads started before are
+   * outdated, their results are dropped.
+   * @param index the index, null to drop it
+   */
+  public static void setIndex(SoundexIndex index) {
+    synchronized (LOCK) {
+      indexGeneration++;
+      publishIndex(index);
+    }
+  }
+
+  /**
+   * Set the loaded soundex index and replay the updates committed while it was loading, unless the index
+   * has been set or another load has been started since, e.g. when the module has been shut down.
+   * @param index the index, null to drop it
+   * @param generation the generation returned by {@link #startLoadingIndex()}
+   * @return true, if the index was set
+   */
+  public static boolean setIndex(SoundexIndex index, long generation) {
+    synchronized (LOCK) {
+      if (generation != indexGeneration) {
+        return false;
+      }
+      publishIndex(index);
+      return true;
+    }
+  }
+
+  /** called holding LOCK. */
+  private static void publishIndex(SoundexIndex index) {
+    if (index != null && pendingUpdates != null) {
+      for (PatientNamesUpdate update : pendingUpdates) {
+        update.applyTo(index);
+      }
+    }
+    pendingUpdates = null;
+    SoundexContext.index = index;
+  }
+
+  /**
+   * Get the dictionary of distinct codes.
+   * @return the dictionary or null, if it is not loaded
+   */
+  public static SoundexCodeDictionary getCodeDictionary() {
+    return codeDictionary;
+  }
+
+  /**
+   * Announce that the dictionary of distinct codes is being loaded.
+   * @return the generation of the load, to be passed to {@link #setCodeDictionary(SoundexCodeDictionary, long)}
+   */
+  public static long startLoadingCodeDictionary() {
+    synchronized (LOCK) {
+      return ++codeDictionaryGeneration;
+    }
+  }
+
+  /**
+   * Set the dictionary of distinct codes. Loads started before are outdated, their results are dropped.
+   * @param codeDictionary the dictionary, null to drop it
+   */
+  public static void setCodeDictionary(SoundexCodeDictionary codeDictionary) {
+    synchronized (LOCK) {
+      codeDictionaryGeneration++;
+      SoundexContext.codeDictionary = codeDictionary;
+    }
+  }
+
+  /**
+   * Set the loaded dictionary of distinct codes, unless it has been set or another load has been started since.
+   * @param codeDictionary the dictionary
+   * @param generation the generation returned by {@link #startLoadingCodeDictionary()}
+   * @return true, if the dictionary was set
+   */
+  public static boolean setCodeDictionary(SoundexCodeDictionary codeDictionary, long generation) {
+    synchronized (LOCK) {
+      if (generation != codeDictionaryGeneration) {
+        return false;
+      }
+      SoundexContext.codeDictionary = codeDictionary;
+      return true;
+    }
+  }
+
+  /**
+   * Get the search result cache.
+   * @return the cache or null, if caching is disabled
+   */
+  public static SearchResultCache getResultCache() {
+    return resultCache;
+  }
+
+  /**
+   * Set the search result cache.
+   * @param resultCache the cache, null to disable caching
+   */
+  public static void setResultCache(SearchResultCache resultCache) {
+    SoundexContext.resultCache = resultCache;
+  }
+
+  /**
+   * Get the executor for concurrent soundex queries.
+   * @return the executor or null, if queries of a search run one after the other
+   */
+  public static ExecutorService getQueryExecutor() {
+    return queryExecutor;
+  }
+
+  /**
+   * Set the executor for concurrent soundex queries.
+   * @param queryExecutor the executor, null to run queries one after the other
+   */
+  public static void setQueryExecutor(ExecutorService queryExecutor) {
+    SoundexContext.queryExecutor = queryExecutor;
+  }
+
+  /**
+   * Get the search metrics.
+   * @return the metrics
+   */
+  public static SearchMetrics getSearchMetrics() {
+    return searchMetrics;
+  }
+
+  /**
+   * Get the log of slow searches.
+   * @return the log or null, if slow searches are not logged
+   */
+  public static SlowSearchLog getSlowSearchLog() {
+    return slowSearchLog;
+  }
+
+  /**
+   * Set the log of slow searches.
+   * @param slowSearchLog the log, null to stop logging slow searches
+   */
+  public static void setSlowSearchLog(SlowSearchLog slowSearchLog) {
+    SoundexContext.slowSearchLog = slowSearchLog;
+  }
+
+  /**
+   * Get the warm-up after startup.
+   * @return the warm-up or null, if the module is not started
+   */
+  public static SoundexWarmUp getWarmUp() {
+    return warmUp;
+  }
+
+  /**
+   * Set the warm-up after startup.
+   * @param warmUp the warm-up, null when the module is shut down
+   */
+  public static void setWarmUp(SoundexWarmUp warmUp) {
+    SoundexContext.warmUp = warmUp;
+  }
+
+  /**
+   * Checks whether the module is ready to take searches at full speed.
+   * @return true, if the warm-up has finished
+   */
+  public static boolean isReady() {
+    final SoundexWarmUp current = warmUp;
+    return current != null && current.isReady();
+  }
+
+  /**
+   * Checks whether the search state has to be told about patient name changes.
+   * @return true, if the index is loaded or loading, if results are cached or if the code dictionary is loaded
+   */
+  public static boolean isTrackingUpdates() {
+    return index != null || pendingUpdates != null || resultCache != null || codeDictionary != null;
+  }
+
+  /**
+   * Apply committed patient name changes to the search state.
+   * @param updates the updates
+   */
+  public static void applyUpdates(List<PatientNamesUpdate> updates) {
+    synchronized (LOCK) {
+      if (index != null) {
+        for (PatientNamesUpdate update : updates) {
+          update.applyTo(index);
+        }
+      }
+      // a reloading index has to see the updates as well
+      if (pendingUpdates != null) {
+        pendingUpdates.addAll(updates);
+      }
+    }
+    final SoundexCodeDictionary dictionary = codeDictionary;
+    if (dictionary != null) {
+      for (PatientNamesUpdate update : updates) {
+        for (NameEntry entry : update.getNames()) {
+          dictionary.add(entry);
+        }
+      }
+    }
+    final SearchResultCache cache = resultCache;
+    if (cache != null) {
+      for (PatientNamesUpdate update : updates) {
+        cache.invalidate(update);
+      }
+    }
+  }
+}
@@ -17,6 +17,8 @@ package org.openmrs.module.soundex;
 
 import org.openmrs.api.context.Context;
 
+import java.util.Properties;
+
 /**
  * Helper class with access methods for soundex search specific runtime properties.
  */
@@ -37,13 +39,77 @@ public class SoundexRuntimePropertyAccess {
   /** default value for soundex activator alias */
   public static final String SOUNDEX_ACTIVATOR_CODE_ALIAS_VALUE = ":s";
 
+  /** property name for the in-memory soundex index switch */
+  public static final String INDEX_ENABLED_TAG = "soundex.search.index.enabled";
+  /** default value for the in-memory soundex index switch */
+  public static final String INDEX_ENABLED_VALUE = "false";
+
+  /** property name for the switch of the on-disk snapshot of the in-memory soundex index */
+  public static final String INDEX_SNAPSHOT_ENABLED_TAG = "soundex.search.index.snapshot";
+  /** default value for the switch of the on-disk snapshot of the in-memory soundex index */
+  public static final String INDEX_SNAPSHOT_ENABLED_VALUE = "true";
+
+  /** property name for the number of most frequent given and family names searched while warming up */
+  public static final String WARM_UP_NAMES_TAG = "soundex.warmup.names";
+  /** default value for the number of most frequent names searched while warming up */
+  public static final String WARM_UP_NAMES_VALUE = "0";
+
+  /** property name for the switch of ranking the candidate names of database searches in Java */
+  public static final String JAVA_RANKING_ENABLED_TAG = "soundex.search.java.ranking";
+  /** default value for the switch of ranking the candidate names of database searches in Java */
+  public static final String JAVA_RANKING_ENABLED_VALUE = "false";
+
+  /** property name for the number of patients below which searches are repeated with neighbouring codes, 0 disables it */
+  public static final String FALLBACK_RESULTS_TAG = "soundex.search.fallback.results";
+  /** default value for the number of patients below which searches are repeated with neighbouring codes */
+  public static final String FALLBACK_RESULTS_VALUE = "0";
+
+  /** property name for the maximum number of cached search results, 0 disables the cache */
+  public static final String RESULT_CACHE_SIZE_TAG = "soundex.search.cache.size";
+  /** default value for the maximum number of cached search results */
+  public static final String RESULT_CACHE_SIZE_VALUE = "0";
+
+  /** property name for the time to live of cached search results in seconds */
+  public static final String RESULT_CACHE_TTL_TAG = "soundex.search.cache.ttl";
+  /** default value for the time to live of cached search results */
+  public static final String RESULT_CACHE_TTL_VALUE = "60";
+
+  /** property name for the maximum number of names with cached soundex codes, 0 disables the cache */
+  public static final String ENCODER_CACHE_SIZE_TAG = "soundex.encoder.cache.size";
+  /** default value for the maximum number of names with cached soundex codes */
+  public static final String ENCODER_CACHE_SIZE_VALUE = "10000";
+
+  /** property name for the number of threads running soundex queries concurrently, 0 disables concurrent queries */
+  public static final String QUERY_THREADS_TAG = "soundex.search.query.threads";
+  /** default value for the number of threads running soundex queries concurrently */
+  public static final String QUERY_THREADS_VALUE = "0";
+
+  /** property name for the duration in milliseconds from which on soundex searches are logged as slow, 0 disables the log */
+  public static final String SLOW_SEARCH_THRESHOLD_TAG = "soundex.search.slow.threshold";
+  /** default value for the slow search threshold */
+  public static final String SLOW_SEARCH_THRESHOLD_VALUE = "0";
+
+  /** property name for the maximum number of slow searches kept in memory */
+  public static final String SLOW_SEARCH_LOG_SIZE_TAG = "soundex.search.slow.size";
+  /** default value for the maximum number of slow searches kept in memory */
+  public static final String SLOW_SEARCH_LOG_SIZE_VALUE = "20";
+
+  /**
+   * Get the runtime properties. The properties are read anew on each call, so that changes take effect at once;
+   * values derived from them, such as the activator code matcher, are cached by their users.
+   * @return runtime properties
+   */
+  private static Properties getRuntimeProperties() {
+    return Context.getRuntimeProperties();
+  }
+
   /**
    * Get the default result set limit.
    * @return result set limit
    */
   static public int getDefaultResultLimit() {
 
-    return Integer.valueOf(Context.getRuntimeProperties().getProperty(DEFAULT_RESULT_LIMIT_TAG, DEFAULT_RESULT_LIMIT_VALUE));
+    return Integer.valueOf(getRuntimeProperties().getProperty(DEFAULT_RESULT_LIMIT_TAG, DEFAULT_RESULT_LIMIT_VALUE));
   }
 
   /**
@@ -51,7 +117,7 @@ public class SoundexRuntimePropertyAccess {
    * @return sql limit
    */
   static public int getDefaultSqlLimit() {
-    return Integer.valueOf(Context.getRuntimeProperties().getProperty(DEFAULT_SQL_LIMIT_TAG, DEFAULT_SQL_LIMIT_VALUE));
+    return Integer.valueOf(getRuntimeProperties().getProperty(DEFAULT_SQL_LIMIT_TAG, DEFAULT_SQL_LIMIT_VALUE));
   }
 
   /**
@@ -59,7 +125,98 @@ public class SoundexRuntimePropertyAccess {
    * @return the soundex activator code alias
    */
   static public String getActivatorCodeAlias() {
-    return Context.getRuntimeProperties().getProperty(SOUNDEX_ACTIVATOR_CODE_ALIAS_TAG, SOUNDEX_ACTIVATOR_CODE_ALIAS_VALUE);
+    return getRuntimeProperties().getProperty(SOUNDEX_ACTIVATOR_CODE_ALIAS_TAG, SOUNDEX_ACTIVATOR_CODE_ALIAS_VALUE);
+  }
+
+  /**
+   * Checks whether soundex searches are answered from the in-memory index.
+   * @return true, if the index is enabled
+   */
+  static public boolean isIndexEnabled() {
+    return Boolean.valueOf(getRuntimeProperties().getProperty(INDEX_ENABLED_TAG, INDEX_ENABLED_VALUE));
+  }
+
+  /**
+   * Checks whether the in-memory index is restored from and saved to a snapshot file.
+   * @return true, if the snapshot is enabled
+   */
+  static public boolean isIndexSnapshotEnabled() {
+    return Boolean.valueOf(getRuntimeProperties().getProperty(INDEX_SNAPSHOT_ENABLED_TAG, INDEX_SNAPSHOT_ENABLED_VALUE));
+  }
+
+  /**
+   * Checks whether database searches read the unordered candidate names and rank them in Java, instead of
+   * ordering them in SQL.
+   * @return true, if candidates are ranked in Java
+   */
+  static public boolean isJavaRankingEnabled() {
+    return Boolean.valueOf(getRuntimeProperties().getProperty(JAVA_RANKING_ENABLED_TAG, JAVA_RANKING_ENABLED_VALUE));
+  }
+
+  /**
+   * Get the number of patients below which single name and given and family name searches are repeated with the
+   * codes next to the codes of the names, for names with typos.
+   * @return number of patients, 0 if searches are not repeated
+   */
+  static public int getFallbackResults() {
+    return Integer.valueOf(getRuntimeProperties().getProperty(FALLBACK_RESULTS_TAG, FALLBACK_RESULTS_VALUE));
+  }
+
+  /**
+   * Get the number of most frequent given names and family names searched after startup.
+   * @return number of names, 0 if no searches are run
+   */
+  static public int getWarmUpNames() {
+    return Integer.valueOf(getRuntimeProperties().getProperty(WARM_UP_NAMES_TAG, WARM_UP_NAMES_VALUE));
+  }
+
+  /**
+   * Get the maximum number of cached search results.
+   * @return cache size, 0 if caching is disabled
+   */
+  static public int getResultCacheSize() {
+    return Integer.valueOf(getRuntimeProperties().getProperty(RESULT_CACHE_SIZE_TAG, RESULT_CACHE_SIZE_VALUE));
+  }
+
+  /**
+   * Get the time to live of cached search results.
+   * @return time to live in seconds
+   */
+  static public int getResultCacheTimeToLive() {
+    return Integer.valueOf(getRuntimeProperties().getProperty(RESULT_CACHE_TTL_TAG, RESULT_CACHE_TTL_VALUE));
+  }
+
+  /**
+   * Get the maximum number of names with cached soundex codes.
+   * @return cache size, 0 if caching is disabled
+   */
+  static public int getEncoderCacheSize() {
+    return Integer.valueOf(getRuntimeProperties().getProperty(ENCODER_CACHE_SIZE_TAG, ENCODER_CACHE_SIZE_VALUE));
+  }
+
+  /**
+   * Get the number of threads running the family name and given name queries of single name searches
+   * concurrently.
+   * @return number of threads, 0 if the queries run one after the other
+   */
+  static public int getQueryThreads() {
+    return Integer.valueOf(getRuntimeProperties().getProperty(QUERY_THREADS_TAG, QUERY_THREADS_VALUE));
+  }
+
+  /**
+   * Get the duration from which on soundex searches are logged as slow.
+   * @return threshold in milliseconds, 0 if slow searches are not logged
+   */
+  static public int getSlowSearchThreshold() {
+    return Integer.valueOf(getRuntimeProperties().getProperty(SLOW_SEARCH_THRESHOLD_TAG, SLOW_SEARCH_THRESHOLD_VALUE));
+  }
+
+  /**
+   * Get the maximum number of slow searches kept in memory.
+   * @return number of slow searches
+   */
+  static public int getSlowSearchLogSize() {
+    return Integer.valueOf(getRuntimeProperties().getProperty(SLOW_SEARCH_LOG_SIZE_TAG, SLOW_SEARCH_LOG_SIZE_VALUE));
   }
 
 }
@@ -0,0 +1,86 @@
+/**
+ * Copyright (C) 2011 innoQ Deutschland GmbH
+ *
+ * The contents of this file are subject to the OpenMRS Public License
+ * Version 1.0 (the "License"); you may not use this file except in
+ * compliance with the License. You may obtain a copy of the License at
+ * http://license.openmrs.org
+ *
+ * Software distributed under the License is distributed on an "AS IS"
+ * basis, WITHOUT WARRANTY OF ANY KIND, either express or implied. See the
+ * License for the specific language governing rights and limitations
+ * under the License.
+ *
+ * @author Arnd Kleinbeck, innoQ Deutschland GmbH, http://www.innoq.com
+ */
+package org.openmrs.module.soundex.advisor;
+
+import java.util.HashSet;
+import java.util.Iterator;
+import java.util.NoSuchElementException;
+import java.util.Set;
+
+/**
+ * Mixes up two ranked patient id sequences in alternating groups, e.g. family name matches and given name
+ * matches of a single name search. A patient already returned is skipped, but still takes its place in the group.
+ */
+class AlternatingPatientIdIterator implements Iterator<Integer> {
+
+  private final Iterator<Integer> first;
+  private final Iterator<Integer> second;
+  private final int groupSize;
+
+  /** the patients returned so far. */
+  private final Set<Integer> seen = new HashSet<Integer>();
+
+  /** true, while the current group is taken from the second sequence. */
+  private boolean inSecond;
+
+  /** the number of ids taken for the current group. */
+  private int taken;
+
+  /** the next patient id, null if it has not been looked up yet. */
+  private Integer next;
+
+  /**
+   * Constructor.
+   * @param first the sequence the first group is taken from
+   * @param second the other sequence
+   * @param groupSize the number of ids taken from a sequence before switching to the other one
+   */
+  AlternatingPatientIdIterator(Iterator<Integer> first, Iterator<Integer> second, int groupSize) {
+    this.first = first;
+    this.second = second;
+    this.groupSize = groupSize;
+  }
+
+  public boolean hasNext() {
+    while (next == null && (first.hasNext() || second.hasNext())) {
+      final Iterator<Integer> current = inSecond ? second : first;
+      if (taken == groupSize || !current.hasNext()) {
+        inSecond = !inSecond;
+        taken = 0;
+        continue;
+      }
+      final Integer patientId = current.next();
+      taken++;
+      if (seen.add(patientId)) {
+        next = patientId;
+      }
+    }
+    return next != null;
+  }
+
+  public Integer next() {
+    if (!hasNext()) {
+      throw new NoSuchElementException();
+    }
+    final Integer patientId = next;
+    next = null;
+    return patientId;
+  }
+
+  public void remove() {
+    throw new UnsupportedOperationException();
+  }
+}
@@ -0,0 +1,133 @@
+/**
+ * Copyright (C) 2011 innoQ Deutschland GmbH
+ *
+ * The contents of this file are subject to the OpenMRS Public License
+ * Version 1.0 (the "License"); you may not use this file except in
+ * compliance with the License. You may obtain a copy of the License at
+ * http://license.openmrs.org
+ *
+ * Software distributed under the License is distributed on an "AS IS"
+ * basis, WITHOUT WARRANTY OF ANY KIND, either express or implied. See the
+ * License for the specific language governing rights and limitations
+ * under the License.
+ *
+ * @author Arnd Kleinbeck, innoQ Deutschland GmbH, http://www.innoq.com
+ */
+package org.openmrs.module.soundex.advisor;
+
+import org.hibernate.Session;
+import org.openmrs.api.APIException;
+
+import java.sql.PreparedStatement;
+import java.sql.ResultSet;
+import java.sql.SQLException;
+import java.util.HashSet;
+import java.util.Iterator;
+import java.util.LinkedList;
+import java.util.Map;
+import java.util.NoSuchElementException;
+import java.util.Set;
+
+/**
+ * Iterates over the patient ids of one or more keyset paged soundex queries, reading one page after the other
+ * from the database as the ids are consumed. The queries are read one after the other, each patient is returned
+ * once, at the position of its first name read.
+ */
+class KeysetPatientIdIterator implements Iterator<Integer> {
+
+  private final Session session;
+  private final SoundexPagedStatement[] statements;
+  private final Map<String, Object> parameters;
+  private final int pageSize;
+
+  /** ids of the current page that have not been returned yet. */
+  private final LinkedList<Integer> page = new LinkedList<Integer>();
+
+  /** the patients returned so far. */
+  private final Set<Integer> seen = new HashSet<Integer>();
+
+  /** index of the statement being read. */
+  private int statement;
+
+  /** sort keys of the last name read, null before the first page of a statement. */
+  private Object[] lastKeys;
+
+  /**
+   * Constructor.
+   * @param session the hibernate session the pages are read with
+   * @param statements the paged statements, read in this order
+   * @param parameters the values of the query parameters, all but pageSize and the after parameters
+   * @param pageSize the number of names per page
+   */
+  KeysetPatientIdIterator(Session session, SoundexPagedStatement[] statements, Map<String, Object> parameters, int pageSize) {
+    this.session = session;
+    this.statements = statements;
+    this.parameters = parameters;
+    this.pageSize = pageSize;
+  }
+
+  public boolean hasNext() {
+    while (page.isEmpty() && statement < statements.length) {
+      readPage(statements[statement]);
+    }
+    return !page.isEmpty();
+  }
+
+  public Integer next() {
+    if (!hasNext()) {
+      throw new NoSuchElementException();
+    }
+    return page.removeFirst();
+  }
+
+  public void remove() {
+    throw new UnsupportedOperationException();
+  }
+
+  /**
+   * Read the page after the last name read. Pages may consist of names of patients returned before only.
+   * @param paged the statement being read
+   */
+  private void readPage(SoundexPagedStatement paged) {
+    final SoundexQuery query = (lastKeys == null ? paged.getFirstPage() : paged.getNextPage()).bind();
+    for (Map.Entry<String, Object> parameter : parameters.entrySet()) {
+      if (query.getStatement().hasParameter(parameter.getKey())) {
+        query.set(parameter.getKey(), parameter.getValue());
+      }
+    }
+    query.set("pageSize", pageSize);
+    if (lastKeys != null) {
+      for (int i = 1; i <= paged.getKeyCount(); i++) {
+        query.set("after" + i, lastKeys[i - 1]);
+      }
+    }
+
+    try {
+      final PreparedStatement preparedStatement = query.prepare(session.connection());
+      try {
+        final ResultSet resultSet = preparedStatement.executeQuery();
+        int rows = 0;
+        while (resultSet.next()) {
+          rows++;
+          final Object[] keys = new Object[paged.getKeyCount()];
+          for (int i = 1; i <= paged.getKeyCount(); i++) {
+            keys[i - 1] = resultSet.getObject("sort_key_" + i);
+          }
+          lastKeys = keys;
+          final int patientId = resultSet.getInt("patient_id");
+          if (seen.add(patientId)) {
+            page.add(patientId);
+          }
+        }
+        if (rows < pageSize) {
+          statement++;
+          lastKeys = null;
+        }
+      } finally {
+        preparedStatement.close();
+      }
+    } catch (SQLException e) {
+      throw new APIException("Soundex search failed: " + query, e);
+    }
+  }
+}
@@ -0,0 +1,107 @@
+/**
+ * Copyright (C) 2011 innoQ Deutschland GmbH
+ *
+ * The contents of this file are subject to the OpenMRS Public License
+ * Version 1.0 (the "License"); you may not use this file except in
+ * compliance with the License. You may obtain a copy of the License at
+ * http://license.openmrs.org
+ *
+ * Software distributed under the License is distributed on an "AS IS"
+ * basis, WITHOUT WARRANTY OF ANY KIND, either express or implied. See the
+ * License for the specific language governing rights and limitations
+ * under the License.
+ *
+ * @author Arnd Kleinbeck, innoQ Deutschland GmbH, http://www.innoq.com
+ */
+package org.openmrs.module.soundex.advisor;
+
+import org.hibernate.Session;
+import org.hibernate.engine.PersistenceContext;
+import org.hibernate.engine.SessionImplementor;
+import org.openmrs.Patient;
+
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+
+/**
+ * Loads the patients of a soundex search result in bulk instead of one PatientService.getPatient(Integer)
+ * call per id.
+ */
+public class PatientHydrator {
+
+  /** maximum number of ids per IN clause. */
+  private static final int CHUNK_SIZE = 100;
+
+  /** loads the patients with their names. */
+  private static final String PATIENT_QUERY =
+          "select distinct p from Patient p " +
+            "left join fetch p.names " +
+          "where p.patientId in (:ids)";
+
+  /**
+   * Initialize one collection each for the patients loaded by {@link #PATIENT_QUERY}, which are already part
+   * of the session by then. Fetching all collections in one query would return the product of their sizes
+   * per patient.
+   */
+  private static final String[] COLLECTION_QUERIES = {
+    "select distinct p from Patient p left join fetch p.addresses where p.patientId in (:ids)",
+    "select distinct p from Patient p left join fetch p.attributes where p.patientId in (:ids)",
+    "select distinct p from Patient p left join fetch p.identifiers where p.patientId in (:ids)"
+  };
+
+  /**
+   * Load the patients with the given ids.
+   * @param session the hibernate session
+   * @param patientIds the ids of the patients in the order of the search result
+   * @return the patients in the order of the given ids, ids without patient are skipped
+   */
+  public static List<Patient> loadPatients(Session session, List<Integer> patientIds) {
+
+    // addresses and attributes are mapped eagerly without batch size, Hibernate would load them with one
+    // select per patient at the end of the first query. Their initialization is deferred until the
+    // collection queries have initialized them.
+    final PersistenceContext persistenceContext = session instanceof SessionImplementor
+            ? ((SessionImplementor) session).getPersistenceContext() : null;
+    final Map<Integer, Patient> patientsById = new HashMap<Integer, Patient>(patientIds.size() * 2);
+    if (persistenceContext != null) {
+      persistenceContext.beforeLoad();
+    }
+    try {
+      for (int from = 0; from < patientIds.size(); from += CHUNK_SIZE) {
+        final List<Integer> chunk = patientIds.subList(from, Math.min(from + CHUNK_SIZE, patientIds.size()));
+
+        final List<?> patients = session.createQuery(PATIENT_QUERY).setParameterList("ids", chunk).list();
+        for (Object o : patients) {
+          final Patient patient = (Patient) o;
+          patientsById.put(patient.getPatientId(), patient);
+        }
+
+        if (!patients.isEmpty()) {
+          for (String collectionQuery : COLLECTION_QUERIES) {
+            session.createQuery(collectionQuery).setParameterList("ids", chunk).list();
+          }
+        }
+      }
+    } finally {
+      if (persistenceContext != null) {
+        persistenceContext.afterLoad();
+      }
+    }
+    if (persistenceContext != null) {
+      // only collections of other entities loaded on the way are left
+      persistenceContext.initializeNonLazyCollections();
+    }
+
+    // restore the ranking of the SQL query
+    final List<Patient> result = new ArrayList<Patient>(patientIds.size());
+    for (Integer patientId : patientIds) {
+      final Patient patient = patientsById.get(patientId);
+      if (patient != null) {
+        result.add(patient);
+      }
+    }
+    return result;
+  }
+}
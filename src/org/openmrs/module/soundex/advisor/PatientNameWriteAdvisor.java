@@ -0,0 +1,167 @@
+/**
+ * Copyright (C) 2011 innoQ Deutschland GmbH
+ *
+ * The contents of this file are subject to the OpenMRS Public License
+ * Version 1.0 (the "License"); you may not use this file except in
+ * compliance with the License. You may obtain a copy of the License at
+ * http://license.openmrs.org
+ *
+ * Software distributed under the License is distributed on an "AS IS"
+ * basis, WITHOUT WARRANTY OF ANY KIND, either express or implied. See the
+ * License for the specific language governing rights and limitations
+ * under the License.
+ *
+ * @author Arnd Kleinbeck, innoQ Deutschland GmbH, http://www.innoq.com
+ */
+package org.openmrs.module.soundex.advisor;
+
+import org.aopalliance.aop.Advice;
+import org.aopalliance.intercept.MethodInterceptor;
+import org.aopalliance.intercept.MethodInvocation;
+import org.apache.commons.logging.Log;
+import org.apache.commons.logging.LogFactory;
+import org.openmrs.Patient;
+import org.openmrs.Person;
+import org.openmrs.PersonName;
+import org.openmrs.module.soundex.SoundexContext;
+import org.openmrs.module.soundex.index.NameEntry;
+import org.openmrs.module.soundex.index.PatientNamesUpdate;
+import org.springframework.aop.Advisor;
+import org.springframework.aop.support.StaticMethodMatcherPointcutAdvisor;
+import org.springframework.transaction.support.TransactionSynchronizationAdapter;
+import org.springframework.transaction.support.TransactionSynchronizationManager;
+
+import java.lang.reflect.Method;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collection;
+import java.util.List;
+
+/**
+ * Advisor implementation for wrapping the PatientService and PersonService methods that save, void or
+ * delete patient names. After the transaction commits the new names of the patients are applied to the
+ * module's search state (see SoundexContext).
+ */
+public class PatientNameWriteAdvisor extends StaticMethodMatcherPointcutAdvisor implements Advisor {
+
+  private static final long serialVersionUID = 4781960457293012372L;
+
+  /** methods that save, void or unvoid patients and their names. */
+  private static final Collection<String> SAVING_METHODS = Arrays.asList(
+          "savePatient", "createPatient", "updatePatient", "voidPatient", "unvoidPatient", "mergePatients",
+          "savePerson", "createPerson", "updatePerson", "voidPerson", "unvoidPerson");
+
+  /** methods that delete patients. */
+  private static final Collection<String> DELETING_METHODS = Arrays.asList(
+          "deletePatient", "purgePatient", "deletePerson", "purgePerson");
+
+  /** logger */
+  private Log log = LogFactory.getLog(this.getClass());
+
+  /**
+   * Matches the writing methods that take a patient or person as first argument.
+   * @param method the candidate method
+   * @param targetClass the target class
+   * @return whether or not this method matches statically
+   */
+  public boolean matches(Method method, Class targetClass) {
+    final Class<?>[] parameterTypes = method.getParameterTypes();
+    return (SAVING_METHODS.contains(method.getName()) || DELETING_METHODS.contains(method.getName())) &&
+            parameterTypes.length > 0 && Person.class.isAssignableFrom(parameterTypes[0]);
+  }
+
+  /**
+   * Return the name write advice implementation.
+   * @return the advice
+   */
+  public Advice getAdvice() {
+    return new NameWriteAdvice();
+  }
+
+  /**
+   * Get the update of the search state for a written person.
+   * @param person the person
+   * @param deleted true, if the person has been deleted
+   * @return the update or null, if the person is no patient
+   */
+  static PatientNamesUpdate toUpdate(Person person, boolean deleted) {
+    if (person.getPersonId() == null || !(person instanceof Patient || person.isPatient())) {
+      return null;
+    }
+    final int patientId = person.getPersonId();
+    final boolean voided = person instanceof Patient
+            ? Boolean.TRUE.equals(((Patient) person).getVoided())
+            : Boolean.TRUE.equals(person.getPersonVoided());
+    if (deleted || voided) {
+      return PatientNamesUpdate.removal(patientId);
+    }
+
+    final List<NameEntry> names = new ArrayList<NameEntry>();
+    for (PersonName name : person.getNames()) {
+      if (!Boolean.TRUE.equals(name.getVoided())) {
+        names.add(new NameEntry(name.getPersonNameId() == null ? 0 : name.getPersonNameId(), patientId,
+                name.getGivenName(), name.getFamilyName(), name.getFamilyName2(),
+                SoundexContext.getEncoder().encode(name.getGivenName()),
+                SoundexContext.getEncoder().encode(name.getFamilyName()),
+                SoundexContext.getEncoder().encode(name.getFamilyName2())));
+      }
+    }
+    return new PatientNamesUpdate(patientId, names.toArray(new NameEntry[names.size()]));
+  }
+
+  /**
+   * Advice Implementation for PatientService and PersonService write methods (see Spring AOP).
+   */
+  public class NameWriteAdvice implements MethodInterceptor {
+
+    public Object invoke(MethodInvocation invocation) throws Throwable {
+
+      final Object result = invocation.proceed();
+      if (!SoundexContext.isTrackingUpdates()) {
+        return result;
+      }
+
+      // the names are read now, while the session is still open
+      final boolean deleted = DELETING_METHODS.contains(invocation.getMethod().getName());
+      final List<PatientNamesUpdate> updates = new ArrayList<PatientNamesUpdate>();
+      for (Object argument : invocation.getArguments()) {
+        if (argument instanceof Person) {
+          final PatientNamesUpdate update = toUpdate((Person) argument, deleted);
+          if (update != null) {
+            updates.add(update);
+          }
+        }
+      }
+      if (updates.isEmpty()) {
+        return result;
+      }
+
+      if (TransactionSynchronizationManager.isSynchronizationActive()) {
+        TransactionSynchronizationManager.registerSynchronization(new TransactionSynchronizationAdapter() {
+          @Override
+          public void afterCommit() {
+            apply(updates);
+          }
+        });
+      } else {
+        apply(updates);
+      }
+      return result;
+    }
+
+    /**
+     * Apply the updates, failures must not affect the write that has already been committed.
+     * @param updates the updates
+     */
+    private void apply(List<PatientNamesUpdate> updates) {
+      try {
+        SoundexContext.applyUpdates(updates);
+        if (log.isDebugEnabled()) {
+          log.debug("applied " + updates);
+        }
+      } catch (RuntimeException e) {
+        log.error("Updating the soundex search state failed for " + updates, e);
+      }
+    }
+  }
+}
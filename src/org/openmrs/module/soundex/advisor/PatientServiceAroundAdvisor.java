@@ -20,23 +20,45 @@ import org.aopalliance.intercept.MethodInterceptor;
 import org.aopalliance.intercept.MethodInvocation;
 import org.apache.commons.logging.Log;
 import org.apache.commons.logging.LogFactory;
-import org.hibernate.SQLQuery;
 import org.hibernate.Session;
 import org.hibernate.SessionFactory;
 import org.openmrs.Patient;
+import org.openmrs.api.APIException;
 import org.openmrs.api.context.Context;
+import org.openmrs.module.soundex.SoundexContext;
 import org.openmrs.module.soundex.SoundexRuntimePropertyAccess;
-import org.openmrs.module.soundex.encoder.SoundexEncoder;
+import org.openmrs.module.soundex.cache.SearchResultCache;
+import org.openmrs.module.soundex.index.IntArrays;
+import org.openmrs.module.soundex.index.NameEntry;
+import org.openmrs.module.soundex.index.SoundexCodeDictionary;
+import org.openmrs.module.soundex.index.SoundexIndex;
+import org.openmrs.module.soundex.index.SoundexIndexLoader;
+import org.openmrs.module.soundex.index.SoundexRanking;
+import org.openmrs.module.soundex.metrics.SearchPhase;
+import org.openmrs.module.soundex.metrics.SearchTrace;
+import org.openmrs.module.soundex.metrics.SearchType;
+import org.openmrs.module.soundex.metrics.SlowSearchLog;
 import org.springframework.aop.Advisor;
 import org.springframework.aop.support.StaticMethodMatcherPointcutAdvisor;
 
 import java.lang.reflect.Method;
+import java.sql.PreparedStatement;
+import java.sql.ResultSet;
+import java.sql.SQLException;
 import java.text.NumberFormat;
 import java.util.ArrayList;
 import java.util.Arrays;
 import java.util.Collection;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.HashSet;
 import java.util.Iterator;
 import java.util.List;
+import java.util.Map;
+import java.util.Set;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Future;
 
 /**
  * Advisor implementation for wrapping calls to PatientService.getPatients(String).
@@ -49,12 +71,115 @@ public class PatientServiceAroundAdvisor extends StaticMethodMatcherPointcutAdvi
 /** default soundex search activator codes. */
   private static final Collection<String> DEFAULT_SOUNDEX_ACTIVATION_CODES = Arrays.asList("soundex:", "s:", ":soundex", ":s");
 
+  /** matcher of the default activator codes and the current alias, replaced when the alias changes. */
+  private static volatile SoundexActivatorMatcher activatorMatcher =
+          new SoundexActivatorMatcher(DEFAULT_SOUNDEX_ACTIVATION_CODES, SoundexRuntimePropertyAccess.SOUNDEX_ACTIVATOR_CODE_ALIAS_VALUE);
+
+  /** source tag of family name matches in the single name query. */
+  public static final String FAMILY_NAME_SOURCE = "F";
+
+  /** source tag of given name matches in the single name query. */
+  public static final String GIVEN_NAME_SOURCE = "G";
+
+  /** number of patients taken from each source in turn when family and given name matches are mixed up. */
+  private static final int GROUP_SIZE = 5;
+
+  /** maximum number of neighbouring codes searched per name when a search finds too few patients. */
+  private static final int MAX_NEIGHBOUR_CODES = 8;
+
+  /** maximum number of letters the neighbouring codes differ from the code of a name. */
+  private static final int MAX_NEIGHBOUR_DISTANCE = 1;
+
+  /** maximum length of a soundex code, one letter and three digits. */
+  private static final int MAX_CODE_LENGTH = 4;
+
+  /** common FROM and WHERE clause of the soundex queries. */
+  private static final String FROM_PATIENT_NAMES =
+          "FROM person_name_code " +
+            "INNER JOIN person_name ON person_name_code.person_name_id = person_name.person_name_id " +
+            "INNER JOIN patient ON patient.patient_id = person_name.person_id " +
+          "WHERE patient.voided = 0 AND person_name.voided = 0 ";
+
+  /** select clause of the soundex queries. */
+  private static final String SELECT_PATIENTS = "SELECT distinct patient.patient_id " + FROM_PATIENT_NAMES;
+
+  /** select clause of the candidate name queries, whose rows are ranked in Java (see SoundexIndexLoader.readNames). */
+  private static final String SELECT_NAMES =
+          "SELECT person_name.person_name_id, patient.patient_id, " +
+                 "person_name.given_name, person_name.family_name, person_name.family_name2, " +
+                 "person_name_code.given_name_code, person_name_code.family_name_code, person_name_code.family_name2_code " +
+          FROM_PATIENT_NAMES;
+
+  /** sort keys of the given name query. */
+  private static final String[] GIVEN_NAME_KEYS = {
+    "CASE INSTR(given_name, :name) WHEN 0 THEN 9999 ELSE INSTR(given_name, :name) END",
+    "given_name_code_length",
+    "given_name",
+    "family_name"
+  };
+
+  /** sort keys of the given name and family name query. */
+  private static final String[] GIVEN_AND_FAMILY_NAME_KEYS = {
+    "CASE WHEN (INSTR(family_name, :familyName) > 0 OR INSTR(family_name2, :familyName) > 0 ) AND INSTR(given_name, :givenName) > 0 THEN 1 ELSE 2 END",
+    "CASE WHEN (INSTR(family_name, :familyName) > 0 OR INSTR(family_name2, :familyName) > 0 ) AND INSTR(given_name, :givenName) = 0 THEN 1 ELSE 2 END",
+    "CASE WHEN (INSTR(family_name, :familyName) = 0 AND INSTR(family_name2, :familyName) = 0 ) AND INSTR(given_name, :givenName) > 0 THEN 1 ELSE 2 END",
+    "ABS(LENGTH(family_name) - :familyCodeLength)",
+    "ABS(LENGTH(given_name) - :givenCodeLength)",
+    "family_name",
+    "given_name",
+    "family_name2"
+  };
+
+  /**
+   * Statement templates, prepared once when the module is loaded. There is one template per length of the query code,
+   * as codes are matched by equality on the prefix column of that length (see sqldiff.xml).
+   */
+  private static final SoundexStatement[] GIVEN_NAME_STATEMENTS = new SoundexStatement[MAX_CODE_LENGTH];
+  private static final SoundexStatement[] FAMILY_NAME_STATEMENTS = new SoundexStatement[MAX_CODE_LENGTH];
+  private static final SoundexStatement[] SINGLE_NAME_STATEMENTS = new SoundexStatement[MAX_CODE_LENGTH];
+  private static final SoundexStatement[][] GIVEN_AND_FAMILY_NAME_STATEMENTS = new SoundexStatement[MAX_CODE_LENGTH][MAX_CODE_LENGTH];
+  private static final SoundexStatement[] ANY_NAME_STATEMENTS = new SoundexStatement[MAX_CODE_LENGTH];
+
+  /** candidate name queries without ORDER BY and LIMIT, the names are ranked in Java (see SoundexRanking). */
+  private static final SoundexStatement[] ANY_NAME_ROWS_STATEMENTS = new SoundexStatement[MAX_CODE_LENGTH];
+  private static final SoundexStatement[][] GIVEN_AND_FAMILY_NAME_ROWS_STATEMENTS = new SoundexStatement[MAX_CODE_LENGTH][MAX_CODE_LENGTH];
+
+  /**
+   * keyset paged given name, family name and given and family name queries of the cursor, in index order. The
+   * family name query is read as two statements, matches on family_name first, then matches on family_name2.
+   */
+  private static final SoundexPagedStatement[] GIVEN_NAME_PAGED_STATEMENTS = new SoundexPagedStatement[MAX_CODE_LENGTH];
+  private static final SoundexPagedStatement[][] FAMILY_NAME_PAGED_STATEMENTS = new SoundexPagedStatement[MAX_CODE_LENGTH][];
+  private static final SoundexPagedStatement[][] GIVEN_AND_FAMILY_NAME_PAGED_STATEMENTS = new SoundexPagedStatement[MAX_CODE_LENGTH][MAX_CODE_LENGTH];
+
+  static {
+    for (int length = 1; length <= MAX_CODE_LENGTH; length++) {
+      GIVEN_NAME_STATEMENTS[length - 1] = new SoundexStatement(givenNameSql(length));
+      FAMILY_NAME_STATEMENTS[length - 1] = new SoundexStatement(familyNameSql(length));
+      SINGLE_NAME_STATEMENTS[length - 1] = new SoundexStatement(singleNameSql(length));
+      ANY_NAME_STATEMENTS[length - 1] = new SoundexStatement(anyNameSql(length));
+      ANY_NAME_ROWS_STATEMENTS[length - 1] = new SoundexStatement(SELECT_NAMES + anyNameCondition(length));
+      GIVEN_NAME_PAGED_STATEMENTS[length - 1] = new SoundexPagedStatement(FROM_PATIENT_NAMES + givenNameCondition(length),
+              pageKeys("given_name", length));
+      FAMILY_NAME_PAGED_STATEMENTS[length - 1] = new SoundexPagedStatement[] {
+        new SoundexPagedStatement(FROM_PATIENT_NAMES + "AND " + prefixColumn("family_name", length) + " = :code ",
+                pageKeys("family_name", length)),
+        new SoundexPagedStatement(FROM_PATIENT_NAMES + "AND " + prefixColumn("family_name2", length) + " = :code ",
+                pageKeys("family_name2", length))
+      };
+      for (int familyLength = 1; familyLength <= MAX_CODE_LENGTH; familyLength++) {
+        GIVEN_AND_FAMILY_NAME_STATEMENTS[length - 1][familyLength - 1] = new SoundexStatement(givenAndFamilyNameSql(length, familyLength));
+        GIVEN_AND_FAMILY_NAME_ROWS_STATEMENTS[length - 1][familyLength - 1] = new SoundexStatement(
+                SELECT_NAMES + givenAndFamilyNameCondition(length, familyLength));
+        GIVEN_AND_FAMILY_NAME_PAGED_STATEMENTS[length - 1][familyLength - 1] = new SoundexPagedStatement(
+                FROM_PATIENT_NAMES + givenAndFamilyNameCondition(length, familyLength), pageKeys("given_name", length));
+      }
+    }
+  }
+
   /** logger */
   private Log log = LogFactory.getLog(this.getClass());
 
-  /** soundex encoder instance. */
-  private static SoundexEncoder soundexEncoder = new SoundexEncoder();
-
   /**
    * Perform static checking whether the given method matches. If this
    * returns <code>false</code> or if the {@link #isRuntime()} method
@@ -90,8 +215,8 @@ public class PatientServiceAroundAdvisor extends StaticMethodMatcherPointcutAdvi
    * @param name the search string
    * @return SQL query
    */
-  public String buildSoundexGivenNameQueryString(String name) {
-    return   buildSoundexGivenNameQueryString(name, SoundexRuntimePropertyAccess.getDefaultSqlLimit());
+  public SoundexQuery buildSoundexGivenNameQuery(String name) {
+    return buildSoundexGivenNameQuery(name, SoundexRuntimePropertyAccess.getDefaultSqlLimit());
   }
 
   /**
@@ -100,112 +225,521 @@ public class PatientServiceAroundAdvisor extends StaticMethodMatcherPointcutAdvi
    * @param limit the limit parameter for the sql query
    * @return SQL query
    */
-  public String buildSoundexGivenNameQueryString(String name, int limit) {
-
-    String soundex_code = soundexEncoder.encode(name);
-    name = name.replaceAll("'", "\'"); // mask for SQL
-
-    return "SELECT distinct patient.patient_id " +
-                    "FROM person_name_code " +
-                    "INNER JOIN person_name ON person_name_code.person_name_id = person_name.person_name_id " +
-                    "INNER JOIN patient ON patient.patient_id = person_name.person_id " +
-                    "WHERE patient.voided = 0 AND person_name.voided = 0 AND given_name_code LIKE '" + soundex_code + "%' " +
-              "ORDER BY " +
-                 "CASE INSTR(given_name,'" + name + "') WHEN 0 THEN 9999 ELSE INSTR(given_name,'" + name + "') END ASC, " +
-                 "CASE INSTR(given_name_code,'" + soundex_code + "') WHEN 0 THEN 9999 ELSE INSTR(given_name_code,'" + soundex_code + "') END ASC, " +
-                 "ABS(LENGTH(given_name_code) - LENGTH('" + soundex_code + "')) ASC, " +
-                 "given_name ASC, " +
-                 "family_name ASC " +
-              "LIMIT " + limit + ";";
+  public SoundexQuery buildSoundexGivenNameQuery(String name, int limit) {
+    return bindSingleName(GIVEN_NAME_STATEMENTS, name, limit);
   }
 
   /**
    * Construct a SQL query for searching on family names with soundex matches.
    * @param name the search string
-   * @return SQL query string
+   * @return SQL query
    */
-  public String buildSoundexFamilyNameQueryString(String name) {
-    return buildSoundexFamilyNameQueryString(name, SoundexRuntimePropertyAccess.getDefaultSqlLimit());
+  public SoundexQuery buildSoundexFamilyNameQuery(String name) {
+    return buildSoundexFamilyNameQuery(name, SoundexRuntimePropertyAccess.getDefaultSqlLimit());
   }
 
   /**
    * Construct a SQL query for searching on family names with soundex matches including the required ordering.
    * @param name the search string
    * @param limit the limit parameter for the sql query
-   * @return SQL query string
+   * @return SQL query
    */
-  public String buildSoundexFamilyNameQueryString(String name, int limit) {
-
-    String soundex_code = soundexEncoder.encode(name);
-    name = name.replaceAll("'", "\'"); // mask for SQL
+  public SoundexQuery buildSoundexFamilyNameQuery(String name, int limit) {
+    return bindSingleName(FAMILY_NAME_STATEMENTS, name, limit);
+  }
 
-    return "SELECT distinct patient.patient_id " +
-                    "FROM person_name_code " +
-                    "INNER JOIN person_name ON person_name_code.person_name_id = person_name.person_name_id " +
-                    "INNER JOIN patient ON patient.patient_id = person_name.person_id " +
-                    "WHERE patient.voided = 0 AND person_name.voided = 0 AND (family_name_code LIKE '" + soundex_code + "%' OR family_name2_code LIKE '" + soundex_code + "%') " +
-              "ORDER BY " +
-                 "CASE INSTR(family_name,'" + name + "') WHEN 0 THEN 9999 ELSE INSTR(family_name,'" + name + "') END ASC, " +
-                 "CASE INSTR(family_name_code,'" + soundex_code + "') WHEN 0 THEN 9999 ELSE INSTR(family_name_code,'" + soundex_code + "') END ASC, " +
-                 "ABS(LENGTH(family_name_code) - LENGTH('" + soundex_code + "')) ASC, " +
-                 "family_name ASC, " +
-                 "given_name ASC " + 
-              "LIMIT " + limit + ";";
+  /**
+   * Construct a SQL query for searching on family names and on given names with soundex matches.
+   * @param name the search string
+   * @return SQL query
+   */
+  public SoundexQuery buildSoundexSingleNameQuery(String name) {
+    return buildSoundexSingleNameQuery(name, SoundexRuntimePropertyAccess.getDefaultSqlLimit());
+  }
 
+  /**
+   * Construct a SQL query that combines the family name query and the given name query in a single round trip.
+   * Each row carries the source tag ({@link #FAMILY_NAME_SOURCE} or {@link #GIVEN_NAME_SOURCE}) and the sort keys
+   * of its source query. Rows are ordered by source and sort keys; a patient with several matching names has a row
+   * per name.
+   * @param name the search string
+   * @param limit the limit parameter for each of the two sql queries
+   * @return SQL query
+   */
+  public SoundexQuery buildSoundexSingleNameQuery(String name, int limit) {
+    return bindSingleName(SINGLE_NAME_STATEMENTS, name, limit);
   }
 
   /**
    * Construct the SQL query that retrieves Soundex Matches for the provided given_name and family_name combination.
    * @param given_name the given name of the patient to search
    * @param family_name the family name of the patient to search
-   * @return SQL query string
+   * @return SQL query
    */
-  public String buildSoundexGivenAndFamilyNameQueryString(String given_name, String family_name) {
-    return buildSoundexGivenAndFamilyNameQueryString(given_name, family_name, SoundexRuntimePropertyAccess.getDefaultSqlLimit());
+  public SoundexQuery buildSoundexGivenAndFamilyNameQuery(String given_name, String family_name) {
+    return buildSoundexGivenAndFamilyNameQuery(given_name, family_name, SoundexRuntimePropertyAccess.getDefaultSqlLimit());
   }
 
   /**
    * Construct the SQL query that retrieves Soundex Matches for the provided given_name and family_name combination.
    * @param given_name the given name of the patient to search
    * @param family_name the family name of the patient to search
-   * @return SQL query string
+   * @param limit the limit parameter for the sql query
+   * @return SQL query
    */
-  public String buildSoundexGivenAndFamilyNameQueryString(String given_name, String family_name, int limit) {
+  public SoundexQuery buildSoundexGivenAndFamilyNameQuery(String given_name, String family_name, int limit) {
+    return bindGivenAndFamilyName(given_name, family_name, SoundexContext.getEncoder().encode(given_name),
+            SoundexContext.getEncoder().encode(family_name), limit);
+  }
 
-    String soundex_code_given_name  = soundexEncoder.encode(given_name);
-    String soundex_code_family_name = soundexEncoder.encode(family_name);
-    given_name = given_name.replaceAll("'", "\'"); // mask for SQL
-    family_name = family_name.replaceAll("'", "\'"); // mask for SQL
+  /**
+   * Bind the parameters of the given name and family name statement.
+   * @param given_name the given name of the patient to search
+   * @param family_name the family name of the patient to search
+   * @param soundex_code_given_name the soundex code of the given name
+   * @param soundex_code_family_name the soundex code of the family name
+   * @param limit the limit parameter for the sql query
+   * @return SQL query
+   */
+  private static SoundexQuery bindGivenAndFamilyName(String given_name, String family_name, String soundex_code_given_name,
+                                                     String soundex_code_family_name, int limit) {
+    return GIVEN_AND_FAMILY_NAME_STATEMENTS[statementIndex(soundex_code_given_name)][statementIndex(soundex_code_family_name)].bind()
+            .set("givenName", given_name)
+            .set("givenCode", soundex_code_given_name)
+            .set("givenCodeLength", codeLength(soundex_code_given_name))
+            .set("familyName", family_name)
+            .set("familyCode", soundex_code_family_name)
+            .set("familyCodeLength", codeLength(soundex_code_family_name))
+            .set("limit", limit);
+  }
 
+  /**
+   * Open a paged soundex search. Unlike the intercepted getPatients(String), the search is not limited by the
+   * sql limit and the result limit, and patients are loaded as the cursor is consumed. With the in-memory index
+   * the ranking is the one of getPatients(String), patients ranking equally are ordered by their ids. On the
+   * database, patient ids are read one keyset page at a time in the order of the code prefix indexes, so that
+   * each page costs the same however deep it is: names with the shortest codes first, i.e. closest in length to
+   * the query code, then by person name id. Single name searches read family_name matches before family_name2
+   * matches and alternate family and given name matches as getPatients(String) does.
+   * @param query the soundex query without activator code
+   * @param pageSize the number of patients read and loaded at a time
+   * @return the cursor, to be consumed within the current Hibernate session
+   */
+  public SoundexSearchCursor openSoundexSearch(String query, int pageSize) {
+    if (pageSize <= 0) {
+      throw new IllegalArgumentException("page size must be positive: " + pageSize);
+    }
+    final String[] names = splitNames(query);
+    final Session session = getCurrentSession();
+    final SoundexIndex index = SoundexRuntimePropertyAccess.isIndexEnabled() ? SoundexContext.getIndex() : null;
+    final Iterator<Integer> patientIds;
+    if (names.length == 0) {
+      patientIds = Collections.<Integer>emptyList().iterator();
+    } else if (names.length == 1) {
+      final String soundex_code = SoundexContext.getEncoder().encode(names[0]);
+      if (index != null) {
+        patientIds = new AlternatingPatientIdIterator(index.findFamilyName(names[0], soundex_code, Integer.MAX_VALUE).iterator(),
+                index.findGivenName(names[0], soundex_code, Integer.MAX_VALUE).iterator(), GROUP_SIZE);
+      } else {
+        final Map<String, Object> parameters = new HashMap<String, Object>();
+        parameters.put("code", soundex_code);
+        patientIds = new AlternatingPatientIdIterator(
+                new KeysetPatientIdIterator(session, FAMILY_NAME_PAGED_STATEMENTS[statementIndex(soundex_code)], parameters, pageSize),
+                new KeysetPatientIdIterator(session, new SoundexPagedStatement[] {GIVEN_NAME_PAGED_STATEMENTS[statementIndex(soundex_code)]},
+                        parameters, pageSize), GROUP_SIZE);
+      }
+    } else if (names.length > 2) {
+      // there is no paged statement for three or more names, the candidates are ranked as a whole
+      final String[] codes = new String[names.length];
+      for (int i = 0; i < names.length; i++) {
+        codes[i] = SoundexContext.getEncoder().encode(names[i]);
+      }
+      patientIds = findAllNames(session, index, names, codes, Integer.MAX_VALUE, null).iterator();
+    } else {
+      final String soundex_code_given_name = SoundexContext.getEncoder().encode(names[0]);
+      final String soundex_code_family_name = SoundexContext.getEncoder().encode(names[1]);
+      if (index != null) {
+        patientIds = index.findGivenAndFamilyName(names[0], names[1], soundex_code_given_name, soundex_code_family_name,
+                Integer.MAX_VALUE).iterator();
+      } else {
+        final Map<String, Object> parameters = new HashMap<String, Object>();
+        parameters.put("givenCode", soundex_code_given_name);
+        parameters.put("familyCode", soundex_code_family_name);
+        patientIds = new KeysetPatientIdIterator(session, new SoundexPagedStatement[] {GIVEN_AND_FAMILY_NAME_PAGED_STATEMENTS
+                [statementIndex(soundex_code_given_name)][statementIndex(soundex_code_family_name)]}, parameters, pageSize);
+      }
+    }
+    return new SoundexSearchCursor(session, patientIds, pageSize);
+  }
+
+  /**
+   * Find the patients matching all of the given names, see {@link org.openmrs.module.soundex.index.SoundexRanking#allNames(String[], String[])}.
+   * Without index, the candidate ids of each name are read from the database and intersected, then the names of
+   * the remaining candidates are read and ranked.
+   * @param session the hibernate session
+   * @param index the in-memory index or null, if the database is to be searched
+   * @param names the search strings
+   * @param codes the soundex codes of the search strings
+   * @param limit the maximum number of patients
+   * @param trace receives the statements and row counts, may be null
+   * @return ranked patient ids
+   */
+  private static List<Integer> findAllNames(Session session, SoundexIndex index, String[] names, String[] codes, int limit,
+                                            SearchTrace trace) {
+    if (index != null) {
+      return index.findAllNames(names, codes, limit);
+    }
+    final List<int[]> candidateSets = new ArrayList<int[]>(codes.length);
+    for (String code : codes) {
+      // names without code match nothing and are left out, as in the index
+      if (code != null) {
+        final SoundexQuery query = ANY_NAME_STATEMENTS[statementIndex(code)].bind().set("code", code);
+        if (trace != null) {
+          trace.addStatement(query);
+        }
+        final List<Integer> candidateIds = listPatientIds(session, query);
+        if (trace != null) {
+          trace.addSqlRows(candidateIds.size());
+        }
+        final int[] values = new int[candidateIds.size()];
+        for (int i = 0; i < values.length; i++) {
+          values[i] = candidateIds.get(i);
+        }
+        candidateSets.add(IntArrays.sortedDistinct(values, values.length));
+      }
+    }
+    final int[] patientIds = IntArrays.intersectAll(candidateSets.toArray(new int[candidateSets.size()][]));
+    try {
+      return SoundexIndexLoader.load(session.connection(), patientIds).findAllNames(names, codes, limit);
+    } catch (SQLException e) {
+      throw new APIException("Soundex search failed: loading the names of " + patientIds.length + " candidates", e);
+    }
+  }
+
+  /**
+   * Split a soundex query into names. Names are separated by blanks, a comma directly before a blank is dropped.
+   * @param query the soundex query without activator code
+   * @return the names, empty if the query is blank
+   */
+  static String[] splitNames(String query) {
+    final int length = query.length();
+    int count = 0;
+    for (int i = 0; i < length; ) {
+      i = skipSeparators(query, i);
+      if (i < length) {
+        count++;
+        i = endOfName(query, i);
+      }
+    }
+    final String[] names = new String[count];
+    int name = 0;
+    for (int i = 0; i < length; ) {
+      i = skipSeparators(query, i);
+      if (i < length) {
+        final int end = endOfName(query, i);
+        names[name++] = query.substring(i, end);
+        i = end;
+      }
+    }
+    return names;
+  }
+
+  private static boolean isSeparator(String query, int i) {
+    final char c = query.charAt(i);
+    return c <= ' ' || (c == ',' && i + 1 < query.length() && query.charAt(i + 1) <= ' ');
+  }
+
+  private static int skipSeparators(String query, int i) {
+    while (i < query.length() && isSeparator(query, i)) {
+      i++;
+    }
+    return i;
+  }
+
+  private static int endOfName(String query, int i) {
+    while (i < query.length() && !isSeparator(query, i)) {
+      i++;
+    }
+    return i;
+  }
+
+  /**
+   * Get the activator code matcher, rebuilt if the activator code alias has changed.
+   * @return the matcher
+   */
+  private static SoundexActivatorMatcher getActivatorMatcher() {
+    final String alias = SoundexRuntimePropertyAccess.getActivatorCodeAlias();
+    SoundexActivatorMatcher matcher = activatorMatcher;
+    if (!matcher.hasAlias(alias)) {
+      matcher = new SoundexActivatorMatcher(DEFAULT_SOUNDEX_ACTIVATION_CODES, alias);
+      activatorMatcher = matcher;
+    }
+    return matcher;
+  }
+
+  /**
+   * Bind the parameters of a statement that searches for a single name.
+   * @param statements the statement templates per code length
+   * @param name the search string
+   * @param limit the limit parameter for the sql query
+   * @return SQL query
+   */
+  private static SoundexQuery bindSingleName(SoundexStatement[] statements, String name, int limit) {
+    return bindSingleName(statements, name, SoundexContext.getEncoder().encode(name), limit);
+  }
+
+  /**
+   * Bind the parameters of a statement that searches for a single name.
+   * @param statements the statement templates per code length
+   * @param name the search string
+   * @param soundex_code the soundex code of the search string
+   * @param limit the limit parameter for the sql query
+   * @return SQL query
+   */
+  private static SoundexQuery bindSingleName(SoundexStatement[] statements, String name, String soundex_code, int limit) {
+    final SoundexStatement statement = statements[statementIndex(soundex_code)];
+    final SoundexQuery query = statement.bind()
+            .set("name", name)
+            .set("code", soundex_code)
+            .set("limit", limit);
+    // only the family name query ranks by the difference in code length
+    if (statement.hasParameter("codeLength")) {
+      query.set("codeLength", codeLength(soundex_code));
+    }
+    return query;
+  }
+
+  /**
+   * Bind the candidate name query of any name matching a code.
+   * @param soundex_code the soundex code
+   * @return SQL query
+   */
+  private static SoundexQuery bindAnyNameRows(String soundex_code) {
+    return ANY_NAME_ROWS_STATEMENTS[statementIndex(soundex_code)].bind().set("code", soundex_code);
+  }
+
+  /**
+   * Bind the candidate name query of a given name and a family name.
+   * @param soundex_code_given_name the soundex code of the given name
+   * @param soundex_code_family_name the soundex code of the family name
+   * @return SQL query
+   */
+  private static SoundexQuery bindGivenAndFamilyNameRows(String soundex_code_given_name, String soundex_code_family_name) {
+    return GIVEN_AND_FAMILY_NAME_ROWS_STATEMENTS[statementIndex(soundex_code_given_name)][statementIndex(soundex_code_family_name)].bind()
+            .set("givenCode", soundex_code_given_name)
+            .set("familyCode", soundex_code_family_name);
+  }
+
+  /**
+   * Get the length of a soundex code.
+   * @param soundex_code the soundex code, may be null
+   * @return the length or null, if no code is given
+   */
+  private static Integer codeLength(String soundex_code) {
+    return soundex_code == null ? null : soundex_code.length();
+  }
+
+  /**
+   * Execute a soundex query on the current session.
+   * @param query the query
+   * @return the patient ids found
+   */
+  private static List<Integer> listPatientIds(SoundexQuery query) {
+    return listPatientIds(getCurrentSession(), query);
+  }
+
+  /**
+   * Execute a soundex query.
+   * @param session the hibernate session
+   * @param query the query
+   * @return the patient ids found
+   */
+  private static List<Integer> listPatientIds(Session session, SoundexQuery query) {
+    try {
+      return query.listPatientIds(session.connection());
+    } catch (SQLException e) {
+      throw new APIException("Soundex search failed: " + query, e);
+    }
+  }
+
+  /**
+   * Read the candidate names of a soundex query on the current session.
+   * @param query the query selecting the columns of SELECT_NAMES
+   * @return the name entries found
+   */
+  private static List<NameEntry> listNames(SoundexQuery query) {
+    try {
+      final PreparedStatement statement = query.prepare(getCurrentSession().connection());
+      try {
+        return SoundexIndexLoader.readNames(statement.executeQuery());
+      } finally {
+        statement.close();
+      }
+    } catch (SQLException e) {
+      throw new APIException("Soundex search failed: " + query, e);
+    }
+  }
+
+  /**
+   * Get the column that matches soundex codes of the given length by equality, i.e. the prefix column of that length
+   * or the code column itself for codes of maximum length.
+   * @param name the name column (given_name, family_name or family_name2)
+   * @param codeLength the length of the query code
+   * @return column name
+   */
+  private static String prefixColumn(String name, int codeLength) {
+    return codeLength < MAX_CODE_LENGTH ? name + "_code_p" + codeLength : name + "_code";
+  }
+
+  /**
+   * Get the sort keys of a keyset paged query, the columns of the index that matches codes of the given length:
+   * the code length and the person name id, or the person name id alone for codes of maximum length, whose
+   * candidates all have codes of that length.
+   * @param name the name column (given_name, family_name or family_name2)
+   * @param codeLength the length of the query code
+   * @return sort keys
+   */
+  private static String[] pageKeys(String name, int codeLength) {
+    return codeLength < MAX_CODE_LENGTH
+            ? new String[] {name + "_code_length", "person_name_code.person_name_id"}
+            : new String[] {"person_name_code.person_name_id"};
+  }
+
+  /**
+   * Get the template index for a soundex code. Queries without code match nothing, whatever template is used.
+   * @param soundex_code the soundex code, may be null
+   * @return template index
+   */
+  private static int statementIndex(String soundex_code) {
+    return soundex_code == null ? MAX_CODE_LENGTH - 1 : Math.min(soundex_code.length(), MAX_CODE_LENGTH) - 1;
+  }
+
+  /**
+   * Given name query, parameters name, code and limit.
+   * All candidates start with the query code, so the position of the code within the candidate code is always 1
+   * and the difference in length is ordered by the length of the candidate code.
+   * @param codeLength the length of the query code
+   * @return SQL query
+   */
+  private static String givenNameSql(int codeLength) {
+    return SELECT_PATIENTS + givenNameCondition(codeLength) + orderBy(GIVEN_NAME_KEYS) + "LIMIT :limit";
+  }
+
+  private static String givenNameCondition(int codeLength) {
+    return "AND " + prefixColumn("given_name", codeLength) + " = :code ";
+  }
+
+  /**
+   * Family name query, parameters name, code, codeLength and limit.
+   * Candidates that only match on family_name2 are ranked by the position of the code within the family name code.
+   * @param codeLength the length of the query code
+   * @return SQL query
+   */
+  private static String familyNameSql(int codeLength) {
+    return SELECT_PATIENTS + familyNameCondition(codeLength) + orderBy(familyNameKeys(codeLength)) + "LIMIT :limit";
+  }
+
+  private static String familyNameCondition(int codeLength) {
+    return "AND (" + prefixColumn("family_name", codeLength) + " = :code OR " + prefixColumn("family_name2", codeLength) + " = :code) ";
+  }
+
+  /**
+   * Get the sort keys of the family name query.
+   * @param codeLength the length of the query code
+   * @return sort keys
+   */
+  private static String[] familyNameKeys(int codeLength) {
+    return new String[] {
+      "CASE INSTR(family_name, :name) WHEN 0 THEN 9999 ELSE INSTR(family_name, :name) END",
+      "CASE WHEN " + prefixColumn("family_name", codeLength) + " = :code THEN 1 WHEN INSTR(family_name_code, :code) = 0 THEN 9999 ELSE INSTR(family_name_code, :code) END",
+      "ABS(family_name_code_length - :codeLength)",
+      "family_name",
+      "given_name"
+    };
+  }
+
+  /**
+   * Combined family name and given name query for a single name, parameters name, code, codeLength and limit.
+   * Each part selects its sort keys as columns rank1 to rank5, so that the union can be ordered by source and rank
+   * without relying on the order of the parts.
+   * @param codeLength the length of the query code
+   * @return SQL query
+   */
+  private static String singleNameSql(int codeLength) {
+    final String[] familyNameKeys = familyNameKeys(codeLength);
+    // the given name query has no third sort key, a constant keeps its names in the string columns rank4 and rank5
+    final String[] givenNameKeys = {GIVEN_NAME_KEYS[0], GIVEN_NAME_KEYS[1], "0", GIVEN_NAME_KEYS[2], GIVEN_NAME_KEYS[3]};
+    final String[] ranks = {"rank1", "rank2", "rank3", "rank4", "rank5"};
     return
-      "SELECT distinct patient.patient_id " +
-        "FROM person_name_code " +
-        "INNER JOIN person_name ON person_name_code.person_name_id = person_name.person_name_id " +
-        "INNER JOIN patient ON patient.patient_id = person_name.person_id " +
+      "(SELECT '" + FAMILY_NAME_SOURCE + "' AS source, patient.patient_id" + rankColumns(familyNameKeys) + FROM_PATIENT_NAMES +
+        familyNameCondition(codeLength) + orderBy(ranks) + "LIMIT :limit) " +
+      "UNION ALL " +
+      "(SELECT '" + GIVEN_NAME_SOURCE + "' AS source, patient.patient_id" + rankColumns(givenNameKeys) + FROM_PATIENT_NAMES +
+        givenNameCondition(codeLength) + orderBy(ranks) + "LIMIT :limit) " +
+      "ORDER BY source ASC, " + orderBy(ranks).substring("ORDER BY ".length());
+  }
 
-        "WHERE patient.voided = 0 AND person_name.voided = 0 " +
-          "AND (given_name_code LIKE '" + soundex_code_given_name + "%' " +
-                "AND (family_name_code LIKE '" + soundex_code_family_name + "%' " +
-                      "OR family_name2_code LIKE '" + soundex_code_family_name + "%') " +
-          ") " +
+  /**
+   * Build the select list entries of sort keys, named rank1, rank2 and so on.
+   * @param keys the sort keys
+   * @return select list entries, each preceded by a comma
+   */
+  private static String rankColumns(String[] keys) {
+    final StringBuilder columns = new StringBuilder();
+    for (int i = 0; i < keys.length; i++) {
+      columns.append(", ").append(keys[i]).append(" AS rank").append(i + 1);
+    }
+    return columns.append(' ').toString();
+  }
 
-        "ORDER BY " +
-          "CASE WHEN (INSTR(family_name,'" + family_name + "') > 0 OR INSTR(family_name2,'" + family_name + "') > 0 ) AND INSTR(given_name,'" + given_name + "') > 0 THEN 1 ELSE 2 END ASC, " +
-          "CASE WHEN (INSTR(family_name,'" + family_name + "') > 0 OR INSTR(family_name2,'" + family_name + "') > 0 ) AND INSTR(given_name,'" + given_name + "') = 0 THEN 1 ELSE 2 END ASC, " +
-          "CASE WHEN (INSTR(family_name,'" + family_name + "') = 0 AND INSTR(family_name2,'" + family_name + "') = 0 ) AND INSTR(given_name,'" + given_name + "') > 0 THEN 1 ELSE 2 END ASC, " +
-          "ABS(LENGTH(family_name) - LENGTH('" + soundex_code_family_name + "')) ASC, " +
-          "ABS(LENGTH(given_name) - LENGTH('" + soundex_code_given_name + "')) ASC, " +
+  /**
+   * Given name and family name query, parameters givenName, givenCode, givenCodeLength, familyName, familyCode,
+   * familyCodeLength and limit.
+   * Candidates always match both codes by prefix, so the ordering by the positions of the codes is left out.
+   * @param givenCodeLength the length of the given name query code
+   * @param familyCodeLength the length of the family name query code
+   * @return SQL query
+   */
+  private static String givenAndFamilyNameSql(int givenCodeLength, int familyCodeLength) {
+    return SELECT_PATIENTS + givenAndFamilyNameCondition(givenCodeLength, familyCodeLength) + orderBy(GIVEN_AND_FAMILY_NAME_KEYS) + "LIMIT :limit";
+  }
 
-          "CASE WHEN (INSTR(family_name_code,'" + soundex_code_family_name + "') > 0 OR INSTR(family_name2_code,'" + soundex_code_family_name + "') > 0 ) AND INSTR(given_name_code,'" + soundex_code_given_name + "') > 0 THEN 1 ELSE 2 END ASC, " +
-          "CASE WHEN (INSTR(family_name_code,'" + soundex_code_family_name + "') > 0 OR INSTR(family_name2_code,'" + soundex_code_family_name + "') > 0 ) AND INSTR(given_name_code,'" + soundex_code_given_name + "') = 0 THEN 1 ELSE 2 END ASC, " +
-          "CASE WHEN (INSTR(family_name_code,'" + soundex_code_family_name + "') = 0 AND INSTR(family_name2_code,'" + soundex_code_family_name + "') = 0 ) AND INSTR(given_name_code,'" + soundex_code_given_name + "') > 0 THEN 1 ELSE 2 END ASC, " +
+  private static String givenAndFamilyNameCondition(int givenCodeLength, int familyCodeLength) {
+    return
+        "AND (" + prefixColumn("given_name", givenCodeLength) + " = :givenCode " +
+              "AND (" + prefixColumn("family_name", familyCodeLength) + " = :familyCode " +
+                    "OR " + prefixColumn("family_name2", familyCodeLength) + " = :familyCode) " +
+        ") ";
+  }
 
-          "family_name ASC, " +
-          "given_name ASC, " +
-          "family_name2 ASC " +
+  /**
+   * Query for the candidates of one name of a query of three or more names, parameter code. Patients match if any of
+   * their given names, family names or second family names matches the code. The candidates are ranked in Java.
+   * @param codeLength the length of the query code
+   * @return SQL query
+   */
+  private static String anyNameSql(int codeLength) {
+    return SELECT_PATIENTS + anyNameCondition(codeLength);
+  }
 
-        "LIMIT " + limit + ";";
+  private static String anyNameCondition(int codeLength) {
+    return
+        "AND (" + prefixColumn("given_name", codeLength) + " = :code " +
+              "OR " + prefixColumn("family_name", codeLength) + " = :code " +
+              "OR " + prefixColumn("family_name2", codeLength) + " = :code) ";
+  }
 
+  /**
+   * Build an ORDER BY clause of ascending sort keys.
+   * @param keys the sort keys
+   * @return ORDER BY clause
+   */
+  private static String orderBy(String[] keys) {
+    final StringBuilder orderBy = new StringBuilder("ORDER BY ");
+    for (int i = 0; i < keys.length; i++) {
+      orderBy.append(keys[i]).append(i < keys.length - 1 ? " ASC, " : " ASC ");
+    }
+    return orderBy.toString();
   }
 
   /**
@@ -231,20 +765,33 @@ public class PatientServiceAroundAdvisor extends StaticMethodMatcherPointcutAdvi
       List<Patient> results;
 
       String searchType = "";
-      final long start = System.currentTimeMillis();
+      final SearchTrace trace = new SearchTrace();
+      final long start = System.nanoTime();
 
-      if (isSoundexSearch(query)) {
+      final String effectiveQuery = getEffectiveSoundexQuery(query);
+      final long mark = trace.endPhase(SearchPhase.ACTIVATOR, start);
+      if (effectiveQuery != null) {
         searchType = "soundex";
-        results = executeSoundexSearch(getEffectiveSoundexQuery(query));
+        results = executeSoundexSearch(effectiveQuery, trace);
       } else {
         searchType = "conventional";
         Object o = invocation.proceed();
         results = (List<Patient>) o;
+        trace.endPhase(SearchPhase.SQL, mark);
+        trace.addSqlRows(results == null ? 0 : results.size());
+      }
+      trace.setReturnedRows(results == null ? 0 : results.size());
+      trace.finish();
+      SoundexContext.getSearchMetrics().record(trace);
+      final SlowSearchLog slowSearchLog = SoundexContext.getSlowSearchLog();
+      if (effectiveQuery != null && slowSearchLog != null && slowSearchLog.isSlow(trace)) {
+        slowSearchLog.record(trace);
       }
 
-      final long end = System.currentTimeMillis();
-      String time = NumberFormat.getIntegerInstance().format((end-start));
-      log.debug(searchType + " search found " + results.size() + " records for query '" + query + "' in " + time + " ms.");
+      if (log.isDebugEnabled()) {
+        String time = NumberFormat.getIntegerInstance().format(trace.getTotalNanos() / 1000000);
+        log.debug(searchType + " search found " + trace.getReturnedRows() + " records for query '" + query + "' in " + time + " ms.");
+      }
 
       return results;
     }
@@ -255,18 +802,8 @@ public class PatientServiceAroundAdvisor extends StaticMethodMatcherPointcutAdvi
      * @return the effective soundex query without the soundex descriminator if a descriminator is found,
      * null otherwise
      */
-    private String getEffectiveSoundexQuery(String query) {
-      Collection<String> soundexActivationCodes = new ArrayList<String>(DEFAULT_SOUNDEX_ACTIVATION_CODES);
-      soundexActivationCodes.add(SoundexRuntimePropertyAccess.getActivatorCodeAlias());
-      for (String soundexActivator: soundexActivationCodes) {
-        if (query.toUpperCase().startsWith(soundexActivator.toUpperCase())) {
-          return query.substring(soundexActivator.length());
-        } else if (query.toUpperCase().endsWith(soundexActivator.toUpperCase())) {
-          return query.substring(0, query.length()-soundexActivator.length());
-        }
-      }
-
-      return null;
+    String getEffectiveSoundexQuery(String query) {
+      return getActivatorMatcher().getEffectiveQuery(query);
     }
 
     /**
@@ -281,82 +818,201 @@ public class PatientServiceAroundAdvisor extends StaticMethodMatcherPointcutAdvi
     /**
      * This method implements the soundex search. If an empty query string is provided, an empty list is returned.
      * If the query is made up of a single string, method executeSingleStringQuery is called.
-     * If the query is made up of more than one string, method executeDoubleStringQuery is called.
+     * If the query is made up of two strings, method executeDoubleStringQuery is called.
+     * If the query is made up of more than two strings, method executeMultiStringQuery is called.
+     * Ranked patient ids are taken from the result cache, if it is enabled.
      * @param query
      * @return
      */
     public List<Patient> executeSoundexSearch(String query) {
+      return executeSoundexSearch(query, new SearchTrace());
+    }
+
+    /**
+     * Run a soundex search, timing its phases.
+     * @param query the effective soundex query
+     * @param trace receives the timings and row counts
+     * @return the patients found
+     */
+    private List<Patient> executeSoundexSearch(String query, SearchTrace trace) {
 
-        String queryString = query.trim();
-        queryString = queryString.replaceAll("  ", " ");
-        queryString = queryString.replace(", ", " ");
-        String[] names = queryString.split(" ");
+        long mark = System.nanoTime();
+        String[] names = splitNames(query);
+        mark = trace.endPhase(SearchPhase.ACTIVATOR, mark);
 
+        trace.setType(names.length < 2 ? SearchType.SINGLE_NAME : names.length == 2 ? SearchType.GIVEN_AND_FAMILY_NAME : SearchType.MULTI_NAME);
         if (names.length == 0) {
           return new ArrayList<Patient>();
-        } else if (names.length == 1) {
-          return executeSingleStringQuery(names[0]);
-        } else {
-          return executeDoubleStringQuery(names[0], names[1]);
         }
+
+        final String[] codes = new String[names.length];
+        for (int i = 0; i < names.length; i++) {
+          codes[i] = SoundexContext.getEncoder().encode(names[i]);
+        }
+        trace.endPhase(SearchPhase.ENCODING, mark);
+        trace.setQuery(query, codes);
+
+        final SearchResultCache cache = SoundexContext.getResultCache();
+        final String cacheKey = cache == null ? null : SearchResultCache.key(names,
+                SoundexRuntimePropertyAccess.getDefaultSqlLimit(), SoundexRuntimePropertyAccess.getDefaultResultLimit());
+        List<Integer> patientIds = cache == null ? null : cache.get(cacheKey);
+        if (patientIds == null) {
+          final long invalidationCount = cache == null ? 0 : cache.getInvalidationCount();
+          if (names.length == 1) {
+            patientIds = executeSingleStringQuery(names[0], codes[0], trace);
+          } else if (names.length == 2) {
+            patientIds = executeDoubleStringQuery(names[0], names[1], codes[0], codes[1], trace);
+          } else {
+            patientIds = executeMultiStringQuery(names, codes, trace);
+          }
+          final List<String> searchedCodes = new ArrayList<String>(Arrays.asList(codes));
+          patientIds = executeNeighbourQueries(names, codes, patientIds, searchedCodes, trace);
+          if (cache != null) {
+            cache.put(cacheKey, patientIds, searchedCodes.toArray(new String[searchedCodes.size()]), invalidationCount);
+          }
+        }
+
+        mark = System.nanoTime();
+        final List<Patient> patients = PatientHydrator.loadPatients(getCurrentSession(), patientIds);
+        trace.endPhase(SearchPhase.HYDRATION, mark);
+        return patients;
     }
 
     /**
-     * This method executes two independent searches. The first for matches in the family name soundex codes,
-     * the second for matches in the given name soundex codes. The results are mixed up in alternating order.
+     * This method searches for matches in the family name soundex codes and for matches in the given name soundex
+     * codes with a single SQL query. The results are mixed up in alternating order.
      * @param name the search string
-     * @return list of patient objects that match the criteria
+     * @param soundex_code the soundex code of the search string
+     * @param trace receives the timings and row counts
+     * @return ids of the patients that match the criteria
      */
-    private List<Patient> executeSingleStringQuery(String name) {
+    private List<Integer> executeSingleStringQuery(String name, String soundex_code, SearchTrace trace) {
 
-      final String familyNameSql = buildSoundexFamilyNameQueryString(name);
-      final SQLQuery familyNameQuery = getCurrentSession().createSQLQuery(familyNameSql);
-      final Iterator<Integer> familyNameIterator = familyNameQuery.list().iterator();
-
-      final String givenNameSql = buildSoundexGivenNameQueryString(name);
-      final SQLQuery givenNameQuery = getCurrentSession().createSQLQuery(givenNameSql);
-      final Iterator<Integer> givenNameIterator = givenNameQuery.list().iterator();
+      long mark = System.nanoTime();
+      final List<Integer> familyNameIds;
+      final List<Integer> givenNameIds;
+      final int sqlRows;
+      final SoundexIndex index = getSearchIndex();
+      if (index != null) {
+        final int limit = SoundexRuntimePropertyAccess.getDefaultSqlLimit();
+        familyNameIds = index.findFamilyName(name, soundex_code, limit);
+        givenNameIds = index.findGivenName(name, soundex_code, limit);
+        sqlRows = familyNameIds.size() + givenNameIds.size();
+      } else if (SoundexRuntimePropertyAccess.isJavaRankingEnabled()) {
+        // one unordered query for the candidate names, both rankings are applied to the same rows
+        final int limit = SoundexRuntimePropertyAccess.getDefaultSqlLimit();
+        final SoundexQuery query = bindAnyNameRows(soundex_code);
+        trace.addStatement(query);
+        final List<NameEntry> names = listNames(query);
+        sqlRows = names.size();
+        familyNameIds = SoundexRanking.familyName(name, soundex_code).rank(names, limit);
+        givenNameIds = SoundexRanking.givenName(name, soundex_code).rank(names, limit);
+      } else {
+        familyNameIds = new ArrayList<Integer>();
+        givenNameIds = new ArrayList<Integer>();
+        final ExecutorService executor = SoundexContext.getQueryExecutor();
+        if (executor != null) {
+          listSingleNamePatientIdsConcurrently(executor, name, soundex_code, familyNameIds, givenNameIds, trace);
+          sqlRows = familyNameIds.size() + givenNameIds.size();
+        } else {
+          sqlRows = listSingleNamePatientIds(name, soundex_code, familyNameIds, givenNameIds, trace);
+        }
+      }
+      trace.addSqlRows(sqlRows);
+      mark = trace.endPhase(SearchPhase.SQL, mark);
 
       // mix up results in alternating order
-      final int GROUP_SIZE = 5;
-      List<Patient> patients = new ArrayList<Patient>();
-      for (int i = 0; i < Math.max(familyNameQuery.list().size(), givenNameQuery.list().size()); i++) {
-
-        addNextPatientGroup(familyNameIterator, patients, GROUP_SIZE);
-
-        if (patients.size() == SoundexRuntimePropertyAccess.getDefaultResultLimit()) {
-            break;
-        }
+      final Iterator<Integer> iterator = new AlternatingPatientIdIterator(familyNameIds.iterator(), givenNameIds.iterator(), GROUP_SIZE);
 
-        addNextPatientGroup(givenNameIterator, patients, GROUP_SIZE);
+      List<Integer> patientIds = new ArrayList<Integer>();
+      while (iterator.hasNext()) {
+        patientIds.add(iterator.next());
 
-        if (patients.size() == SoundexRuntimePropertyAccess.getDefaultResultLimit()) {
+        if (patientIds.size() == SoundexRuntimePropertyAccess.getDefaultResultLimit()) {
           break;
         }
       }
+      trace.endPhase(SearchPhase.MERGE, mark);
 
-      return patients;
+      return patientIds;
     }
 
     /**
-     * Iterate next groupSize results
-     * @param iterator the patient id iterator
-     * @param patients list of patients (result set)
-     * @param groupSize no. of patients to iterate
+     * Run the single name query on the database.
+     * @param name the search string
+     * @param soundex_code the soundex code of the search string
+     * @param familyNameIds receives the ranked family name matches
+     * @param givenNameIds receives the ranked given name matches
+     * @param trace receives the statement
+     * @return the number of rows read
      */
-    private void addNextPatientGroup(Iterator<Integer> iterator, List<Patient> patients, int groupSize) {
-      for (int j = 0; j < groupSize; j++) {
-        if (iterator.hasNext()) {
-          int patientId = iterator.next();
-          final Patient patient = Context.getPatientService().getPatient(patientId);
-          if (!patients.contains(patient)) {
-            patients.add(patient);
+    private int listSingleNamePatientIds(String name, String soundex_code, List<Integer> familyNameIds, List<Integer> givenNameIds,
+                                         SearchTrace trace) {
+
+      final SoundexQuery query = bindSingleName(SINGLE_NAME_STATEMENTS, name, soundex_code, SoundexRuntimePropertyAccess.getDefaultSqlLimit());
+      trace.addStatement(query);
+      int rows = 0;
+      try {
+        final PreparedStatement statement = query.prepare(getCurrentSession().connection());
+        try {
+          // rows are ordered by source and rank, a patient keeps the rank of its best matching name
+          final Set<Integer> familyNameMatches = new HashSet<Integer>();
+          final Set<Integer> givenNameMatches = new HashSet<Integer>();
+          final ResultSet resultSet = statement.executeQuery();
+          while (resultSet.next()) {
+            final Integer patientId = resultSet.getInt("patient_id");
+            if (FAMILY_NAME_SOURCE.equals(resultSet.getString("source"))) {
+              if (familyNameMatches.add(patientId)) {
+                familyNameIds.add(patientId);
+              }
+            } else if (givenNameMatches.add(patientId)) {
+              givenNameIds.add(patientId);
+            }
+            rows++;
           }
+        } finally {
+          statement.close();
         }
+      } catch (SQLException e) {
+        throw new APIException("Soundex search failed: " + query, e);
+      }
+      return rows;
+    }
 
-        if (patients.size() == SoundexRuntimePropertyAccess.getDefaultResultLimit()) {
-          break;
-        }
+    /**
+     * Run the family name query and the given name query at the same time, the family name query on the
+     * executor on a read-only session of its own and the given name query on the calling thread on the connection
+     * of the current session, so that a search holds at most one pooled connection besides its own.
+     * @param executor the executor for soundex queries
+     * @param name the search string
+     * @param soundex_code the soundex code of the search string
+     * @param familyNameIds receives the ranked family name matches
+     * @param givenNameIds receives the ranked given name matches
+     * @param trace receives the statements
+     */
+    private void listSingleNamePatientIdsConcurrently(ExecutorService executor, String name, String soundex_code,
+                                                      List<Integer> familyNameIds, List<Integer> givenNameIds, SearchTrace trace) {
+
+      final SessionFactory sessionFactory = Context.getRegisteredComponents(SessionFactory.class).get(0);
+      final int limit = SoundexRuntimePropertyAccess.getDefaultSqlLimit();
+      final SoundexQuery familyNameQuery = bindSingleName(FAMILY_NAME_STATEMENTS, name, soundex_code, limit);
+      final SoundexQuery givenNameQuery = bindSingleName(GIVEN_NAME_STATEMENTS, name, soundex_code, limit);
+      trace.addStatement(familyNameQuery);
+      trace.addStatement(givenNameQuery);
+      final Future<List<Integer>> familyNameResult = executor.submit(new ReadOnlyQueryCallable(sessionFactory, familyNameQuery));
+      try {
+        givenNameIds.addAll(givenNameQuery.listPatientIds(getCurrentSession().connection()));
+      } catch (SQLException e) {
+        familyNameResult.cancel(true);
+        throw new APIException("Soundex search failed: " + givenNameQuery, e);
+      }
+      try {
+        familyNameIds.addAll(familyNameResult.get());
+      } catch (InterruptedException e) {
+        Thread.currentThread().interrupt();
+        throw new APIException("Soundex search interrupted: " + familyNameQuery, e);
+      } catch (ExecutionException e) {
+        throw new APIException("Soundex search failed: " + familyNameQuery, e.getCause());
       }
     }
 
@@ -364,25 +1020,127 @@ public class PatientServiceAroundAdvisor extends StaticMethodMatcherPointcutAdvi
      * This method executes a combined query for given_name and family_name soundex codes.
      * @param given_name the given name
      * @param family_name the family name
-     * @return List of patients that soundex-match the provided names.
+     * @param soundex_code_given_name the soundex code of the given name
+     * @param soundex_code_family_name the soundex code of the family name
+     * @param trace receives the timings and row counts
+     * @return ids of the patients that soundex-match the provided names.
      */
-    private List<Patient> executeDoubleStringQuery(String given_name, String family_name) {
+    private List<Integer> executeDoubleStringQuery(String given_name, String family_name, String soundex_code_given_name,
+                                                   String soundex_code_family_name, SearchTrace trace) {
 
-      final String sql = buildSoundexGivenAndFamilyNameQueryString(given_name, family_name);
-      final SQLQuery query = getCurrentSession().createSQLQuery(sql);
-      final Iterator<Integer> iterator = query.list().iterator();
+      long mark = System.nanoTime();
+      final SoundexIndex index = getSearchIndex();
+      final List<Integer> candidateIds;
+      final int sqlRows;
+      if (index != null) {
+        candidateIds = index.findGivenAndFamilyName(given_name, family_name, soundex_code_given_name,
+                soundex_code_family_name, SoundexRuntimePropertyAccess.getDefaultSqlLimit());
+        sqlRows = candidateIds.size();
+      } else if (SoundexRuntimePropertyAccess.isJavaRankingEnabled()) {
+        final SoundexQuery query = bindGivenAndFamilyNameRows(soundex_code_given_name, soundex_code_family_name);
+        trace.addStatement(query);
+        final List<NameEntry> names = listNames(query);
+        sqlRows = names.size();
+        candidateIds = SoundexRanking.givenAndFamilyName(given_name, family_name, soundex_code_given_name, soundex_code_family_name)
+                .rank(names, SoundexRuntimePropertyAccess.getDefaultSqlLimit());
+      } else {
+        final SoundexQuery query = bindGivenAndFamilyName(given_name, family_name, soundex_code_given_name,
+                soundex_code_family_name, SoundexRuntimePropertyAccess.getDefaultSqlLimit());
+        trace.addStatement(query);
+        candidateIds = listPatientIds(query);
+        sqlRows = candidateIds.size();
+      }
+      trace.addSqlRows(sqlRows);
+      mark = trace.endPhase(SearchPhase.SQL, mark);
+      final Iterator<Integer> iterator = candidateIds.iterator();
 
-      List<Patient> patients = new ArrayList<Patient>();
+      List<Integer> patientIds = new ArrayList<Integer>();
       while (iterator.hasNext()) {
-        final Patient patient = Context.getPatientService().getPatient(iterator.next());
-        patients.add(patient);
+        patientIds.add(iterator.next());
 
-        if (patients.size() == SoundexRuntimePropertyAccess.getDefaultResultLimit()) {
+        if (patientIds.size() == SoundexRuntimePropertyAccess.getDefaultResultLimit()) {
           break;
         }
       }
+      trace.endPhase(SearchPhase.MERGE, mark);
+
+      return patientIds;
+    }
+
+    /**
+     * This method searches for patients matching each of three or more names by any of their names. The candidate
+     * ids of the names are intersected in Java and ranked by the number of names matched within a single name entry.
+     * @param names the search strings
+     * @param codes the soundex codes of the search strings
+     * @param trace receives the timings and row counts
+     * @return ids of the patients that soundex-match all of the provided names
+     */
+    private List<Integer> executeMultiStringQuery(String[] names, String[] codes, SearchTrace trace) {
 
-      return patients;
+      final long mark = System.nanoTime();
+      final SoundexIndex index = getSearchIndex();
+      final List<Integer> candidateIds = findAllNames(getCurrentSession(), index, names, codes,
+              SoundexRuntimePropertyAccess.getDefaultSqlLimit(), index == null ? trace : null);
+      if (index != null) {
+        trace.addSqlRows(candidateIds.size());
+      }
+      trace.endPhase(SearchPhase.SQL, mark);
+      final int resultLimit = SoundexRuntimePropertyAccess.getDefaultResultLimit();
+      return candidateIds.size() > resultLimit ? new ArrayList<Integer>(candidateIds.subList(0, resultLimit)) : candidateIds;
+    }
+
+    /**
+     * Repeat a single name or given and family name search that found too few patients with the existing codes
+     * next to the code of each name (see SoundexCodeDictionary), as a typo in a name may change its code. The
+     * patients found are appended to the ones found before, nearest codes first, up to the result limit.
+     * @param names the search strings
+     * @param codes the soundex codes of the search strings
+     * @param patientIds the ids of the patients found with the codes of the names
+     * @param searchedCodes receives the neighbouring codes searched
+     * @param trace receives the timings and row counts
+     * @return ids of the patients found with the codes of the names and their neighbours
+     */
+    private List<Integer> executeNeighbourQueries(String[] names, String[] codes, List<Integer> patientIds,
+                                                  List<String> searchedCodes, SearchTrace trace) {
+
+      final SoundexCodeDictionary dictionary = SoundexContext.getCodeDictionary();
+      final int resultLimit = SoundexRuntimePropertyAccess.getDefaultResultLimit();
+      if (dictionary == null || names.length > 2 || patientIds.size() >= SoundexRuntimePropertyAccess.getFallbackResults()
+              || patientIds.size() >= resultLimit) {
+        return patientIds;
+      }
+      final List<Integer> result = new ArrayList<Integer>(patientIds);
+      final Set<Integer> seen = new HashSet<Integer>(patientIds);
+      for (int i = 0; i < names.length; i++) {
+        for (String neighbour : dictionary.findNeighbours(codes[i], MAX_NEIGHBOUR_DISTANCE, MAX_NEIGHBOUR_CODES)) {
+          searchedCodes.add(neighbour);
+          final List<Integer> neighbourIds;
+          if (names.length == 1) {
+            neighbourIds = executeSingleStringQuery(names[0], neighbour, trace);
+          } else if (i == 0) {
+            neighbourIds = executeDoubleStringQuery(names[0], names[1], neighbour, codes[1], trace);
+          } else {
+            neighbourIds = executeDoubleStringQuery(names[0], names[1], codes[0], neighbour, trace);
+          }
+          for (Integer patientId : neighbourIds) {
+            if (seen.add(patientId)) {
+              result.add(patientId);
+              if (result.size() >= resultLimit) {
+                return result;
+              }
+            }
+          }
+        }
+      }
+      return result;
+    }
+
+    /**
+     * Get the in-memory index, if searches are to be answered from it.
+     * @return the index or null, if the index is disabled or not loaded yet
+     */
+    private SoundexIndex getSearchIndex() {
+      return SoundexRuntimePropertyAccess.isIndexEnabled() ? SoundexContext.getIndex() : null;
     }
   }
 }
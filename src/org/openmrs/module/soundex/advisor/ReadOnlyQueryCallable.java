@@ -0,0 +1,64 @@
+/**
+ * Copyright (C) 2011 innoQ Deutschland GmbH
+ *
+ * The contents of this file are subject to the OpenMRS Public License
+ * Version 1.0 (the "License"); you may not use this file except in
+ * compliance with the License. You may obtain a copy of the License at
+ * http://license.openmrs.org
+ *
+ * Software distributed under the License is distributed on an "AS IS"
+ * basis, WITHOUT WARRANTY OF ANY KIND, either express or implied. See the
+ * License for the specific language governing rights and limitations
+ * under the License.
+ *
+ * @author Arnd Kleinbeck, innoQ Deutschland GmbH, http://www.innoq.com
+ */
+package org.openmrs.module.soundex.advisor;
+
+import org.hibernate.SessionFactory;
+import org.hibernate.StatelessSession;
+import org.openmrs.module.soundex.SoundexContext;
+
+import java.sql.Connection;
+import java.util.List;
+import java.util.concurrent.Callable;
+
+/**
+ * Runs a soundex query on a read-only connection of its own, so that several queries of one search can
+ * run at the same time. The query does not see uncommitted changes of the calling transaction. The time
+ * to get the connection is recorded in the search metrics.
+ */
+class ReadOnlyQueryCallable implements Callable<List<Integer>> {
+
+  private final SessionFactory sessionFactory;
+  private final SoundexQuery query;
+
+  /**
+   * Constructor.
+   * @param sessionFactory the session factory providing the connection
+   * @param query the query
+   */
+  ReadOnlyQueryCallable(SessionFactory sessionFactory, SoundexQuery query) {
+    this.sessionFactory = sessionFactory;
+    this.query = query;
+  }
+
+  public List<Integer> call() throws Exception {
+    final long start = System.nanoTime();
+    final StatelessSession session = sessionFactory.openStatelessSession();
+    try {
+      final Connection connection = session.connection();
+      SoundexContext.getSearchMetrics().recordReadOnlyConnection(System.nanoTime() - start);
+      final boolean readOnly = connection.isReadOnly();
+      connection.setReadOnly(true);
+      try {
+        return query.listPatientIds(connection);
+      } finally {
+        // the connection goes back to the pool
+        connection.setReadOnly(readOnly);
+      }
+    } finally {
+      session.close();
+    }
+  }
+}
@@ -0,0 +1,105 @@
+/**
+ * Copyright (C) 2011 innoQ Deutschland GmbH
+ *
+ * The contents of this file are subject to the OpenMRS Public License
+ * Version 1.0 (the "License"); you may not use this file except in
+ * compliance with the License. You may obtain a copy of the License at
+ * http://license.openmrs.org
+ *
+ * Software distributed under the License is distributed on an "AS IS"
+ * basis, WITHOUT WARRANTY OF ANY KIND, either express or implied. See the
+ * License for the specific language governing rights and limitations
+ * under the License.
+ *
+ * @author Arnd Kleinbeck, innoQ Deutschland GmbH, http://www.innoq.com
+ */
+package org.openmrs.module.soundex.advisor;
+
+import java.util.ArrayList;
+import java.util.Collection;
+import java.util.List;
+
+/**
+ * Detects soundex activator codes at the start or the end of a search query. The codes are prepared once,
+ * matching compares them to the query in place, ignoring case. Queries that neither start nor end with a
+ * character of some activator code, as most conventional queries, are rejected by two lookups.
+ */
+class SoundexActivatorMatcher {
+
+  /** the activator codes in the order they are tried. */
+  private final String[] codes;
+
+  /** the activator code alias the matcher was built with. */
+  private final String alias;
+
+  /** the first and the last characters of the codes, in upper and lower case. */
+  private final String firstCharacters;
+  private final String lastCharacters;
+
+  /**
+   * Constructor.
+   * @param defaultCodes the default activator codes
+   * @param alias the activator code alias, tried after the default codes, may be null
+   */
+  SoundexActivatorMatcher(Collection<String> defaultCodes, String alias) {
+    final List<String> codeList = new ArrayList<String>(defaultCodes.size() + 1);
+    for (String code : defaultCodes) {
+      addCode(codeList, code);
+    }
+    addCode(codeList, alias);
+    this.codes = codeList.toArray(new String[codeList.size()]);
+    this.alias = alias;
+
+    final StringBuilder first = new StringBuilder();
+    final StringBuilder last = new StringBuilder();
+    for (String code : codes) {
+      addCharacter(first, code.charAt(0));
+      addCharacter(last, code.charAt(code.length() - 1));
+    }
+    this.firstCharacters = first.toString();
+    this.lastCharacters = last.toString();
+  }
+
+  /**
+   * Checks whether the matcher was built with the given alias.
+   * @param alias the activator code alias
+   * @return true, if the alias is the one of this matcher
+   */
+  boolean hasAlias(String alias) {
+    return this.alias == null ? alias == null : this.alias.equals(alias);
+  }
+
+  /**
+   * Get the effective soundex query of a search query.
+   * @param query the search query
+   * @return the query without the activator code if an activator code is found, null otherwise
+   */
+  String getEffectiveQuery(String query) {
+    if (query == null || query.length() == 0 ||
+            (firstCharacters.indexOf(query.charAt(0)) < 0 && lastCharacters.indexOf(query.charAt(query.length() - 1)) < 0)) {
+      return null;
+    }
+    for (String code : codes) {
+      if (query.regionMatches(true, 0, code, 0, code.length())) {
+        return query.substring(code.length());
+      } else if (query.regionMatches(true, query.length() - code.length(), code, 0, code.length())) {
+        return query.substring(0, query.length() - code.length());
+      }
+    }
+    return null;
+  }
+
+  private static void addCode(List<String> codes, String code) {
+    if (code != null && code.length() > 0 && !codes.contains(code)) {
+      codes.add(code);
+    }
+  }
+
+  private static void addCharacter(StringBuilder characters, char c) {
+    for (char variant : new char[] {c, Character.toUpperCase(c), Character.toLowerCase(c)}) {
+      if (characters.indexOf(String.valueOf(variant)) < 0) {
+        characters.append(variant);
+      }
+    }
+  }
+}
@@ -0,0 +1,90 @@
+/**
+ * Copyright (C) 2011 innoQ Deutschland GmbH
+ *
+ * The contents of this file are subject to the OpenMRS Public License
+ * Version 1.0 (the "License"); you may not use this file except in
+ * compliance with the License. You may obtain a copy of the License at
+ * http://license.openmrs.org
+ *
+ * Software distributed under the License is distributed on an "AS IS"
+ * basis, WITHOUT WARRANTY OF ANY KIND, either express or implied. See the
+ * License for the specific language governing rights and limitations
+ * under the License.
+ *
+ * @author Arnd Kleinbeck, innoQ Deutschland GmbH, http://www.innoq.com
+ */
+package org.openmrs.module.soundex.advisor;
+
+/**
+ * Keyset paged variant of a soundex query. The sort keys are columns of person_name_code that follow the order of
+ * the index matching the query code, so that each page is a range scan of that index, however deep it starts:
+ * <pre>
+ *   SELECT patient_id, sort keys ... WHERE ... AND (sort keys) > (:after...) ORDER BY sort keys LIMIT :pageSize
+ * </pre>
+ * The last sort key is the person name id, which makes the order total, so that no name is skipped or repeated.
+ * As a patient may have more than one matching name, a patient id may occur on several pages.
+ */
+class SoundexPagedStatement {
+
+  /** the statement of the first page, parameters of the query and pageSize. */
+  private final SoundexStatement firstPage;
+
+  /** the statement of the following pages, additional parameters after1..afterN. */
+  private final SoundexStatement nextPage;
+
+  /** the number of sort keys. */
+  private final int keyCount;
+
+  /**
+   * Constructor.
+   * @param fromWhere the FROM and WHERE clause of the query
+   * @param keys the sort keys, all ascending, columns of person_name_code that are never NULL for matching names
+   */
+  SoundexPagedStatement(String fromWhere, String[] keys) {
+    final StringBuilder select = new StringBuilder("SELECT patient.patient_id");
+    final StringBuilder keyRow = new StringBuilder("(");
+    final StringBuilder afterRow = new StringBuilder("(");
+    final StringBuilder orderBy = new StringBuilder("ORDER BY ");
+    for (int i = 1; i <= keys.length; i++) {
+      final String separator = i < keys.length ? ", " : "";
+      select.append(", ").append(keys[i - 1]).append(" AS sort_key_").append(i);
+      keyRow.append(keys[i - 1]).append(separator);
+      afterRow.append(":after").append(i).append(separator);
+      orderBy.append(keys[i - 1]).append(" ASC").append(separator);
+    }
+    select.append(' ');
+    keyRow.append(')');
+    afterRow.append(')');
+    orderBy.append(' ');
+
+    this.firstPage = new SoundexStatement(select + fromWhere + orderBy + "LIMIT :pageSize");
+    this.nextPage = new SoundexStatement(select + fromWhere + "AND " + keyRow + " > " + afterRow + " " + orderBy + "LIMIT :pageSize");
+    this.keyCount = keys.length;
+  }
+
+  /**
+   * @return the statement of the first page
+   */
+  SoundexStatement getFirstPage() {
+    return firstPage;
+  }
+
+  /**
+   * @return the statement of the pages after the first one
+   */
+  SoundexStatement getNextPage() {
+    return nextPage;
+  }
+
+  /**
+   * @return the number of sort keys, the columns sort_key_1 to sort_key_N of the result
+   */
+  int getKeyCount() {
+    return keyCount;
+  }
+
+  @Override
+  public String toString() {
+    return nextPage.toString();
+  }
+}
@@ -0,0 +1,201 @@
+/**
+ * Copyright (C) 2011 innoQ Deutschland GmbH
+ *
+ * The contents of this file are subject to the OpenMRS Public License
+ * Version 1.0 (the "License"); you may not use this file except in
+ * compliance with the License. You may obtain a copy of the License at
+ * http://license.openmrs.org
+ *
+ * Software distributed under the License is distributed on an "AS IS"
+ * basis, WITHOUT WARRANTY OF ANY KIND, either express or implied. See the
+ * License for the specific language governing rights and limitations
+ * under the License.
+ *
+ * @author Arnd Kleinbeck, innoQ Deutschland GmbH, http://www.innoq.com
+ */
+package org.openmrs.module.soundex.advisor;
+
+import org.openmrs.module.soundex.metrics.TracedStatement;
+
+import java.sql.Connection;
+import java.sql.PreparedStatement;
+import java.sql.ResultSet;
+import java.sql.ResultSetMetaData;
+import java.sql.SQLException;
+import java.sql.Types;
+import java.util.ArrayList;
+import java.util.List;
+
+/**
+ * A soundex statement together with the values of its parameters.
+ */
+public class SoundexQuery implements TracedStatement {
+
+  /** the statement template. */
+  private final SoundexStatement statement;
+
+  /** parameter name for each placeholder. */
+  private final String[] parameterNames;
+
+  /** bound value for each placeholder. */
+  private final Object[] values;
+
+  /**
+   * Constructor.
+   * @param statement the statement template
+   * @param parameterNames parameter name for each placeholder of the statement
+   */
+  SoundexQuery(SoundexStatement statement, String[] parameterNames) {
+    this.statement = statement;
+    this.parameterNames = parameterNames;
+    this.values = new Object[parameterNames.length];
+  }
+
+  /**
+   * Bind a value to all placeholders of the given parameter.
+   * @param name the parameter name
+   * @param value the value, may be null
+   * @return this query
+   * @throws IllegalArgumentException if the statement has no such parameter
+   */
+  public SoundexQuery set(String name, Object value) {
+    boolean found = false;
+    for (int i = 0; i < parameterNames.length; i++) {
+      if (parameterNames[i].equals(name)) {
+        values[i] = value;
+        found = true;
+      }
+    }
+    if (!found) {
+      throw new IllegalArgumentException("no parameter " + name + " in statement " + statement);
+    }
+    return this;
+  }
+
+  /**
+   * Get the statement template.
+   * @return the statement
+   */
+  public SoundexStatement getStatement() {
+    return statement;
+  }
+
+  /**
+   * Get the SQL text with JDBC placeholders.
+   * @return SQL statement
+   */
+  public String getSql() {
+    return statement.getSql();
+  }
+
+  /**
+   * Get the bound values in the order of the placeholders.
+   * @return parameter values
+   */
+  public Object[] getParameters() {
+    return values.clone();
+  }
+
+  /**
+   * Prepare the statement on the given connection and bind the parameter values.
+   * The caller is responsible for closing the statement.
+   * @param connection the JDBC connection
+   * @return the prepared statement
+   * @throws SQLException in case of database errors
+   */
+  public PreparedStatement prepare(Connection connection) throws SQLException {
+    return prepare(connection, statement.getSql());
+  }
+
+  private PreparedStatement prepare(Connection connection, String sql) throws SQLException {
+    final PreparedStatement preparedStatement = connection.prepareStatement(sql);
+    try {
+      for (int i = 0; i < values.length; i++) {
+        if (values[i] == null) {
+          preparedStatement.setNull(i + 1, Types.VARCHAR);
+        } else {
+          preparedStatement.setObject(i + 1, values[i]);
+        }
+      }
+    } catch (SQLException e) {
+      preparedStatement.close();
+      throw e;
+    }
+    return preparedStatement;
+  }
+
+  /**
+   * Execute the query and read the patient_id column of the result.
+   * @param connection the JDBC connection
+   * @return the patient ids in the order of the result
+   * @throws SQLException in case of database errors
+   */
+  public List<Integer> listPatientIds(Connection connection) throws SQLException {
+    final List<Integer> patientIds = new ArrayList<Integer>();
+    final PreparedStatement preparedStatement = prepare(connection);
+    try {
+      final ResultSet resultSet = preparedStatement.executeQuery();
+      while (resultSet.next()) {
+        patientIds.add(resultSet.getInt("patient_id"));
+      }
+    } finally {
+      preparedStatement.close();
+    }
+    return patientIds;
+  }
+
+  /**
+   * Run EXPLAIN for the query.
+   * @param connection the JDBC connection
+   * @return the rows of the plan as name=value pairs of the non-null columns
+   * @throws SQLException in case of database errors
+   */
+  public List<String> explain(Connection connection) throws SQLException {
+    final List<String> plan = new ArrayList<String>();
+    final PreparedStatement preparedStatement = prepare(connection, "EXPLAIN " + statement.getSql());
+    try {
+      final ResultSet resultSet = preparedStatement.executeQuery();
+      final ResultSetMetaData metaData = resultSet.getMetaData();
+      while (resultSet.next()) {
+        final StringBuilder row = new StringBuilder();
+        for (int column = 1; column <= metaData.getColumnCount(); column++) {
+          final Object value = resultSet.getObject(column);
+          if (value != null) {
+            row.append(row.length() == 0 ? "" : " ").append(metaData.getColumnLabel(column)).append('=').append(value);
+          }
+        }
+        plan.add(row.toString());
+      }
+    } finally {
+      preparedStatement.close();
+    }
+    return plan;
+  }
+
+  /**
+   * The SQL statement with the bound values inlined, for logging purposes only.
+   * @return the SQL statement
+   */
+  @Override
+  public String toString() {
+    final String sql = statement.getSql();
+    final StringBuilder sb = new StringBuilder(sql.length() + 16 * values.length);
+    int parameter = 0;
+    for (int i = 0; i < sql.length(); i++) {
+      char c = sql.charAt(i);
+      if (c == '?' && parameter < values.length) {
+        Object value = values[parameter++];
+        if (value == null) {
+          sb.append("NULL");
+        } else if (value instanceof Number) {
+          sb.append(value);
+        } else {
+          sb.append('\'').append(value.toString().replace("'", "''")).append('\'');
+        }
+      } else {
+        sb.append(c);
+      }
+    }
+    return sb.toString();
+  }
+}
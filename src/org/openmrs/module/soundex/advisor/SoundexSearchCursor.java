@@ -0,0 +1,98 @@
+/**
+ * Copyright (C) 2011 innoQ Deutschland GmbH
+ *
+ * The contents of this file are subject to the OpenMRS Public License
+ * Version 1.0 (the "License"); you may not use this file except in
+ * compliance with the License. You may obtain a copy of the License at
+ * http://license.openmrs.org
+ *
+ * Software distributed under the License is distributed on an "AS IS"
+ * basis, WITHOUT WARRANTY OF ANY KIND, either express or implied. See the
+ * License for the specific language governing rights and limitations
+ * under the License.
+ *
+ * @author Arnd Kleinbeck, innoQ Deutschland GmbH, http://www.innoq.com
+ */
+package org.openmrs.module.soundex.advisor;
+
+import org.hibernate.Session;
+import org.openmrs.Patient;
+
+import java.util.ArrayList;
+import java.util.Iterator;
+import java.util.LinkedList;
+import java.util.List;
+import java.util.NoSuchElementException;
+
+/**
+ * Lazy result of a paged soundex search, see {@link PatientServiceAroundAdvisor#openSoundexSearch(String, int)}.
+ * Patients are returned in the order of the ranking and loaded one page at a time, when the previous page
+ * has been consumed. The cursor has to be consumed within the Hibernate session it was opened in.
+ */
+public class SoundexSearchCursor implements Iterator<Patient> {
+
+  private final Session session;
+  private final Iterator<Integer> patientIds;
+  private final int pageSize;
+
+  /** loaded patients that have not been returned yet. */
+  private final LinkedList<Patient> page = new LinkedList<Patient>();
+
+  /** the number of patients returned so far. */
+  private int position;
+
+  /**
+   * Constructor.
+   * @param session the hibernate session the patients are loaded with
+   * @param patientIds the ranked patient ids
+   * @param pageSize the number of patients loaded at a time
+   */
+  SoundexSearchCursor(Session session, Iterator<Integer> patientIds, int pageSize) {
+    this.session = session;
+    this.patientIds = patientIds;
+    this.pageSize = pageSize;
+  }
+
+  public boolean hasNext() {
+    // patients deleted since the ids were read are skipped by the hydrator
+    while (page.isEmpty() && patientIds.hasNext()) {
+      final List<Integer> ids = new ArrayList<Integer>(pageSize);
+      while (ids.size() < pageSize && patientIds.hasNext()) {
+        ids.add(patientIds.next());
+      }
+      page.addAll(PatientHydrator.loadPatients(session, ids));
+    }
+    return !page.isEmpty();
+  }
+
+  public Patient next() {
+    if (!hasNext()) {
+      throw new NoSuchElementException();
+    }
+    position++;
+    return page.removeFirst();
+  }
+
+  /**
+   * Get the next page of patients.
+   * @return up to page size patients, empty if the search is exhausted
+   */
+  public List<Patient> nextPage() {
+    final List<Patient> patients = new ArrayList<Patient>(pageSize);
+    while (patients.size() < pageSize && hasNext()) {
+      patients.add(next());
+    }
+    return patients;
+  }
+
+  /**
+   * @return the number of patients returned so far
+   */
+  public int getPosition() {
+    return position;
+  }
+
+  public void remove() {
+    throw new UnsupportedOperationException();
+  }
+}
@@ -0,0 +1,104 @@
+/**
+ * Copyright (C) 2011 innoQ Deutschland GmbH
+ *
+ * The contents of this file are subject to the OpenMRS Public License
+ * Version 1.0 (the "License"); you may not use this file except in
+ * compliance with the License. You may obtain a copy of the License at
+ * http://license.openmrs.org
+ *
+ * Software distributed under the License is distributed on an "AS IS"
+ * basis, WITHOUT WARRANTY OF ANY KIND, either express or implied. See the
+ * License for the specific language governing rights and limitations
+ * under the License.
+ *
+ * @author Arnd Kleinbeck, innoQ Deutschland GmbH, http://www.innoq.com
+ */
+package org.openmrs.module.soundex.advisor;
+
+import java.util.ArrayList;
+import java.util.List;
+
+/**
+ * Parameterized SQL statement template of the soundex search.
+ * Named parameters (<code>:name</code>) are translated into JDBC placeholders once, when the template is created.
+ * The SQL text of a template never changes, so the statement and plan caches of the database can be used.
+ * The MySQL assignment operator <code>:=</code> is not taken for a parameter.
+ */
+public class SoundexStatement {
+
+  /** SQL with JDBC placeholders. */
+  private final String sql;
+
+  /** parameter name for each placeholder. */
+  private final String[] parameterNames;
+
+  /**
+   * Constructor.
+   * @param namedSql the SQL statement with named parameters
+   */
+  public SoundexStatement(String namedSql) {
+    StringBuilder sb = new StringBuilder(namedSql.length());
+    List<String> names = new ArrayList<String>();
+
+    for (int i = 0; i < namedSql.length(); i++) {
+      char c = namedSql.charAt(i);
+      if (c == ':' && i + 1 < namedSql.length() && Character.isJavaIdentifierStart(namedSql.charAt(i + 1))) {
+        int end = i + 1;
+        while (end < namedSql.length() && Character.isJavaIdentifierPart(namedSql.charAt(end))) {
+          end++;
+        }
+        names.add(namedSql.substring(i + 1, end));
+        sb.append('?');
+        i = end - 1;
+      } else {
+        sb.append(c);
+      }
+    }
+
+    this.sql = sb.toString();
+    this.parameterNames = names.toArray(new String[names.size()]);
+  }
+
+  /**
+   * Get the SQL statement with JDBC placeholders.
+   * @return SQL statement
+   */
+  public String getSql() {
+    return sql;
+  }
+
+  /**
+   * Get the parameter names in the order of the placeholders. Names occur once per placeholder.
+   * @return parameter names
+   */
+  public String[] getParameterNames() {
+    return parameterNames.clone();
+  }
+
+  /**
+   * Checks whether the statement has a parameter with the given name.
+   * @param name the parameter name
+   * @return true, if the statement has at least one placeholder for the parameter
+   */
+  public boolean hasParameter(String name) {
+    for (String parameterName : parameterNames) {
+      if (parameterName.equals(name)) {
+        return true;
+      }
+    }
+    return false;
+  }
+
+  /**
+   * Create a query for this statement, with all parameters unbound.
+   * @return the query
+   */
+  public SoundexQuery bind() {
+    return new SoundexQuery(this, parameterNames);
+  }
+
+  @Override
+  public String toString() {
+    return sql;
+  }
+}
@@ -0,0 +1,207 @@
+/**
+ * Copyright (C) 2011 innoQ Deutschland GmbH
+ *
+ * The contents of this file are subject to the OpenMRS Public License
+ * Version 1.0 (the "License"); you may not use this file except in
+ * compliance with the License. You may obtain a copy of the License at
+ * http://license.openmrs.org
+ *
+ * Software distributed under the License is distributed on an "AS IS"
+ * basis, WITHOUT WARRANTY OF ANY KIND, either express or implied. See the
+ * License for the specific language governing rights and limitations
+ * under the License.
+ *
+ * @author Arnd Kleinbeck, innoQ Deutschland GmbH, http://www.innoq.com
+ */
+package org.openmrs.module.soundex.cache;
+
+import org.openmrs.module.soundex.encoder.SoundexEncoder;
+import org.openmrs.module.soundex.index.NameEntry;
+import org.openmrs.module.soundex.index.PatientNamesUpdate;
+
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.Iterator;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+
+/**
+ * Bounded LRU cache of soundex search results. Results are kept as ranked patient ids, as patients are
+ * bound to the Hibernate session of the search, so a hit saves the candidate queries but the patients are
+ * still hydrated from the database. Entries expire after a time to live and are invalidated
+ * when the names of a patient change in a way that may change the result.
+ */
+public class SearchResultCache {
+
+  /** maximum number of entries. */
+  private final int maxSize;
+
+  /** time to live of an entry in milliseconds. */
+  private final long timeToLive;
+
+  /** entries in access order. */
+  private final LinkedHashMap<String, CachedResult> entries;
+
+  /** number of invalidating updates, see {@link #put(String, List, String[], long)}. */
+  private long invalidationCount;
+
+  private long hitCount;
+  private long missCount;
+
+  /**
+   * Constructor.
+   * @param maxSize maximum number of entries
+   * @param timeToLive time to live of an entry in milliseconds
+   */
+  public SearchResultCache(final int maxSize, long timeToLive) {
+    this.maxSize = maxSize;
+    this.timeToLive = timeToLive;
+    this.entries = new LinkedHashMap<String, CachedResult>(16, 0.75f, true) {
+      private static final long serialVersionUID = 1L;
+
+      @Override
+      protected boolean removeEldestEntry(Map.Entry<String, CachedResult> eldest) {
+        return size() > maxSize;
+      }
+    };
+  }
+
+  /**
+   * Build the cache key of a search. Ranking ignores case, so does the key.
+   * @param names the tokens of the effective query
+   * @param sqlLimit the sql limit
+   * @param resultLimit the result limit
+   * @return the key
+   */
+  public static String key(String[] names, int sqlLimit, int resultLimit) {
+    final StringBuilder key = new StringBuilder();
+    key.append(sqlLimit).append('/').append(resultLimit);
+    for (String name : names) {
+      key.append(' ').append(name.toUpperCase());
+    }
+    return key.toString();
+  }
+
+  /**
+   * Get the result of a search.
+   * @param key the cache key
+   * @return the ranked patient ids or null, if the search is not cached or expired
+   */
+  public synchronized List<Integer> get(String key) {
+    final CachedResult entry = entries.get(key);
+    if (entry == null) {
+      missCount++;
+      return null;
+    }
+    if (entry.expires < System.currentTimeMillis()) {
+      entries.remove(key);
+      missCount++;
+      return null;
+    }
+    hitCount++;
+    return entry.patientIds;
+  }
+
+  /**
+   * Get the number of invalidating updates so far. It has to be read before the search is run and
+   * passed to {@link #put(String, List, String[], long)}.
+   * @return the invalidation count
+   */
+  public synchronized long getInvalidationCount() {
+    return invalidationCount;
+  }
+
+  /**
+   * Cache the result of a search. The result is dropped if an update was applied while the search was
+   * running, as the search may or may not have seen it.
+   * @param key the cache key
+   * @param patientIds the ranked patient ids
+   * @param codes the soundex codes of the tokens of the query
+   * @param invalidationCount the invalidation count read before the search
+   */
+  public synchronized void put(String key, List<Integer> patientIds, String[] codes, long invalidationCount) {
+    if (invalidationCount != this.invalidationCount) {
+      return;
+    }
+    entries.put(key, new CachedResult(Collections.unmodifiableList(new ArrayList<Integer>(patientIds)), codes,
+            System.currentTimeMillis() + timeToLive));
+  }
+
+  /**
+   * Drop the entries whose result may change by the given update: results containing the patient and
+   * results of queries with a code that one of the new names of the patient starts with.
+   * @param update the update
+   */
+  public synchronized void invalidate(PatientNamesUpdate update) {
+    invalidationCount++;
+    final Iterator<CachedResult> iterator = entries.values().iterator();
+    while (iterator.hasNext()) {
+      final CachedResult entry = iterator.next();
+      if (entry.patientIds.contains(update.getPatientId()) || entry.matchesAny(update.getNames())) {
+        iterator.remove();
+      }
+    }
+  }
+
+  /**
+   * Drop all entries.
+   */
+  public synchronized void clear() {
+    invalidationCount++;
+    entries.clear();
+  }
+
+  public synchronized int size() {
+    return entries.size();
+  }
+
+  public int getMaxSize() {
+    return maxSize;
+  }
+
+  public synchronized long getHitCount() {
+    return hitCount;
+  }
+
+  public synchronized long getMissCount() {
+    return missCount;
+  }
+
+  @Override
+  public synchronized String toString() {
+    return "SearchResultCache[" + entries.size() + "/" + maxSize + " entries, " + hitCount + " hits, " + missCount + " misses]";
+  }
+
+  /**
+   * A cached result.
+   */
+  private static class CachedResult {
+
+    final List<Integer> patientIds;
+    final int[] codes;
+    final long expires;
+
+    CachedResult(List<Integer> patientIds, String[] codes, long expires) {
+      this.patientIds = patientIds;
+      this.codes = new int[codes.length];
+      for (int i = 0; i < codes.length; i++) {
+        this.codes[i] = SoundexEncoder.pack(codes[i]);
+      }
+      this.expires = expires;
+    }
+
+    boolean matchesAny(NameEntry[] names) {
+      for (NameEntry name : names) {
+        for (int code : codes) {
+          if (SoundexEncoder.startsWith(name.getPackedGivenNameCode(), code) ||
+                  SoundexEncoder.startsWith(name.getPackedFamilyNameCode(), code) ||
+                  SoundexEncoder.startsWith(name.getPackedFamilyName2Code(), code)) {
+            return true;
+          }
+        }
+      }
+      return false;
+    }
+  }
+}
@@ -0,0 +1,141 @@
+/**
+ * Copyright (C) 2011 innoQ Deutschland GmbH
+ *
+ * The contents of this file are subject to the OpenMRS Public License
+ * Version 1.0 (the "License"); you may not use this file except in
+ * compliance with the License. You may obtain a copy of the License at
+ * http://license.openmrs.org
+ *
+ * Software distributed under the License is distributed on an "AS IS"
+ * basis, WITHOUT WARRANTY OF ANY KIND, either express or implied. See the
+ * License for the specific language governing rights and limitations
+ * under the License.
+ *
+ * @author Arnd Kleinbeck, innoQ Deutschland GmbH, http://www.innoq.com
+ */
+package org.openmrs.module.soundex.encoder;
+
+import java.util.LinkedHashMap;
+import java.util.Map;
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * Soundex encoder that remembers the codes of recently encoded names. Names are extremely skewed, so a
+ * small cache answers most calls. The cache is split into independently locked LRU segments, so that
+ * concurrent searches rarely wait for each other. Instances are thread-safe.
+ */
+public class CachingSoundexEncoder extends SoundexEncoder {
+
+  /** number of segments, a power of two. */
+  private static final int SEGMENTS = 16;
+
+  /** cached value of names without letters, which have no code. */
+  private static final String NO_CODE_MARKER = new String("");
+
+  private final Segment[] segments = new Segment[SEGMENTS];
+
+  private final AtomicLong hitCount = new AtomicLong();
+  private final AtomicLong missCount = new AtomicLong();
+
+  /**
+   * Constructor.
+   * @param maxSize the maximum number of cached names
+   */
+  public CachingSoundexEncoder(int maxSize) {
+    final int segmentSize = Math.max(1, (maxSize + SEGMENTS - 1) / SEGMENTS);
+    for (int i = 0; i < SEGMENTS; i++) {
+      segments[i] = new Segment(segmentSize);
+    }
+  }
+
+  @Override
+  public String encode(String str) {
+    if (str == null || str.equals(""))
+      return null;
+
+    final Segment segment = segmentFor(str);
+    String code;
+    synchronized (segment) {
+      code = segment.get(str);
+    }
+    if (code != null) {
+      hitCount.incrementAndGet();
+      return code == NO_CODE_MARKER ? null : code;
+    }
+
+    // encoding happens outside of the lock, two threads may encode the same name at the same time
+    missCount.incrementAndGet();
+    code = super.encode(str);
+    synchronized (segment) {
+      segment.put(str, code == null ? NO_CODE_MARKER : code);
+    }
+    return code;
+  }
+
+  /**
+   * Encode a name into a packed code. Strings are looked up in the cache, packing a cached code does not allocate.
+   * @param str the name, may be null
+   * @return the packed code or {@link SoundexEncoder#NO_CODE}, if the name has no code
+   */
+  @Override
+  public int encodeToInt(CharSequence str) {
+    return str instanceof String ? pack(encode((String) str)) : super.encodeToInt(str);
+  }
+
+  /**
+   * @return the number of names answered from the cache
+   */
+  public long getHitCount() {
+    return hitCount.get();
+  }
+
+  /**
+   * @return the number of names that had to be encoded
+   */
+  public long getMissCount() {
+    return missCount.get();
+  }
+
+  /**
+   * @return the number of cached names
+   */
+  public int size() {
+    int size = 0;
+    for (Segment segment : segments) {
+      synchronized (segment) {
+        size += segment.size();
+      }
+    }
+    return size;
+  }
+
+  @Override
+  public String toString() {
+    return "CachingSoundexEncoder[" + size() + " names, " + getHitCount() + " hits, " + getMissCount() + " misses]";
+  }
+
+  private Segment segmentFor(String str) {
+    final int h = str.hashCode();
+    return segments[(h ^ (h >>> 16)) & (SEGMENTS - 1)];
+  }
+
+  /**
+   * LRU map of one segment, guarded by its own monitor.
+   */
+  private static class Segment extends LinkedHashMap<String, String> {
+
+    private static final long serialVersionUID = 1L;
+
+    private final int maxSize;
+
+    Segment(int maxSize) {
+      super(16, 0.75f, true);
+      this.maxSize = maxSize;
+    }
+
+    @Override
+    protected boolean removeEldestEntry(Map.Entry<String, String> eldest) {
+      return size() > maxSize;
+    }
+  }
+}
@@ -15,82 +15,363 @@
  */
 package org.openmrs.module.soundex.encoder;
 
+import java.util.Locale;
+
 /**
- *
+ * Soundex encoder for Malawian names.
+ * The rules are applied in a single pass over a per-thread scratch buffer, so that encoding a name
+ * does not allocate anything but the resulting code.
+ * <p>
+ * Codes consist of up to four ASCII characters and can be packed into an int, one character per byte
+ * from the most significant byte on, unused bytes being zero (see {@link #encodeToInt(CharSequence)}).
+ * Packed codes order like their strings, and the codes starting with a given code form the range
+ * from the packed prefix to {@link #prefixEnd(int)}.
  */
 public class SoundexEncoder {
 
+  /** packed value of names without code. */
+  public static final int NO_CODE = 0;
+
+  /** maximum number of digits following the initial letter. */
+  private static final int MAX_DIGITS = 3;
+
+  /** maximum length of a code. */
+  private static final int MAX_LENGTH = MAX_DIGITS + 1;
+
+  /** per-thread scratch buffer, grown on demand. */
+  private static final ThreadLocal<char[]> SCRATCH = new ThreadLocal<char[]>() {
+    @Override
+    protected char[] initialValue() {
+      return new char[32];
+    }
+  };
+
   public String encode(String str) {
 
     if (str == null || str.equals(""))
       return null;
 
-    // Handle blanks
-    str = str.toUpperCase();
+    final CharSequence source = upperCase(str);
+    final char[] buf = scratch(source.length());
+    final int size = encode(source, buf);
+    return size == 0 ? null : new String(buf, 0, size);
+  }
 
-    //  Drop all punctuation marks and numbers and spaces
-    str = str.replaceAll("[^A-Z]", "");
+  /**
+   * Encode a name into a packed code, without allocating.
+   * @param str the name, may be null
+   * @return the packed code or {@link #NO_CODE}, if the name has no code
+   */
+  public int encodeToInt(CharSequence str) {
+    if (str == null || str.length() == 0) {
+      return NO_CODE;
+    }
+    final CharSequence source = upperCase(str);
+    final char[] buf = scratch(source.length());
+    return pack(buf, encode(source, buf));
+  }
 
-    if (str == null || str.equals(""))
+  /**
+   * Encode names into packed codes.
+   * @param names the names, elements may be null
+   * @param codes receives the packed code of each name, at least as long as names
+   */
+  public void encodeAll(CharSequence[] names, int[] codes) {
+    if (codes.length < names.length) {
+      throw new IllegalArgumentException("codes too short: " + codes.length + " < " + names.length);
+    }
+    for (int i = 0; i < names.length; i++) {
+      codes[i] = encodeToInt(names[i]);
+    }
+  }
+
+  /**
+   * Pack a code.
+   * @param code the code, may be null
+   * @return the packed code or {@link #NO_CODE}, if no code is given
+   * @throws IllegalArgumentException if the string is no code, i.e. longer than four or not ASCII
+   */
+  public static int pack(String code) {
+    if (code == null || code.length() == 0) {
+      return NO_CODE;
+    }
+    if (code.length() > MAX_LENGTH) {
+      throw new IllegalArgumentException("not a soundex code: " + code);
+    }
+    int packed = 0;
+    for (int i = 0; i < MAX_LENGTH; i++) {
+      final char c = i < code.length() ? code.charAt(i) : 0;
+      if (i < code.length() && (c == 0 || c > 127)) {
+        throw new IllegalArgumentException("not a soundex code: " + code);
+      }
+      packed = packed << 8 | c;
+    }
+    return packed;
+  }
+
+  /**
+   * Unpack a code.
+   * @param code the packed code
+   * @return the code or null, if the code is {@link #NO_CODE}
+   */
+  public static String unpack(int code) {
+    final int length = codeLength(code);
+    if (length == 0) {
       return null;
+    }
+    final char[] chars = new char[length];
+    for (int i = 0; i < length; i++) {
+      chars[i] = (char) (code >>> (8 * (MAX_LENGTH - 1 - i)) & 0xff);
+    }
+    return new String(chars);
+  }
+
+  /**
+   * Get the length of a packed code.
+   * @param code the packed code
+   * @return the number of characters, 0 for {@link #NO_CODE}
+   */
+  public static int codeLength(int code) {
+    return code == NO_CODE ? 0 : MAX_LENGTH - Integer.numberOfTrailingZeros(code) / 8;
+  }
+
+  /**
+   * Get the largest packed code starting with the given code.
+   * @param prefix the packed code
+   * @return the end of the range of codes starting with the prefix, inclusive
+   */
+  public static int prefixEnd(int prefix) {
+    return prefix | (int) ((1L << (8 * (MAX_LENGTH - codeLength(prefix)))) - 1);
+  }
+
+  /**
+   * Get a prefix of a packed code.
+   * @param code the packed code
+   * @param length the number of characters kept, at most the length of the code
+   * @return the packed prefix
+   */
+  public static int prefix(int code, int length) {
+    return code & ~(int) ((1L << (8 * (MAX_LENGTH - length))) - 1);
+  }
+
+  /**
+   * Checks whether a packed code starts with another one.
+   * @param code the packed code
+   * @param prefix the packed prefix
+   * @return true, if both are codes and the code starts with the prefix
+   */
+  public static boolean startsWith(int code, int prefix) {
+    return code != NO_CODE && prefix != NO_CODE && code >= prefix && code <= prefixEnd(prefix);
+  }
+
+  /**
+   * Handle blanks. Plain ASCII input is upper cased while copying, anything else is upper cased
+   * by the JDK in order to keep the locale dependent special cases (e.g. the german sharp s).
+   * @param str the name
+   * @return the name, upper cased unless it is plain ASCII
+   */
+  private static CharSequence upperCase(CharSequence str) {
+    return isAsciiUpperCaseSafe(str) ? str : str.toString().toUpperCase();
+  }
+
+  /**
+   * Apply the encoding rules.
+   * @param source the name, not empty, see {@link #upperCase(CharSequence)}
+   * @param buf the scratch buffer, at least as long as the name
+   * @return the length of the code written to the front of the buffer, 0 if the name has no code
+   */
+  private static int encode(CharSequence source, char[] buf) {
+
+    //  Drop all punctuation marks and numbers and spaces
+    int length = 0;
+    for (int i = 0; i < source.length(); i++) {
+      char c = source.charAt(i);
+      if (c >= 'a' && c <= 'z') {
+        c = (char) (c - ('a' - 'A'));
+      }
+      if (c >= 'A' && c <= 'Z') {
+        buf[length++] = c;
+      }
+    }
+
+    if (length == 0)
+      return 0;
+
+    // Words starting with M or N or D followed by another consonant should drop the first letter.
+    // The rules are applied one after the other, so 'MND...' drops all three letters
+    int start = 0;
+    if (buf[start] == 'M' && start + 1 < length && isConsonantAfterM(buf[start + 1]))
+      start++;
+    if (buf[start] == 'N' && start + 1 < length && isConsonantAfterNOrD(buf[start + 1]))
+      start++;
+    if (buf[start] == 'D' && start + 1 < length && isConsonantAfterNOrD(buf[start + 1]))
+      start++;
 
-    // Words starting with M or N or D followed by another consonant should drop the first letter
-    str = str.replaceAll("^M([BDFGJKLMNPQRSTVXZ])", "$1");
-    str = str.replaceAll("^N([BCDFGJKLMNPQRSTVXZ])", "$1");
-    str = str.replaceAll("^D([BCDFGJKLMNPQRSTVXZ])", "$1");
+    // silent R enhancement (Margret, Esnart): ARG -> AG, ART -> AT
+    int end = start;
+    char previous = 0;
+    for (int i = start; i < length; i++) {
+      char c = buf[i];
+      boolean silentR = c == 'R' && previous == 'A' && i + 1 < length && (buf[i + 1] == 'G' || buf[i + 1] == 'T');
+      previous = c;
+      if (!silentR) {
+        buf[end++] = c;
+      }
+    }
+    length = end;
 
-    // silent R enhancement (Margret, Esnart)
-    str = str.replaceAll("ARG", "AG");
-    str = str.replaceAll("ART", "AT");
-  
-    //THY and CH as common phonemes enhancement
-    str = str.replaceAll("(THY|CH|TCH)", "9");
+    //THY and CH as common phonemes enhancement, alternatives are tried in the order THY, CH, TCH
+    end = start;
+    for (int i = start; i < length; ) {
+      if (buf[i] == 'T' && i + 2 < length && buf[i + 1] == 'H' && buf[i + 2] == 'Y') {
+        buf[end++] = '9';
+        i += 3;
+      } else if (buf[i] == 'C' && i + 1 < length && buf[i + 1] == 'H') {
+        buf[end++] = '9';
+        i += 2;
+      } else if (buf[i] == 'T' && i + 2 < length && buf[i + 1] == 'C' && buf[i + 2] == 'H') {
+        buf[end++] = '9';
+        i += 3;
+      } else {
+        buf[end++] = buf[i++];
+      }
+    }
+    length = end;
 
     // Retain the first letter of the word
-    String initial = String.valueOf(str.charAt(0));
-    String tail = str.substring(1, str.length());
-
-    // Initial vowel enhancement
-    initial = initial.replaceAll("[AEI]", "E");
-
-    initial = initial.replaceAll("[CK]", "K");
-    initial = initial.replaceAll("[JY]", "Y");
-    initial = initial.replaceAll("[VF]", "F");
-    initial = initial.replaceAll("[LR]", "R");
-    initial = initial.replaceAll("[MN]", "N");
-    initial = initial.replaceAll("[SZ]", "Z");
-
-    //W followed by a vowel should be treated as a consonant enhancement
-    tail = tail.replaceAll("W[AEIOUHY]", "8");
-
-    // Change letters from the following sets into the digit given
-    tail = tail.replaceAll("[AEIOUHWY]", "0");
-    tail = tail.replaceAll("[BFPV]", "1");
-    tail = tail.replaceAll("[CGKQX]", "2");
-    tail = tail.replaceAll("[DT]", "3");
-    tail = tail.replaceAll("[LR]", "4");
-    tail = tail.replaceAll("[MN]", "5");
-    tail = tail.replaceAll("[SZ]", "6"); // Originally with CGKQX
-    tail = tail.replaceAll("[J]", "7"); // Originally with CGKQX
-
-    // Remove all pairs of digits which occur beside each other from the string
-    tail = tail.replaceAll("1+", "1");
-    tail = tail.replaceAll("2+", "2");
-    tail = tail.replaceAll("3+", "3");
-    tail = tail.replaceAll("4+", "4");
-    tail = tail.replaceAll("5+", "5");
-    tail = tail.replaceAll("6+", "6");
-    tail = tail.replaceAll("7+", "7");
-    tail = tail.replaceAll("8+", "8");
-    tail = tail.replaceAll("9+", "9");
-
-    // Remove all zeros from the string
-    tail = tail.replaceAll("0", "");
+    final char initial = encodeInitial(buf[start]);
+
+    // The code is written to the front of the buffer. This is safe, as the write position
+    // never overtakes the read position in the tail
+    buf[0] = initial;
+    int size = 1;
+    char last = 0;
+    for (int i = start + 1; i < length && size <= MAX_DIGITS; i++) {
+      char digit;
+      if (buf[i] == 'W' && i + 1 < length && isVowelOrHY(buf[i + 1])) {
+        //W followed by a vowel should be treated as a consonant enhancement
+        digit = '8';
+        i++;
+      } else {
+        digit = encodeTail(buf[i]);
+      }
+
+      // Remove all pairs of digits which occur beside each other and all zeros from the string
+      if (digit != last && digit != '0') {
+        buf[size++] = digit;
+      }
+      last = digit;
+    }
 
     // Return only the first four positions
-    if (tail.length() < 3)
-      return initial + tail;
-    else
-      return initial + tail.substring(0, 3);
+    return size;
+  }
+
+  private static int pack(char[] buf, int size) {
+    int packed = 0;
+    for (int i = 0; i < MAX_LENGTH; i++) {
+      packed = packed << 8 | (i < size ? buf[i] : 0);
+    }
+    return packed;
+  }
+
+  /**
+   * Get the scratch buffer of the current thread with at least the given capacity.
+   * @param capacity the required capacity
+   * @return the scratch buffer
+   */
+  private static char[] scratch(int capacity) {
+    char[] buf = SCRATCH.get();
+    if (buf.length < capacity) {
+      buf = new char[Math.max(capacity, buf.length * 2)];
+      SCRATCH.set(buf);
+    }
+    return buf;
+  }
+
+  /**
+   * Checks whether upper casing the given string character by character yields the same result as
+   * {@link String#toUpperCase()}. This holds for pure ASCII strings in all but the turkic locales.
+   * @param str the string to check
+   * @return true, if the string can be upper cased character by character
+   */
+  private static boolean isAsciiUpperCaseSafe(CharSequence str) {
+    for (int i = 0; i < str.length(); i++) {
+      if (str.charAt(i) > 127) {
+        return false;
+      }
+    }
+    final String language = Locale.getDefault().getLanguage();
+    return !"tr".equals(language) && !"az".equals(language);
+  }
+
+  /**
+   * Consonants following an initial M that cause the M to be dropped.
+   */
+  private static boolean isConsonantAfterM(char c) {
+    switch (c) {
+      case 'B': case 'D': case 'F': case 'G': case 'J': case 'K': case 'L': case 'M': case 'N':
+      case 'P': case 'Q': case 'R': case 'S': case 'T': case 'V': case 'X': case 'Z':
+        return true;
+      default:
+        return false;
+    }
+  }
+
+  /**
+   * Consonants following an initial N or D that cause the N or D to be dropped.
+   */
+  private static boolean isConsonantAfterNOrD(char c) {
+    return c == 'C' || isConsonantAfterM(c);
+  }
+
+  /**
+   * Letters following a W that turn the W into a consonant.
+   */
+  private static boolean isVowelOrHY(char c) {
+    switch (c) {
+      case 'A': case 'E': case 'I': case 'O': case 'U': case 'H': case 'Y':
+        return true;
+      default:
+        return false;
+    }
+  }
+
+  /**
+   * Map the first letter of a word onto its representative.
+   * @param c the first letter
+   * @return the initial letter of the code
+   */
+  private static char encodeInitial(char c) {
+    switch (c) {
+      // Initial vowel enhancement
+      case 'A': case 'E': case 'I': return 'E';
+      case 'C': case 'K': return 'K';
+      case 'J': case 'Y': return 'Y';
+      case 'V': case 'F': return 'F';
+      case 'L': case 'R': return 'R';
+      case 'M': case 'N': return 'N';
+      case 'S': case 'Z': return 'Z';
+      default: return c;
+    }
+  }
+
+  /**
+   * Change letters from the following sets into the digit given.
+   * @param c a letter of the tail or the digit 9
+   * @return the digit
+   */
+  private static char encodeTail(char c) {
+    switch (c) {
+      case 'A': case 'E': case 'I': case 'O': case 'U': case 'H': case 'W': case 'Y': return '0';
+      case 'B': case 'F': case 'P': case 'V': return '1';
+      case 'C': case 'G': case 'K': case 'Q': case 'X': return '2';
+      case 'D': case 'T': return '3';
+      case 'L': case 'R': return '4';
+      case 'M': case 'N': return '5';
+      case 'S': case 'Z': return '6'; // Originally with CGKQX
+      case 'J': return '7'; // Originally with CGKQX
+      default: return c;
+    }
   }
 }
@@ -0,0 +1,167 @@
+/**
+ * Copyright (C) 2011 innoQ Deutschland GmbH
+ *
+ * The contents of this file are subject to the OpenMRS Public License
+ * Version 1.0 (the "License"); you may not use this file except in
+ * compliance with the License. You may obtain a copy of the License at
+ * http://license.openmrs.org
+ *
+ * Software distributed under the License is distributed on an "AS IS"
+ * basis, WITHOUT WARRANTY OF ANY KIND, either express or implied. See the
+ * License for the specific language governing rights and limitations
+ * under the License.
+ *
+ * @author Arnd Kleinbeck, innoQ Deutschland GmbH, http://www.innoq.com
+ */
+package org.openmrs.module.soundex.index;
+
+import java.util.Arrays;
+import java.util.Comparator;
+
+/**
+ * Helper methods for sorted arrays of distinct ids, as used for the postings of the soundex index.
+ */
+public class IntArrays {
+
+  /** the empty id set. */
+  public static final int[] EMPTY = new int[0];
+
+  /** size ratio from which on the smaller set is searched in the larger one instead of merging both. */
+  private static final int GALLOP_RATIO = 16;
+
+  /**
+   * Sort the first length values and drop duplicates.
+   * @param values the values, sorted in place
+   * @param length the number of values to use
+   * @return a new sorted array of distinct values
+   */
+  public static int[] sortedDistinct(int[] values, int length) {
+    if (length == 0) {
+      return EMPTY;
+    }
+    Arrays.sort(values, 0, length);
+    int size = 1;
+    for (int i = 1; i < length; i++) {
+      if (values[i] != values[size - 1]) {
+        values[size++] = values[i];
+      }
+    }
+    final int[] result = new int[size];
+    System.arraycopy(values, 0, result, 0, size);
+    return result;
+  }
+
+  /**
+   * Merge two sorted id sets.
+   * @param a sorted distinct ids
+   * @param b sorted distinct ids
+   * @return sorted distinct ids contained in a or b
+   */
+  public static int[] union(int[] a, int[] b) {
+    if (a.length == 0) {
+      return b;
+    }
+    if (b.length == 0) {
+      return a;
+    }
+    final int[] result = new int[a.length + b.length];
+    int i = 0, j = 0, size = 0;
+    while (i < a.length && j < b.length) {
+      if (a[i] < b[j]) {
+        result[size++] = a[i++];
+      } else if (a[i] > b[j]) {
+        result[size++] = b[j++];
+      } else {
+        result[size++] = a[i++];
+        j++;
+      }
+    }
+    while (i < a.length) {
+      result[size++] = a[i++];
+    }
+    while (j < b.length) {
+      result[size++] = b[j++];
+    }
+    return size == result.length ? result : Arrays.copyOf(result, size);
+  }
+
+  /**
+   * Intersect two sorted id sets. Sets of very different size are intersected by galloping through the larger
+   * one, which takes time logarithmic in its size per id of the smaller one.
+   * @param a sorted distinct ids
+   * @param b sorted distinct ids
+   * @return sorted distinct ids contained in a and b
+   */
+  public static int[] intersect(int[] a, int[] b) {
+    if (a.length > b.length) {
+      return intersect(b, a);
+    }
+    if (a.length == 0) {
+      return EMPTY;
+    }
+    if (b.length / a.length >= GALLOP_RATIO) {
+      return gallop(a, b);
+    }
+    final int[] result = new int[Math.min(a.length, b.length)];
+    int i = 0, j = 0, size = 0;
+    while (i < a.length && j < b.length) {
+      if (a[i] < b[j]) {
+        i++;
+      } else if (a[i] > b[j]) {
+        j++;
+      } else {
+        result[size++] = a[i++];
+        j++;
+      }
+    }
+    return size == result.length ? result : Arrays.copyOf(result, size);
+  }
+
+  /**
+   * Intersect any number of sorted id sets, smallest first, so that each step is cheap and an empty
+   * intermediate result ends the intersection.
+   * @param sets sorted distinct ids
+   * @return sorted distinct ids contained in all sets, empty if no set is given
+   */
+  public static int[] intersectAll(int[][] sets) {
+    if (sets.length == 0) {
+      return EMPTY;
+    }
+    final int[][] bySize = sets.clone();
+    Arrays.sort(bySize, new Comparator<int[]>() {
+      public int compare(int[] a, int[] b) {
+        return a.length < b.length ? -1 : (a.length == b.length ? 0 : 1);
+      }
+    });
+    int[] result = bySize[0];
+    for (int i = 1; i < bySize.length && result.length > 0; i++) {
+      result = intersect(result, bySize[i]);
+    }
+    return result;
+  }
+
+  /**
+   * Look up each id of the small set in the large set. The search for the next id starts after the previous
+   * one, with exponentially growing steps followed by a binary search within the last step.
+   */
+  private static int[] gallop(int[] small, int[] large) {
+    final int[] result = new int[small.length];
+    int size = 0;
+    int low = 0;
+    for (int i = 0; i < small.length && low < large.length; i++) {
+      final int value = small[i];
+      int step = 1;
+      while (low + step < large.length && large[low + step] < value) {
+        step <<= 1;
+      }
+      final int position = Arrays.binarySearch(large, low + (step >> 1), Math.min(low + step + 1, large.length), value);
+      if (position >= 0) {
+        result[size++] = value;
+        low = position + 1;
+      } else {
+        low = -position - 1;
+      }
+    }
+    return size == result.length ? result : Arrays.copyOf(result, size);
+  }
+}
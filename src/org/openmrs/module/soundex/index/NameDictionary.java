@@ -0,0 +1,144 @@
+/**
+ * Copyright (C) 2011 innoQ Deutschland GmbH
+ *
+ * The contents of this file are subject to the OpenMRS Public License
+ * Version 1.0 (the "License"); you may not use this file except in
+ * compliance with the License. You may obtain a copy of the License at
+ * http://license.openmrs.org
+ *
+ * Software distributed under the License is distributed on an "AS IS"
+ * basis, WITHOUT WARRANTY OF ANY KIND, either express or implied. See the
+ * License for the specific language governing rights and limitations
+ * under the License.
+ *
+ * @author Arnd Kleinbeck, innoQ Deutschland GmbH, http://www.innoq.com
+ */
+package org.openmrs.module.soundex.index;
+
+import org.openmrs.module.soundex.encoder.SoundexEncoder;
+
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.atomic.AtomicInteger;
+
+/**
+ * Dictionary of the distinct spellings of names. Hundreds of thousands of person names share a few thousand
+ * spellings, so each spelling is given an id, kept as one string instance and encoded at most once.
+ * The dictionary is thread-safe.
+ */
+public final class NameDictionary {
+
+  private final SoundexEncoder encoder;
+  private final ConcurrentHashMap<String, Spelling> spellings = new ConcurrentHashMap<String, Spelling>();
+  private final AtomicInteger nextId = new AtomicInteger();
+
+  /**
+   * Constructor of a dictionary without codes, for sharing spellings only.
+   */
+  public NameDictionary() {
+    this(null);
+  }
+
+  /**
+   * Constructor.
+   * @param encoder the thread-safe encoder of the spellings, null if codes are not asked for
+   */
+  public NameDictionary(SoundexEncoder encoder) {
+    this.encoder = encoder;
+  }
+
+  /**
+   * Get the id of a spelling, adding it if it is new. Ids are unique within the dictionary.
+   * @param name the name
+   * @return the id or -1, if the name is null
+   */
+  public int getId(String name) {
+    return name == null ? -1 : spelling(name).id;
+  }
+
+  /**
+   * Get the shared instance of a spelling, adding it if it is new.
+   * @param name the name, may be null
+   * @return the instance equal to the name
+   */
+  public String intern(String name) {
+    return name == null ? null : spelling(name).name;
+  }
+
+  /**
+   * Get the soundex code of a spelling, encoding it only when it is asked for the first time.
+   * @param name the name, may be null
+   * @return the code, see {@link SoundexEncoder#encode(String)}
+   * @throws IllegalStateException if the dictionary has no encoder
+   */
+  public String getCode(String name) {
+    if (encoder == null) {
+      throw new IllegalStateException("name dictionary without encoder");
+    }
+    if (name == null) {
+      return encoder.encode(null);
+    }
+    final Spelling spelling = spelling(name);
+    String code = spelling.code;
+    if (code == null) {
+      // concurrent callers may encode a new spelling twice, to the same code
+      code = encoder.encode(spelling.name);
+      spelling.code = code;
+    }
+    return code;
+  }
+
+  /**
+   * Get a name entry with the shared instances of its names.
+   * @param entry the name entry
+   * @return the entry itself, if it uses the shared instances already, an equal entry otherwise
+   */
+  NameEntry intern(NameEntry entry) {
+    final String givenName = intern(entry.getGivenName());
+    final String familyName = intern(entry.getFamilyName());
+    final String familyName2 = intern(entry.getFamilyName2());
+    if (givenName == entry.getGivenName() && familyName == entry.getFamilyName() && familyName2 == entry.getFamilyName2()) {
+      return entry;
+    }
+    return new NameEntry(entry.getPersonNameId(), entry.getPatientId(), givenName, familyName, familyName2,
+            entry.getPackedGivenNameCode(), entry.getPackedFamilyNameCode(), entry.getPackedFamilyName2Code());
+  }
+
+  /**
+   * @return the number of distinct spellings
+   */
+  public int size() {
+    return spellings.size();
+  }
+
+  private Spelling spelling(String name) {
+    Spelling spelling = spellings.get(name);
+    if (spelling == null) {
+      final Spelling added = new Spelling(nextId.getAndIncrement(), name);
+      spelling = spellings.putIfAbsent(name, added);
+      if (spelling == null) {
+        spelling = added;
+      }
+    }
+    return spelling;
+  }
+
+  @Override
+  public String toString() {
+    return "NameDictionary[" + spellings.size() + " spellings]";
+  }
+
+  /**
+   * A distinct spelling with its id and, once asked for, its code.
+   */
+  private static final class Spelling {
+
+    final int id;
+    final String name;
+    volatile String code;
+
+    Spelling(int id, String name) {
+      this.id = id;
+      this.name = name;
+    }
+  }
+}
@@ -0,0 +1,137 @@
+/**
+ * Copyright (C) 2011 innoQ Deutschland GmbH
+ *
+ * The contents of this file are subject to the OpenMRS Public License
+ * Version 1.0 (the "License"); you may not use this file except in
+ * compliance with the License. You may obtain a copy of the License at
+ * http://license.openmrs.org
+ *
+ * Software distributed under the License is distributed on an "AS IS"
+ * basis, WITHOUT WARRANTY OF ANY KIND, either express or implied. See the
+ * License for the specific language governing rights and limitations
+ * under the License.
+ *
+ * @author Arnd Kleinbeck, innoQ Deutschland GmbH, http://www.innoq.com
+ */
+package org.openmrs.module.soundex.index;
+
+import org.apache.commons.logging.Log;
+import org.apache.commons.logging.LogFactory;
+import org.openmrs.module.soundex.encoder.SoundexEncoder;
+
+/**
+ * A non-voided person name of a non-voided patient together with its soundex codes,
+ * i.e. one row of person_name joined with person_name_code. The codes are kept packed,
+ * see {@link SoundexEncoder#pack(String)}.
+ */
+public class NameEntry {
+
+  private static final Log log = LogFactory.getLog(NameEntry.class);
+
+  private final int personNameId;
+  private final int patientId;
+  private final String givenName;
+  private final String familyName;
+  private final String familyName2;
+  private final int givenNameCode;
+  private final int familyNameCode;
+  private final int familyName2Code;
+
+  /**
+   * Constructor.
+   * @param personNameId the person name id
+   * @param patientId the patient id
+   * @param givenName the given name, may be null
+   * @param familyName the family name, may be null
+   * @param familyName2 the second family name, may be null
+   * @param givenNameCode the soundex code of the given name, may be null
+   * @param familyNameCode the soundex code of the family name, may be null
+   * @param familyName2Code the soundex code of the second family name, may be null. Codes that are not
+   * soundex codes are logged and kept as {@link SoundexEncoder#NO_CODE}, so one bad stored row does not
+   * fail a whole load.
+   */
+  public NameEntry(int personNameId, int patientId, String givenName, String familyName, String familyName2,
+                   String givenNameCode, String familyNameCode, String familyName2Code) {
+    this.personNameId = personNameId;
+    this.patientId = patientId;
+    this.givenName = givenName;
+    this.familyName = familyName;
+    this.familyName2 = familyName2;
+    this.givenNameCode = pack(personNameId, givenNameCode);
+    this.familyNameCode = pack(personNameId, familyNameCode);
+    this.familyName2Code = pack(personNameId, familyName2Code);
+  }
+
+  /**
+   * Constructor for packed codes, see {@link SoundexEncoder#pack(String)}.
+   */
+  NameEntry(int personNameId, int patientId, String givenName, String familyName, String familyName2,
+            int givenNameCode, int familyNameCode, int familyName2Code) {
+    this.personNameId = personNameId;
+    this.patientId = patientId;
+    this.givenName = givenName;
+    this.familyName = familyName;
+    this.familyName2 = familyName2;
+    this.givenNameCode = givenNameCode;
+    this.familyNameCode = familyNameCode;
+    this.familyName2Code = familyName2Code;
+  }
+
+  private static int pack(int personNameId, String code) {
+    try {
+      return SoundexEncoder.pack(code);
+    } catch (IllegalArgumentException e) {
+      log.warn("Ignoring invalid soundex code '" + code + "' of person name " + personNameId);
+      return SoundexEncoder.NO_CODE;
+    }
+  }
+
+  public int getPersonNameId() {
+    return personNameId;
+  }
+
+  public int getPatientId() {
+    return patientId;
+  }
+
+  public String getGivenName() {
+    return givenName;
+  }
+
+  public String getFamilyName() {
+    return familyName;
+  }
+
+  public String getFamilyName2() {
+    return familyName2;
+  }
+
+  public String getGivenNameCode() {
+    return SoundexEncoder.unpack(givenNameCode);
+  }
+
+  public String getFamilyNameCode() {
+    return SoundexEncoder.unpack(familyNameCode);
+  }
+
+  public String getFamilyName2Code() {
+    return SoundexEncoder.unpack(familyName2Code);
+  }
+
+  public int getPackedGivenNameCode() {
+    return givenNameCode;
+  }
+
+  public int getPackedFamilyNameCode() {
+    return familyNameCode;
+  }
+
+  public int getPackedFamilyName2Code() {
+    return familyName2Code;
+  }
+
+  @Override
+  public String toString() {
+    return personNameId + ":" + patientId + ":" + givenName + " " + familyName + (familyName2 == null ? "" : " " + familyName2);
+  }
+}
@@ -0,0 +1,369 @@
+/**
+ * Copyright (C) 2011 innoQ Deutschland GmbH
+ *
+ * The contents of this file are subject to the OpenMRS Public License
+ * Version 1.0 (the "License"); you may not use this file except in
+ * compliance with the License. You may obtain a copy of the License at
+ * http://license.openmrs.org
+ *
+ * Software distributed under the License is distributed on an "AS IS"
+ * basis, WITHOUT WARRANTY OF ANY KIND, either express or implied. See the
+ * License for the specific language governing rights and limitations
+ * under the License.
+ *
+ * @author Arnd Kleinbeck, innoQ Deutschland GmbH, http://www.innoq.com
+ */
+package org.openmrs.module.soundex.index;
+
+import java.util.Arrays;
+
+/**
+ * Immutable compressed set of patient ids in the manner of Roaring bitmaps. Ids are partitioned by their high
+ * 16 bits into chunks of 65536 ids; sparse chunks keep their low 16 bits as a sorted array, dense chunks (more
+ * than 4096 ids) as a bitmap of 8 KB. Intersections and unions work chunk by chunk, so that they cost about the
+ * size of the smaller set for sparse sets and 1024 word operations per chunk for dense ones.
+ * Patient ids must not be negative.
+ */
+public final class PatientBitmap {
+
+  /** the empty set. */
+  public static final PatientBitmap EMPTY = new PatientBitmap(new char[0], new Chunk[0]);
+
+  /** maximum number of ids of a chunk kept as array, an array of this size takes as much memory as a bitmap. */
+  static final int MAX_ARRAY_SIZE = 4096;
+
+  /** high 16 bits of the ids of each chunk, ascending. */
+  private final char[] keys;
+  private final Chunk[] chunks;
+
+  private PatientBitmap(char[] keys, Chunk[] chunks) {
+    this.keys = keys;
+    this.chunks = chunks;
+  }
+
+  /**
+   * Create the set of the given ids.
+   * @param ids sorted distinct non-negative ids
+   * @return the set
+   */
+  public static PatientBitmap of(int[] ids) {
+    if (ids.length == 0) {
+      return EMPTY;
+    }
+    final char[] keys = new char[(ids[ids.length - 1] >>> 16) - (ids[0] >>> 16) + 1];
+    final Chunk[] chunks = new Chunk[keys.length];
+    int count = 0;
+    for (int start = 0; start < ids.length; ) {
+      final int high = ids[start] >>> 16;
+      int end = start;
+      while (end < ids.length && ids[end] >>> 16 == high) {
+        end++;
+      }
+      final char[] values = new char[end - start];
+      for (int i = start; i < end; i++) {
+        values[i - start] = (char) ids[i];
+      }
+      keys[count] = (char) high;
+      chunks[count++] = ArrayChunk.of(values, values.length);
+      start = end;
+    }
+    return new PatientBitmap(Arrays.copyOf(keys, count), Arrays.copyOf(chunks, count));
+  }
+
+  /**
+   * Intersect this set with another one.
+   * @param other the other set
+   * @return the ids contained in both sets
+   */
+  public PatientBitmap and(PatientBitmap other) {
+    final int capacity = Math.min(keys.length, other.keys.length);
+    final char[] resultKeys = new char[capacity];
+    final Chunk[] resultChunks = new Chunk[capacity];
+    int count = 0;
+    for (int i = 0, j = 0; i < keys.length && j < other.keys.length; ) {
+      if (keys[i] < other.keys[j]) {
+        i++;
+      } else if (keys[i] > other.keys[j]) {
+        j++;
+      } else {
+        final Chunk chunk = chunks[i].and(other.chunks[j]);
+        if (chunk.cardinality() > 0) {
+          resultKeys[count] = keys[i];
+          resultChunks[count++] = chunk;
+        }
+        i++;
+        j++;
+      }
+    }
+    return count == 0 ? EMPTY : new PatientBitmap(Arrays.copyOf(resultKeys, count), Arrays.copyOf(resultChunks, count));
+  }
+
+  /**
+   * Unite this set with another one.
+   * @param other the other set
+   * @return the ids contained in either set
+   */
+  public PatientBitmap or(PatientBitmap other) {
+    final int capacity = keys.length + other.keys.length;
+    final char[] resultKeys = new char[capacity];
+    final Chunk[] resultChunks = new Chunk[capacity];
+    int count = 0;
+    int i = 0;
+    int j = 0;
+    while (i < keys.length || j < other.keys.length) {
+      if (j == other.keys.length || (i < keys.length && keys[i] < other.keys[j])) {
+        resultKeys[count] = keys[i];
+        resultChunks[count++] = chunks[i++];
+      } else if (i == keys.length || keys[i] > other.keys[j]) {
+        resultKeys[count] = other.keys[j];
+        resultChunks[count++] = other.chunks[j++];
+      } else {
+        resultKeys[count] = keys[i];
+        resultChunks[count++] = chunks[i++].or(other.chunks[j++]);
+      }
+    }
+    return new PatientBitmap(Arrays.copyOf(resultKeys, count), Arrays.copyOf(resultChunks, count));
+  }
+
+  /**
+   * Checks whether the set contains an id.
+   * @param id the id
+   * @return true, if the id is contained
+   */
+  public boolean contains(int id) {
+    if (id < 0) {
+      return false;
+    }
+    final int position = Arrays.binarySearch(keys, (char) (id >>> 16));
+    return position >= 0 && chunks[position].contains((char) id);
+  }
+
+  /**
+   * @return the number of ids
+   */
+  public int getCardinality() {
+    int cardinality = 0;
+    for (Chunk chunk : chunks) {
+      cardinality += chunk.cardinality();
+    }
+    return cardinality;
+  }
+
+  /**
+   * @return the ids, sorted
+   */
+  public int[] toArray() {
+    final int[] ids = new int[getCardinality()];
+    int offset = 0;
+    for (int i = 0; i < chunks.length; i++) {
+      offset = chunks[i].copyTo(ids, offset, keys[i] << 16);
+    }
+    return ids;
+  }
+
+  @Override
+  public String toString() {
+    return "PatientBitmap[" + getCardinality() + " ids, " + chunks.length + " chunks]";
+  }
+
+  /**
+   * The low 16 bits of the ids sharing the same high 16 bits.
+   */
+  private abstract static class Chunk {
+
+    abstract int cardinality();
+
+    abstract boolean contains(char value);
+
+    abstract Chunk and(Chunk other);
+
+    abstract Chunk or(Chunk other);
+
+    /**
+     * Copy the ids of the chunk into an array.
+     * @param ids the target array
+     * @param offset the position of the first id
+     * @param high the high 16 bits of the ids, already shifted
+     * @return the position after the last id
+     */
+    abstract int copyTo(int[] ids, int offset, int high);
+  }
+
+  /**
+   * Sparse chunk, sorted low 16 bits.
+   */
+  private static final class ArrayChunk extends Chunk {
+
+    private final char[] values;
+
+    private ArrayChunk(char[] values) {
+      this.values = values;
+    }
+
+    /**
+     * Create a chunk of the first size values, as a bitmap if there are too many values for an array.
+     */
+    static Chunk of(char[] values, int size) {
+      if (size > MAX_ARRAY_SIZE) {
+        final long[] words = new long[BitmapChunk.WORDS];
+        for (int i = 0; i < size; i++) {
+          words[values[i] >>> 6] |= 1L << values[i];
+        }
+        return new BitmapChunk(words, size);
+      }
+      return new ArrayChunk(size == values.length ? values : Arrays.copyOf(values, size));
+    }
+
+    int cardinality() {
+      return values.length;
+    }
+
+    boolean contains(char value) {
+      return Arrays.binarySearch(values, value) >= 0;
+    }
+
+    Chunk and(Chunk other) {
+      final char[] result = new char[values.length];
+      int size = 0;
+      if (other instanceof BitmapChunk) {
+        for (char value : values) {
+          if (other.contains(value)) {
+            result[size++] = value;
+          }
+        }
+      } else {
+        final char[] otherValues = ((ArrayChunk) other).values;
+        for (int i = 0, j = 0; i < values.length && j < otherValues.length; ) {
+          if (values[i] < otherValues[j]) {
+            i++;
+          } else if (values[i] > otherValues[j]) {
+            j++;
+          } else {
+            result[size++] = values[i];
+            i++;
+            j++;
+          }
+        }
+      }
+      return of(result, size);
+    }
+
+    Chunk or(Chunk other) {
+      if (other instanceof BitmapChunk) {
+        return other.or(this);
+      }
+      final char[] otherValues = ((ArrayChunk) other).values;
+      final char[] result = new char[values.length + otherValues.length];
+      int size = 0;
+      int i = 0;
+      int j = 0;
+      while (i < values.length && j < otherValues.length) {
+        if (values[i] < otherValues[j]) {
+          result[size++] = values[i++];
+        } else if (values[i] > otherValues[j]) {
+          result[size++] = otherValues[j++];
+        } else {
+          result[size++] = values[i++];
+          j++;
+        }
+      }
+      while (i < values.length) {
+        result[size++] = values[i++];
+      }
+      while (j < otherValues.length) {
+        result[size++] = otherValues[j++];
+      }
+      return of(result, size);
+    }
+
+    int copyTo(int[] ids, int offset, int high) {
+      for (char value : values) {
+        ids[offset++] = high | value;
+      }
+      return offset;
+    }
+  }
+
+  /**
+   * Dense chunk, one bit per low 16 bits value.
+   */
+  private static final class BitmapChunk extends Chunk {
+
+    static final int WORDS = 1024;
+
+    private final long[] words;
+    private final int cardinality;
+
+    private BitmapChunk(long[] words, int cardinality) {
+      this.words = words;
+      this.cardinality = cardinality;
+    }
+
+    int cardinality() {
+      return cardinality;
+    }
+
+    boolean contains(char value) {
+      return (words[value >>> 6] & (1L << value)) != 0;
+    }
+
+    Chunk and(Chunk other) {
+      if (other instanceof ArrayChunk) {
+        return other.and(this);
+      }
+      final long[] otherWords = ((BitmapChunk) other).words;
+      final long[] result = new long[WORDS];
+      int size = 0;
+      for (int i = 0; i < WORDS; i++) {
+        result[i] = words[i] & otherWords[i];
+        size += Long.bitCount(result[i]);
+      }
+      return size > MAX_ARRAY_SIZE ? new BitmapChunk(result, size) : new ArrayChunk(toValues(result, size));
+    }
+
+    Chunk or(Chunk other) {
+      final long[] result = words.clone();
+      int size = cardinality;
+      if (other instanceof ArrayChunk) {
+        for (char value : ((ArrayChunk) other).values) {
+          if ((result[value >>> 6] & (1L << value)) == 0) {
+            result[value >>> 6] |= 1L << value;
+            size++;
+          }
+        }
+      } else {
+        final long[] otherWords = ((BitmapChunk) other).words;
+        size = 0;
+        for (int i = 0; i < WORDS; i++) {
+          result[i] |= otherWords[i];
+          size += Long.bitCount(result[i]);
+        }
+      }
+      return new BitmapChunk(result, size);
+    }
+
+    int copyTo(int[] ids, int offset, int high) {
+      for (int i = 0; i < WORDS; i++) {
+        long word = words[i];
+        while (word != 0) {
+          ids[offset++] = high | (i << 6) | Long.numberOfTrailingZeros(word);
+          word &= word - 1;
+        }
+      }
+      return offset;
+    }
+
+    private static char[] toValues(long[] words, int size) {
+      final char[] values = new char[size];
+      int count = 0;
+      for (int i = 0; i < WORDS; i++) {
+        long word = words[i];
+        while (word != 0) {
+          values[count++] = (char) ((i << 6) | Long.numberOfTrailingZeros(word));
+          word &= word - 1;
+        }
+      }
+      return values;
+    }
+  }
+}
@@ -0,0 +1,68 @@
+/**
+ * Copyright (C) 2011 innoQ Deutschland GmbH
+ *
+ * The contents of this file are subject to the OpenMRS Public License
+ * Version 1.0 (the "License"); you may not use this file except in
+ * compliance with the License. You may obtain a copy of the License at
+ * http://license.openmrs.org
+ *
+ * Software distributed under the License is distributed on an "AS IS"
+ * basis, WITHOUT WARRANTY OF ANY KIND, either express or implied. See the
+ * License for the specific language governing rights and limitations
+ * under the License.
+ *
+ * @author Arnd Kleinbeck, innoQ Deutschland GmbH, http://www.innoq.com
+ */
+package org.openmrs.module.soundex.index;
+
+import java.util.Arrays;
+
+/**
+ * The names of a patient after a committed write. Applying an update replaces whatever the search state
+ * knew about the patient, so updates can be applied more than once.
+ */
+public class PatientNamesUpdate {
+
+  private final int patientId;
+  private final NameEntry[] names;
+
+  /**
+   * Constructor.
+   * @param patientId the patient id
+   * @param names the non-voided names of the patient, empty if the patient is voided or deleted
+   */
+  public PatientNamesUpdate(int patientId, NameEntry[] names) {
+    this.patientId = patientId;
+    this.names = names;
+  }
+
+  /**
+   * Create the update of a voided or deleted patient.
+   * @param patientId the patient id
+   * @return the update
+   */
+  public static PatientNamesUpdate removal(int patientId) {
+    return new PatientNamesUpdate(patientId, new NameEntry[0]);
+  }
+
+  /**
+   * Apply the update to the index.
+   * @param index the soundex index
+   */
+  public void applyTo(SoundexIndex index) {
+    index.updatePatient(patientId, names);
+  }
+
+  public int getPatientId() {
+    return patientId;
+  }
+
+  public NameEntry[] getNames() {
+    return names;
+  }
+
+  @Override
+  public String toString() {
+    return "PatientNamesUpdate[" + patientId + ": " + Arrays.asList(names) + "]";
+  }
+}
@@ -0,0 +1,261 @@
+/**
+ * Copyright (C) 2011 innoQ Deutschland GmbH
+ *
+ * The contents of this file are subject to the OpenMRS Public License
+ * Version 1.0 (the "License"); you may not use this file except in
+ * compliance with the License. You may obtain a copy of the License at
+ * http://license.openmrs.org
+ *
+ * Software distributed under the License is distributed on an "AS IS"
+ * basis, WITHOUT WARRANTY OF ANY KIND, either express or implied. See the
+ * License for the specific language governing rights and limitations
+ * under the License.
+ *
+ * @author Arnd Kleinbeck, innoQ Deutschland GmbH, http://www.innoq.com
+ */
+package org.openmrs.module.soundex.index;
+
+import org.hibernate.SessionFactory;
+import org.hibernate.StatelessSession;
+import org.openmrs.api.APIException;
+
+import java.sql.Connection;
+import java.sql.ResultSet;
+import java.sql.SQLException;
+import java.sql.Statement;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.Comparator;
+import java.util.LinkedList;
+import java.util.List;
+import java.util.concurrent.atomic.AtomicReferenceArray;
+
+/**
+ * Dictionary of the distinct soundex codes and code prefixes that occur in person_name_code, for finding the
+ * existing codes next to a query code whose name was mistyped. The codes are kept in a BK-tree under their
+ * Levenshtein distance, so a lookup only visits the subtrees that may hold codes within the distance asked for.
+ * Codes are short and their number is small, a lookup takes microseconds.
+ * <p>
+ * Lookups may run concurrently with each other and with additions.
+ */
+public final class SoundexCodeDictionary {
+
+  /** the distinct codes of all names, whether voided or not. */
+  private static final String SELECT_CODES =
+          "SELECT given_name_code FROM person_name_code " +
+          "UNION SELECT family_name_code FROM person_name_code " +
+          "UNION SELECT family_name2_code FROM person_name_code";
+
+  /** maximum length of a soundex code, one letter and three digits, also the maximum distance of two codes. */
+  private static final int MAX_CODE_LENGTH = 4;
+
+  /** orders neighbours by distance, then alphabetically. */
+  private static final Comparator<Neighbour> NEIGHBOUR_ORDER = new Comparator<Neighbour>() {
+    public int compare(Neighbour a, Neighbour b) {
+      return a.distance != b.distance ? a.distance - b.distance : a.code.compareTo(b.code);
+    }
+  };
+
+  /** the root of the tree, null while the dictionary is empty. */
+  private volatile Node root;
+
+  private volatile int size;
+
+  /**
+   * Load the distinct codes on a stateless session of the given session factory.
+   * @param sessionFactory the session factory
+   * @return the dictionary
+   */
+  public static SoundexCodeDictionary load(SessionFactory sessionFactory) {
+    final StatelessSession session = sessionFactory.openStatelessSession();
+    try {
+      return load(session.connection());
+    } catch (SQLException e) {
+      throw new APIException("Loading the soundex code dictionary failed", e);
+    } finally {
+      session.close();
+    }
+  }
+
+  /**
+   * Load the distinct codes.
+   * @param connection the connection
+   * @return the dictionary
+   * @throws SQLException if reading fails
+   */
+  public static SoundexCodeDictionary load(Connection connection) throws SQLException {
+    final SoundexCodeDictionary dictionary = new SoundexCodeDictionary();
+    final Statement statement = connection.createStatement();
+    try {
+      final ResultSet resultSet = statement.executeQuery(SELECT_CODES);
+      while (resultSet.next()) {
+        dictionary.add(resultSet.getString(1));
+      }
+    } finally {
+      statement.close();
+    }
+    return dictionary;
+  }
+
+  /**
+   * Add the codes of a name entry.
+   * @param entry the name entry
+   */
+  public void add(NameEntry entry) {
+    add(entry.getGivenNameCode());
+    add(entry.getFamilyNameCode());
+    add(entry.getFamilyName2Code());
+  }
+
+  /**
+   * Add a code and its prefixes, which are matched by the prefix columns of shorter query codes.
+   * @param code the code, null, empty codes and codes longer than a soundex code are ignored
+   */
+  public void add(String code) {
+    if (code == null || code.length() == 0 || code.length() > MAX_CODE_LENGTH) {
+      return;
+    }
+    for (int length = 1; length <= code.length(); length++) {
+      insert(code.substring(0, length));
+    }
+  }
+
+  private synchronized void insert(String code) {
+    if (root == null) {
+      root = new Node(code);
+      size++;
+      return;
+    }
+    Node node = root;
+    while (true) {
+      final int distance = distance(node.code, code);
+      if (distance == 0) {
+        return;
+      }
+      final Node child = node.children.get(distance);
+      if (child == null) {
+        // published to concurrent lookups by the atomic array
+        node.children.set(distance, new Node(code));
+        size++;
+        return;
+      }
+      node = child;
+    }
+  }
+
+  /**
+   * Find the codes next to a query code. Codes starting with the query code are left out, the prefix search
+   * of the query code finds their names already, and so are codes starting with a nearer neighbour. Single
+   * letters are neighbours of single letters only, they match too many names otherwise.
+   * @param code the query code
+   * @param maxDistance the maximum Levenshtein distance
+   * @param limit the maximum number of codes
+   * @return the codes, nearest first, then alphabetically
+   */
+  public List<String> findNeighbours(String code, int maxDistance, int limit) {
+    if (code == null || code.length() == 0 || root == null) {
+      return Collections.emptyList();
+    }
+    final List<Neighbour> neighbours = new ArrayList<Neighbour>();
+    final LinkedList<Node> pending = new LinkedList<Node>();
+    pending.add(root);
+    while (!pending.isEmpty()) {
+      final Node node = pending.removeFirst();
+      final int distance = distance(node.code, code);
+      if (distance <= maxDistance && !node.code.startsWith(code) && node.code.length() >= Math.min(code.length(), 2)) {
+        neighbours.add(new Neighbour(node.code, distance));
+      }
+      // by the triangle inequality, codes within maxDistance are found in these subtrees only
+      final int to = Math.min(distance + maxDistance, MAX_CODE_LENGTH);
+      for (int childDistance = Math.max(distance - maxDistance, 1); childDistance <= to; childDistance++) {
+        final Node child = node.children.get(childDistance);
+        if (child != null) {
+          pending.add(child);
+        }
+      }
+    }
+    Collections.sort(neighbours, NEIGHBOUR_ORDER);
+
+    final List<String> codes = new ArrayList<String>(Math.min(limit, neighbours.size()));
+    for (Neighbour neighbour : neighbours) {
+      if (codes.size() >= limit) {
+        break;
+      }
+      if (!startsWithAny(neighbour.code, codes)) {
+        codes.add(neighbour.code);
+      }
+    }
+    return codes;
+  }
+
+  private static boolean startsWithAny(String code, List<String> prefixes) {
+    for (String prefix : prefixes) {
+      if (code.startsWith(prefix)) {
+        return true;
+      }
+    }
+    return false;
+  }
+
+  /**
+   * Get the Levenshtein distance of two codes, the number of letters to insert, delete or replace to turn one
+   * into the other.
+   * @param a a code
+   * @param b another code
+   * @return the distance
+   */
+  static int distance(String a, String b) {
+    int[] previous = new int[b.length() + 1];
+    int[] current = new int[b.length() + 1];
+    for (int j = 0; j <= b.length(); j++) {
+      previous[j] = j;
+    }
+    for (int i = 1; i <= a.length(); i++) {
+      current[0] = i;
+      for (int j = 1; j <= b.length(); j++) {
+        final int replace = previous[j - 1] + (a.charAt(i - 1) == b.charAt(j - 1) ? 0 : 1);
+        current[j] = Math.min(replace, Math.min(previous[j], current[j - 1]) + 1);
+      }
+      final int[] swap = previous;
+      previous = current;
+      current = swap;
+    }
+    return previous[b.length()];
+  }
+
+  /**
+   * @return the number of distinct codes and code prefixes
+   */
+  public int size() {
+    return size;
+  }
+
+  @Override
+  public String toString() {
+    return "SoundexCodeDictionary[" + size + " codes]";
+  }
+
+  /**
+   * Node of the BK-tree, the child at index d holds the codes at distance d from the code of the node.
+   */
+  private static final class Node {
+
+    final String code;
+    final AtomicReferenceArray<Node> children = new AtomicReferenceArray<Node>(MAX_CODE_LENGTH + 1);
+
+    Node(String code) {
+      this.code = code;
+    }
+  }
+
+  private static final class Neighbour {
+
+    final String code;
+    final int distance;
+
+    Neighbour(String code, int distance) {
+      this.code = code;
+      this.distance = distance;
+    }
+  }
+}
@@ -0,0 +1,505 @@
+/**
+ * Copyright (C) 2011 innoQ Deutschland GmbH
+ *
+ * The contents of this file are subject to the OpenMRS Public License
+ * Version 1.0 (the "License"); you may not use this file except in
+ * compliance with the License. You may obtain a copy of the License at
+ * http://license.openmrs.org
+ *
+ * Software distributed under the License is distributed on an "AS IS"
+ * basis, WITHOUT WARRANTY OF ANY KIND, either express or implied. See the
+ * License for the specific language governing rights and limitations
+ * under the License.
+ *
+ * @author Arnd Kleinbeck, innoQ Deutschland GmbH, http://www.innoq.com
+ */
+package org.openmrs.module.soundex.index;
+
+import org.openmrs.module.soundex.encoder.SoundexEncoder;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collection;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.NavigableMap;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentSkipListMap;
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * In-memory inverted index of the soundex codes of non-voided patient names. Each given name, family name
+ * and second family name code maps onto the sorted ids of the patients having a name with that code.
+ * Codes are kept packed (see {@link SoundexEncoder#pack(String)}), the codes starting with a query code are the
+ * range of keys from the packed query code to {@link SoundexEncoder#prefixEnd(int)}.
+ * The names themselves are kept per patient, so that candidates can be ranked without database access.
+ */
+public class SoundexIndex {
+
+  /** empty name list of patients that are not indexed. */
+  private static final NameEntry[] NO_NAMES = new NameEntry[0];
+
+  private final ConcurrentSkipListMap<Integer, int[]> givenNamePostings;
+  private final ConcurrentSkipListMap<Integer, int[]> familyNamePostings;
+  private final ConcurrentSkipListMap<Integer, int[]> familyName2Postings;
+  private final ConcurrentHashMap<Integer, NameEntry[]> namesByPatient;
+
+  /** the spellings of the indexed names, each is kept once however many patients share it. */
+  private final NameDictionary spellings;
+
+  /** bitmaps of the patients matching a given name code prefix, built on demand and dropped when postings change. */
+  private final ConcurrentHashMap<Integer, PatientBitmap> givenNameBitmaps = new ConcurrentHashMap<Integer, PatientBitmap>();
+
+  /** bitmaps of the patients matching a family name or second family name code prefix, see givenNameBitmaps. */
+  private final ConcurrentHashMap<Integer, PatientBitmap> familyNameBitmaps = new ConcurrentHashMap<Integer, PatientBitmap>();
+
+  /** number of patient updates, bitmaps built while it changes are not cached. */
+  private final AtomicLong updateCount = new AtomicLong();
+
+  /**
+   * Constructor, see {@link Builder}.
+   */
+  private SoundexIndex(ConcurrentSkipListMap<Integer, int[]> givenNamePostings,
+                       ConcurrentSkipListMap<Integer, int[]> familyNamePostings,
+                       ConcurrentSkipListMap<Integer, int[]> familyName2Postings,
+                       ConcurrentHashMap<Integer, NameEntry[]> namesByPatient,
+                       NameDictionary spellings) {
+    this.givenNamePostings = givenNamePostings;
+    this.familyNamePostings = familyNamePostings;
+    this.familyName2Postings = familyName2Postings;
+    this.namesByPatient = namesByPatient;
+    this.spellings = spellings;
+  }
+
+  /**
+   * Get the patients having a given name code that starts with the given code.
+   * @param code the query code
+   * @return sorted patient ids
+   */
+  public int[] findGivenNamePatientIds(String code) {
+    return findPatientIds(givenNamePostings, SoundexEncoder.pack(code));
+  }
+
+  /**
+   * Get the patients having a family name or second family name code that starts with the given code.
+   * @param code the query code
+   * @return sorted patient ids
+   */
+  public int[] findFamilyNamePatientIds(String code) {
+    return findFamilyNamePatientIds(SoundexEncoder.pack(code));
+  }
+
+  private int[] findFamilyNamePatientIds(int code) {
+    return IntArrays.union(findPatientIds(familyNamePostings, code), findPatientIds(familyName2Postings, code));
+  }
+
+  /**
+   * Get the bitmap of the patients having a given name code that starts with the given code.
+   * @param code the query code
+   * @return the patient ids
+   */
+  public PatientBitmap getGivenNameBitmap(String code) {
+    final int packed = SoundexEncoder.pack(code);
+    if (packed == SoundexEncoder.NO_CODE) {
+      return PatientBitmap.EMPTY;
+    }
+    final long count = updateCount.get();
+    PatientBitmap bitmap = givenNameBitmaps.get(packed);
+    if (bitmap == null) {
+      bitmap = PatientBitmap.of(findPatientIds(givenNamePostings, packed));
+      cacheBitmap(givenNameBitmaps, packed, bitmap, count);
+    }
+    return bitmap;
+  }
+
+  /**
+   * Get the bitmap of the patients having a family name or second family name code that starts with the given code.
+   * @param code the query code
+   * @return the patient ids
+   */
+  public PatientBitmap getFamilyNameBitmap(String code) {
+    final int packed = SoundexEncoder.pack(code);
+    if (packed == SoundexEncoder.NO_CODE) {
+      return PatientBitmap.EMPTY;
+    }
+    final long count = updateCount.get();
+    PatientBitmap bitmap = familyNameBitmaps.get(packed);
+    if (bitmap == null) {
+      bitmap = PatientBitmap.of(findPatientIds(familyNamePostings, packed)).or(PatientBitmap.of(findPatientIds(familyName2Postings, packed)));
+      cacheBitmap(familyNameBitmaps, packed, bitmap, count);
+    }
+    return bitmap;
+  }
+
+  /**
+   * Get the patients having a given name, family name or second family name code that starts with the given code.
+   * @param code the query code
+   * @return sorted patient ids
+   */
+  public int[] findAnyNamePatientIds(String code) {
+    final int packed = SoundexEncoder.pack(code);
+    return IntArrays.union(findPatientIds(givenNamePostings, packed), findFamilyNamePatientIds(packed));
+  }
+
+  /**
+   * Find the patients matching the given name query.
+   * @param name the search string
+   * @param code the soundex code of the search string
+   * @param limit the maximum number of patients
+   * @return ranked patient ids
+   */
+  public List<Integer> findGivenName(String name, String code, int limit) {
+    return SoundexRanking.givenName(name, code).rank(this, findGivenNamePatientIds(code), limit);
+  }
+
+  /**
+   * Find the patients matching the family name query.
+   * @param name the search string
+   * @param code the soundex code of the search string
+   * @param limit the maximum number of patients
+   * @return ranked patient ids
+   */
+  public List<Integer> findFamilyName(String name, String code, int limit) {
+    return SoundexRanking.familyName(name, code).rank(this, findFamilyNamePatientIds(code), limit);
+  }
+
+  /**
+   * Find the patients matching the given name and family name query.
+   * @param givenName the given name search string
+   * @param familyName the family name search string
+   * @param givenCode the soundex code of the given name
+   * @param familyCode the soundex code of the family name
+   * @param limit the maximum number of patients
+   * @return ranked patient ids
+   */
+  public List<Integer> findGivenAndFamilyName(String givenName, String familyName, String givenCode, String familyCode, int limit) {
+    // popular codes match large parts of the index, their bitmaps are intersected without merging postings
+    final int[] patientIds = getGivenNameBitmap(givenCode).and(getFamilyNameBitmap(familyCode)).toArray();
+    return SoundexRanking.givenAndFamilyName(givenName, familyName, givenCode, familyCode).rank(this, patientIds, limit);
+  }
+
+  /**
+   * Find the patients having names matching all of the given names, see {@link SoundexRanking#allNames(String[], String[])}.
+   * Names without code are ignored.
+   * @param names the search strings
+   * @param codes the soundex codes of the search strings
+   * @param limit the maximum number of patients
+   * @return ranked patient ids
+   */
+  public List<Integer> findAllNames(String[] names, String[] codes, int limit) {
+    final List<int[]> candidateSets = new ArrayList<int[]>(codes.length);
+    for (String code : codes) {
+      if (code != null) {
+        candidateSets.add(findAnyNamePatientIds(code));
+      }
+    }
+    final int[] patientIds = IntArrays.intersectAll(candidateSets.toArray(new int[candidateSets.size()][]));
+    return SoundexRanking.allNames(names, codes).rank(this, patientIds, limit);
+  }
+
+  /**
+   * Get the indexed names of a patient.
+   * @param patientId the patient id
+   * @return the names, empty if the patient is not indexed
+   */
+  public NameEntry[] getNames(int patientId) {
+    final NameEntry[] names = namesByPatient.get(patientId);
+    return names == null ? NO_NAMES : names;
+  }
+
+  /**
+   * Replace the names of a patient. Readers are not blocked, they see each posting either before or
+   * after the update, as postings are replaced instead of modified.
+   * @param patientId the patient id
+   * @param names the non-voided names of the patient, empty if the patient is voided or deleted
+   */
+  public synchronized void updatePatient(int patientId, NameEntry[] names) {
+    final NameEntry[] previous = getNames(patientId);
+    if (names.length == 0) {
+      namesByPatient.remove(patientId);
+    } else {
+      final NameEntry[] interned = new NameEntry[names.length];
+      for (int i = 0; i < names.length; i++) {
+        interned[i] = spellings.intern(names[i]);
+      }
+      namesByPatient.put(patientId, interned);
+    }
+    final int[] previousGivenNameCodes = givenNameCodes(previous);
+    final int[] previousFamilyNameCodes = familyNameCodes(previous);
+    final int[] previousFamilyName2Codes = familyName2Codes(previous);
+    final int[] givenNameCodes = givenNameCodes(names);
+    final int[] familyNameCodes = familyNameCodes(names);
+    final int[] familyName2Codes = familyName2Codes(names);
+    updatePostings(givenNamePostings, patientId, previousGivenNameCodes, givenNameCodes);
+    updatePostings(familyNamePostings, patientId, previousFamilyNameCodes, familyNameCodes);
+    updatePostings(familyName2Postings, patientId, previousFamilyName2Codes, familyName2Codes);
+    // bitmaps being built concurrently may have read the old postings, they are not cached from now on
+    updateCount.incrementAndGet();
+    dropBitmaps(givenNameBitmaps, previousGivenNameCodes, givenNameCodes);
+    dropBitmaps(familyNameBitmaps, IntArrays.union(previousFamilyNameCodes, previousFamilyName2Codes),
+            IntArrays.union(familyNameCodes, familyName2Codes));
+  }
+
+  /**
+   * Get the indexed names of all patients, e.g. to save a snapshot.
+   * @return unmodifiable view of the names per patient
+   */
+  public Collection<NameEntry[]> getAllNames() {
+    return Collections.unmodifiableCollection(namesByPatient.values());
+  }
+
+  /**
+   * @return the number of indexed names
+   */
+  public int getNameCount() {
+    int count = 0;
+    for (NameEntry[] names : namesByPatient.values()) {
+      count += names.length;
+    }
+    return count;
+  }
+
+  /**
+   * @return the number of indexed patients
+   */
+  public int getPatientCount() {
+    return namesByPatient.size();
+  }
+
+  /**
+   * @return the number of distinct given name, family name and second family name codes
+   */
+  public int getCodeCount() {
+    return givenNamePostings.size() + familyNamePostings.size() + familyName2Postings.size();
+  }
+
+  @Override
+  public String toString() {
+    return "SoundexIndex[" + getPatientCount() + " patients, " + getCodeCount() + " codes, " + spellings.size() + " spellings]";
+  }
+
+  /**
+   * Collect the postings of all codes starting with the given code. As packed codes are sorted like their
+   * strings, these form a contiguous range of the map.
+   */
+  private static int[] findPatientIds(NavigableMap<Integer, int[]> postings, int code) {
+    if (code == SoundexEncoder.NO_CODE) {
+      return IntArrays.EMPTY;
+    }
+    final NavigableMap<Integer, int[]> range = postings.subMap(code, true, SoundexEncoder.prefixEnd(code), true);
+    // the postings are read once, as they may be replaced concurrently
+    final List<int[]> postingList = new ArrayList<int[]>(range.values());
+    if (postingList.isEmpty()) {
+      return IntArrays.EMPTY;
+    }
+    if (postingList.size() == 1) {
+      return postingList.get(0);
+    }
+    int length = 0;
+    for (int[] posting : postingList) {
+      length += posting.length;
+    }
+    final int[] ids = new int[length];
+    int offset = 0;
+    for (int[] posting : postingList) {
+      System.arraycopy(posting, 0, ids, offset, posting.length);
+      offset += posting.length;
+    }
+    return IntArrays.sortedDistinct(ids, ids.length);
+  }
+
+  /**
+   * Cache a bitmap, unless a patient has been updated since its postings were read. Synchronized with
+   * updatePatient, so that a bitmap cannot be cached after the update has dropped it.
+   */
+  private synchronized void cacheBitmap(ConcurrentHashMap<Integer, PatientBitmap> bitmaps, int code, PatientBitmap bitmap, long count) {
+    if (updateCount.get() == count) {
+      bitmaps.put(code, bitmap);
+    }
+  }
+
+  /**
+   * Drop the bitmaps of all prefixes of the codes a patient has lost or gained.
+   */
+  private static void dropBitmaps(ConcurrentHashMap<Integer, PatientBitmap> bitmaps, int[] previousCodes, int[] codes) {
+    if (bitmaps.isEmpty()) {
+      return;
+    }
+    for (int code : previousCodes) {
+      if (Arrays.binarySearch(codes, code) < 0) {
+        dropPrefixBitmaps(bitmaps, code);
+      }
+    }
+    for (int code : codes) {
+      if (Arrays.binarySearch(previousCodes, code) < 0) {
+        dropPrefixBitmaps(bitmaps, code);
+      }
+    }
+  }
+
+  private static void dropPrefixBitmaps(ConcurrentHashMap<Integer, PatientBitmap> bitmaps, int code) {
+    for (int length = 1; length <= SoundexEncoder.codeLength(code); length++) {
+      bitmaps.remove(SoundexEncoder.prefix(code, length));
+    }
+  }
+
+  /**
+   * Remove the patient from the postings of the codes it no longer has and add it to the postings of
+   * its new codes.
+   */
+  private static void updatePostings(ConcurrentSkipListMap<Integer, int[]> postings, int patientId,
+                                     int[] previousCodes, int[] codes) {
+    for (int code : previousCodes) {
+      if (Arrays.binarySearch(codes, code) < 0) {
+        final int[] ids = postings.get(code);
+        final int position = ids == null ? -1 : Arrays.binarySearch(ids, patientId);
+        if (position < 0) {
+          continue;
+        }
+        if (ids.length == 1) {
+          postings.remove(code);
+        } else {
+          final int[] updated = new int[ids.length - 1];
+          System.arraycopy(ids, 0, updated, 0, position);
+          System.arraycopy(ids, position + 1, updated, position, ids.length - position - 1);
+          postings.put(code, updated);
+        }
+      }
+    }
+    for (int code : codes) {
+      if (Arrays.binarySearch(previousCodes, code) < 0) {
+        final int[] ids = postings.get(code);
+        if (ids == null) {
+          postings.put(code, new int[] {patientId});
+          continue;
+        }
+        final int position = Arrays.binarySearch(ids, patientId);
+        if (position >= 0) {
+          continue;
+        }
+        final int insertion = -position - 1;
+        final int[] updated = new int[ids.length + 1];
+        System.arraycopy(ids, 0, updated, 0, insertion);
+        updated[insertion] = patientId;
+        System.arraycopy(ids, insertion, updated, insertion + 1, ids.length - insertion);
+        postings.put(code, updated);
+      }
+    }
+  }
+
+  private static int[] givenNameCodes(NameEntry[] names) {
+    final int[] codes = new int[names.length];
+    int count = 0;
+    for (NameEntry name : names) {
+      count = addCode(codes, count, name.getPackedGivenNameCode());
+    }
+    return IntArrays.sortedDistinct(codes, count);
+  }
+
+  private static int[] familyNameCodes(NameEntry[] names) {
+    final int[] codes = new int[names.length];
+    int count = 0;
+    for (NameEntry name : names) {
+      count = addCode(codes, count, name.getPackedFamilyNameCode());
+    }
+    return IntArrays.sortedDistinct(codes, count);
+  }
+
+  private static int[] familyName2Codes(NameEntry[] names) {
+    final int[] codes = new int[names.length];
+    int count = 0;
+    for (NameEntry name : names) {
+      count = addCode(codes, count, name.getPackedFamilyName2Code());
+    }
+    return IntArrays.sortedDistinct(codes, count);
+  }
+
+  private static int addCode(int[] codes, int count, int code) {
+    if (code != SoundexEncoder.NO_CODE) {
+      codes[count++] = code;
+    }
+    return count;
+  }
+
+  /**
+   * Collects name entries and builds the index in one go. Not thread-safe.
+   */
+  public static class Builder {
+
+    private final Map<Integer, IdList> givenNamePostings = new HashMap<Integer, IdList>();
+    private final Map<Integer, IdList> familyNamePostings = new HashMap<Integer, IdList>();
+    private final Map<Integer, IdList> familyName2Postings = new HashMap<Integer, IdList>();
+    private final Map<Integer, List<NameEntry>> namesByPatient = new HashMap<Integer, List<NameEntry>>();
+    private final NameDictionary spellings = new NameDictionary();
+
+    /**
+     * Add a name, sharing the spellings of its names with the names added before.
+     * @param entry the name entry
+     * @return this builder
+     */
+    public Builder add(NameEntry entry) {
+      final NameEntry interned = spellings.intern(entry);
+      post(givenNamePostings, interned.getPackedGivenNameCode(), interned.getPatientId());
+      post(familyNamePostings, interned.getPackedFamilyNameCode(), interned.getPatientId());
+      post(familyName2Postings, interned.getPackedFamilyName2Code(), interned.getPatientId());
+      List<NameEntry> names = namesByPatient.get(interned.getPatientId());
+      if (names == null) {
+        names = new ArrayList<NameEntry>(1);
+        namesByPatient.put(interned.getPatientId(), names);
+      }
+      names.add(interned);
+      return this;
+    }
+
+    /**
+     * @return the index of all names added so far
+     */
+    public SoundexIndex build() {
+      final ConcurrentHashMap<Integer, NameEntry[]> names = new ConcurrentHashMap<Integer, NameEntry[]>(namesByPatient.size() * 2);
+      for (Map.Entry<Integer, List<NameEntry>> entry : namesByPatient.entrySet()) {
+        names.put(entry.getKey(), entry.getValue().toArray(new NameEntry[entry.getValue().size()]));
+      }
+      return new SoundexIndex(toPostings(givenNamePostings), toPostings(familyNamePostings), toPostings(familyName2Postings), names, spellings);
+    }
+
+    private static void post(Map<Integer, IdList> postings, int code, int patientId) {
+      if (code == SoundexEncoder.NO_CODE) {
+        return;
+      }
+      IdList ids = postings.get(code);
+      if (ids == null) {
+        ids = new IdList();
+        postings.put(code, ids);
+      }
+      ids.add(patientId);
+    }
+
+    private static ConcurrentSkipListMap<Integer, int[]> toPostings(Map<Integer, IdList> lists) {
+      final ConcurrentSkipListMap<Integer, int[]> postings = new ConcurrentSkipListMap<Integer, int[]>();
+      for (Map.Entry<Integer, IdList> entry : lists.entrySet()) {
+        postings.put(entry.getKey(), IntArrays.sortedDistinct(entry.getValue().ids, entry.getValue().size));
+      }
+      return postings;
+    }
+  }
+
+  /**
+   * Growable list of primitive ids.
+   */
+  private static class IdList {
+
+    int[] ids = new int[4];
+    int size;
+
+    void add(int id) {
+      if (size == ids.length) {
+        final int[] grown = new int[size * 2];
+        System.arraycopy(ids, 0, grown, 0, size);
+        ids = grown;
+      }
+      ids[size++] = id;
+    }
+  }
+}
@@ -0,0 +1,306 @@
+/**
+ * Copyright (C) 2011 innoQ Deutschland GmbH
+ *
+ * The contents of this file are subject to the OpenMRS Public License
+ * Version 1.0 (the "License"); you may not use this file except in
+ * compliance with the License. You may obtain a copy of the License at
+ * http://license.openmrs.org
+ *
+ * Software distributed under the License is distributed on an "AS IS"
+ * basis, WITHOUT WARRANTY OF ANY KIND, either express or implied. See the
+ * License for the specific language governing rights and limitations
+ * under the License.
+ *
+ * @author Arnd Kleinbeck, innoQ Deutschland GmbH, http://www.innoq.com
+ */
+package org.openmrs.module.soundex.index;
+
+import org.apache.commons.logging.Log;
+import org.apache.commons.logging.LogFactory;
+import org.hibernate.SessionFactory;
+import org.hibernate.StatelessSession;
+import org.openmrs.api.APIException;
+
+import java.io.IOException;
+import java.sql.Connection;
+import java.sql.PreparedStatement;
+import java.sql.ResultSet;
+import java.sql.SQLException;
+import java.sql.Statement;
+import java.sql.Timestamp;
+import java.util.ArrayList;
+import java.util.List;
+
+/**
+ * Loads the soundex index from person_name_code, or from a snapshot and the names changed since.
+ */
+public class SoundexIndexLoader {
+
+  /** the non-voided names of all non-voided patients with their stored codes. */
+  private static final String FROM_NAMES =
+            "FROM person_name_code " +
+            "INNER JOIN person_name ON person_name_code.person_name_id = person_name.person_name_id " +
+            "INNER JOIN patient ON patient.patient_id = person_name.person_id " +
+          "WHERE patient.voided = 0 AND person_name.voided = 0";
+
+  /** the names with their stored codes. */
+  private static final String SELECT_NAMES =
+          "SELECT person_name.person_name_id, patient.patient_id, " +
+                 "person_name.given_name, person_name.family_name, person_name.family_name2, " +
+                 "person_name_code.given_name_code, person_name_code.family_name_code, person_name_code.family_name2_code " +
+          FROM_NAMES;
+
+  /** the number of names. */
+  private static final String COUNT_NAMES = "SELECT COUNT(*) " + FROM_NAMES;
+
+  /** the current watermark: highest name id and latest changes of names and patients. */
+  private static final String SELECT_WATERMARK =
+          "SELECT (SELECT MAX(person_name_id) FROM person_name), " +
+                 "(SELECT MAX(date_changed) FROM person_name), (SELECT MAX(date_voided) FROM person_name), " +
+                 "(SELECT MAX(date_created) FROM patient), (SELECT MAX(date_changed) FROM patient), " +
+                 "(SELECT MAX(date_voided) FROM patient)";
+
+  /** the patients whose names may have changed since a watermark, parameters as in SELECT_WATERMARK. */
+  private static final String SELECT_CHANGED_PATIENTS =
+          "SELECT person_id FROM person_name WHERE person_name_id > ? OR date_changed >= ? OR date_voided >= ? " +
+          "UNION " +
+          "SELECT patient_id FROM patient WHERE date_created >= ? OR date_changed >= ? OR date_voided >= ?";
+
+  /** logger */
+  private static final Log log = LogFactory.getLog(SoundexIndexLoader.class);
+
+  /**
+   * Load the index on a stateless session of the given session factory, so that no entities are
+   * kept in memory while reading.
+   * @param sessionFactory the session factory
+   * @return the index
+   */
+  public static SoundexIndex load(SessionFactory sessionFactory) {
+    final StatelessSession session = sessionFactory.openStatelessSession();
+    try {
+      return load(session.connection());
+    } catch (SQLException e) {
+      throw new APIException("Loading the soundex index failed", e);
+    } finally {
+      session.close();
+    }
+  }
+
+  /**
+   * Load the index on a stateless session of the given session factory. If a valid snapshot exists, the
+   * index is read from it and the names of the patients changed since are read from the database. Then the
+   * snapshot is replaced, so that the next start has to replay the changes from now on only.
+   * @param sessionFactory the session factory
+   * @param snapshot the snapshot, null to read all names from the database
+   * @return the index
+   */
+  public static SoundexIndex load(SessionFactory sessionFactory, SoundexIndexSnapshot snapshot) {
+    if (snapshot == null) {
+      return load(sessionFactory);
+    }
+    final StatelessSession session = sessionFactory.openStatelessSession();
+    try {
+      final Connection connection = session.connection();
+      // read first, changes made while loading are replayed again by the next start
+      final SoundexIndexSnapshot.Watermark watermark = readWatermark(connection);
+      SoundexIndex index = restore(connection, snapshot);
+      if (index == null) {
+        index = load(connection);
+      }
+      try {
+        snapshot.write(index, watermark);
+      } catch (IOException e) {
+        log.warn("Saving the soundex index snapshot failed", e);
+      }
+      return index;
+    } catch (SQLException e) {
+      throw new APIException("Loading the soundex index failed", e);
+    } finally {
+      session.close();
+    }
+  }
+
+  /**
+   * Read the index from the snapshot and replay the changes since.
+   * @return the index or null, if there is no valid snapshot
+   */
+  private static SoundexIndex restore(Connection connection, SoundexIndexSnapshot snapshot) throws SQLException {
+    final SoundexIndexSnapshot.Contents contents;
+    try {
+      contents = snapshot.read();
+    } catch (IOException e) {
+      log.warn("Reading the soundex index snapshot failed, loading all names", e);
+      return null;
+    } catch (IllegalArgumentException e) {
+      log.warn("The soundex index snapshot contains invalid codes, loading all names", e);
+      return null;
+    }
+    if (contents == null) {
+      return null;
+    }
+    final SoundexIndex index = contents.getIndex();
+    final int[] patientIds = findChangedPatientIds(connection, contents.getWatermark());
+    final SoundexIndex changes = load(connection, patientIds);
+    for (int patientId : patientIds) {
+      index.updatePatient(patientId, changes.getNames(patientId));
+    }
+    // deleted names and patients leave no trace but the count
+    final int nameCount = countNames(connection);
+    if (nameCount != index.getNameCount()) {
+      log.warn("The soundex index snapshot " + snapshot + " has " + index.getNameCount() + " names after replaying " +
+              patientIds.length + " patients, the database " + nameCount + ", loading all names");
+      return null;
+    }
+    log.info("Restored soundex index snapshot " + snapshot + " of " + contents.getWatermark() + ", replayed " +
+            patientIds.length + " changed patients");
+    return index;
+  }
+
+  /**
+   * Read the current watermark of the database.
+   * @param connection the JDBC connection
+   * @return the watermark
+   * @throws SQLException if reading fails
+   */
+  static SoundexIndexSnapshot.Watermark readWatermark(Connection connection) throws SQLException {
+    final Statement statement = connection.createStatement();
+    try {
+      final ResultSet resultSet = statement.executeQuery(SELECT_WATERMARK);
+      resultSet.next();
+      long changedSince = 0;
+      for (int column = 2; column <= 6; column++) {
+        final Timestamp timestamp = resultSet.getTimestamp(column);
+        if (timestamp != null) {
+          changedSince = Math.max(changedSince, timestamp.getTime());
+        }
+      }
+      return new SoundexIndexSnapshot.Watermark(resultSet.getInt(1), changedSince);
+    } finally {
+      statement.close();
+    }
+  }
+
+  /**
+   * Find the patients whose names may have changed since the watermark was read.
+   * @param connection the JDBC connection
+   * @param watermark the watermark
+   * @return sorted patient ids
+   * @throws SQLException if reading fails
+   */
+  static int[] findChangedPatientIds(Connection connection, SoundexIndexSnapshot.Watermark watermark) throws SQLException {
+    final PreparedStatement statement = connection.prepareStatement(SELECT_CHANGED_PATIENTS);
+    try {
+      final Timestamp changedSince = new Timestamp(watermark.getChangedSince());
+      statement.setInt(1, watermark.getMaxPersonNameId());
+      for (int parameter = 2; parameter <= 6; parameter++) {
+        statement.setTimestamp(parameter, changedSince);
+      }
+      final ResultSet resultSet = statement.executeQuery();
+      int[] ids = new int[16];
+      int size = 0;
+      while (resultSet.next()) {
+        if (size == ids.length) {
+          final int[] grown = new int[size * 2];
+          System.arraycopy(ids, 0, grown, 0, size);
+          ids = grown;
+        }
+        ids[size++] = resultSet.getInt(1);
+      }
+      return IntArrays.sortedDistinct(ids, size);
+    } finally {
+      statement.close();
+    }
+  }
+
+  private static int countNames(Connection connection) throws SQLException {
+    final Statement statement = connection.createStatement();
+    try {
+      final ResultSet resultSet = statement.executeQuery(COUNT_NAMES);
+      resultSet.next();
+      return resultSet.getInt(1);
+    } finally {
+      statement.close();
+    }
+  }
+
+  /** maximum number of ids per IN clause. */
+  private static final int CHUNK_SIZE = 1000;
+
+  /**
+   * Load the index with the given connection.
+   * @param connection the JDBC connection
+   * @return the index
+   * @throws SQLException if reading fails
+   */
+  public static SoundexIndex load(Connection connection) throws SQLException {
+    final SoundexIndex.Builder builder = new SoundexIndex.Builder();
+    final Statement statement = connection.createStatement(ResultSet.TYPE_FORWARD_ONLY, ResultSet.CONCUR_READ_ONLY);
+    try {
+      // makes MySQL Connector/J stream the rows instead of reading the whole result
+      if (connection.getMetaData().getDriverName().startsWith("MySQL")) {
+        statement.setFetchSize(Integer.MIN_VALUE);
+      }
+      addNames(builder, statement.executeQuery(SELECT_NAMES));
+    } finally {
+      statement.close();
+    }
+    return builder.build();
+  }
+
+  /**
+   * Load an index of the names of the given patients only, e.g. to rank candidates found in the database.
+   * @param connection the JDBC connection
+   * @param patientIds the patient ids
+   * @return the index
+   * @throws SQLException if reading fails
+   */
+  public static SoundexIndex load(Connection connection, int[] patientIds) throws SQLException {
+    final SoundexIndex.Builder builder = new SoundexIndex.Builder();
+    final Statement statement = connection.createStatement();
+    try {
+      for (int from = 0; from < patientIds.length; from += CHUNK_SIZE) {
+        // the ids are numbers, so they can be inlined safely
+        final StringBuilder sql = new StringBuilder(SELECT_NAMES).append(" AND patient.patient_id IN (");
+        for (int i = from; i < Math.min(from + CHUNK_SIZE, patientIds.length); i++) {
+          sql.append(i == from ? "" : ",").append(patientIds[i]);
+        }
+        addNames(builder, statement.executeQuery(sql.append(')').toString()));
+      }
+    } finally {
+      statement.close();
+    }
+    return builder.build();
+  }
+
+  /**
+   * Add the names of a result set to the builder as they are read, so that a streamed result is never held
+   * in memory as a whole.
+   */
+  private static void addNames(SoundexIndex.Builder builder, ResultSet resultSet) throws SQLException {
+    while (resultSet.next()) {
+      builder.add(readName(resultSet));
+    }
+  }
+
+  /**
+   * Read the name entries of a result set with the columns person_name_id, patient_id, given_name,
+   * family_name, family_name2, given_name_code, family_name_code and family_name2_code, in this order.
+   * Meant for the candidates of a single search, the names of a whole load are added one by one.
+   * @param resultSet the result set, it is read to the end
+   * @return the name entries
+   * @throws SQLException if reading fails
+   */
+  public static List<NameEntry> readNames(ResultSet resultSet) throws SQLException {
+    final List<NameEntry> entries = new ArrayList<NameEntry>();
+    while (resultSet.next()) {
+      entries.add(readName(resultSet));
+    }
+    return entries;
+  }
+
+  private static NameEntry readName(ResultSet resultSet) throws SQLException {
+    return new NameEntry(resultSet.getInt(1), resultSet.getInt(2),
+            resultSet.getString(3), resultSet.getString(4), resultSet.getString(5),
+            resultSet.getString(6), resultSet.getString(7), resultSet.getString(8));
+  }
+}
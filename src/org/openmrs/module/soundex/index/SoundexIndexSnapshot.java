@@ -0,0 +1,240 @@
+/**
+ * Copyright (C) 2011 innoQ Deutschland GmbH
+ *
+ * The contents of this file are subject to the OpenMRS Public License
+ * Version 1.0 (the "License"); you may not use this file except in
+ * compliance with the License. You may obtain a copy of the License at
+ * http://license.openmrs.org
+ *
+ * Software distributed under the License is distributed on an "AS IS"
+ * basis, WITHOUT WARRANTY OF ANY KIND, either express or implied. See the
+ * License for the specific language governing rights and limitations
+ * under the License.
+ *
+ * @author Arnd Kleinbeck, innoQ Deutschland GmbH, http://www.innoq.com
+ */
+package org.openmrs.module.soundex.index;
+
+import org.openmrs.util.OpenmrsUtil;
+
+import java.io.BufferedInputStream;
+import java.io.BufferedOutputStream;
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.EOFException;
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.Date;
+import java.util.List;
+
+/**
+ * On-disk snapshot of the soundex index, so that a restart only has to read the names changed since the
+ * snapshot was taken instead of all names. The snapshot holds the name entries with their packed codes,
+ * the postings are rebuilt from them in memory. It is read with a buffered stream, which is closed before the
+ * snapshot is replaced as a whole, so that the file can be renamed over on all platforms.
+ * <p>
+ * Format, all numbers big endian: magic, version, the {@link Watermark}, the number of names, then per name
+ * person name id, patient id, the three packed codes and the given name, family name and second family name
+ * as UTF-8 with their byte length (-1 for null), and the magic again.
+ */
+public class SoundexIndexSnapshot {
+
+  /** name of the snapshot file in the soundex directory of the application data directory. */
+  public static final String FILE_NAME = "index.snapshot";
+
+  /** "SDX1" */
+  private static final int MAGIC = 0x53445831;
+
+  private static final int VERSION = 1;
+
+  private static final String CHARSET = "UTF-8";
+
+  private final File file;
+
+  /**
+   * Constructor.
+   * @param file the snapshot file
+   */
+  public SoundexIndexSnapshot(File file) {
+    this.file = file;
+  }
+
+  /**
+   * Get the snapshot in the soundex directory of the OpenMRS application data directory.
+   * @return the snapshot
+   */
+  public static SoundexIndexSnapshot inApplicationDataDirectory() {
+    return new SoundexIndexSnapshot(new File(OpenmrsUtil.getDirectoryInApplicationDataDirectory("soundex"), FILE_NAME));
+  }
+
+  /**
+   * Read the snapshot.
+   * @return the index and the state of the database it reflects, null if there is no snapshot
+   * @throws IOException if the snapshot cannot be read or is invalid
+   */
+  public Contents read() throws IOException {
+    if (!file.exists()) {
+      return null;
+    }
+    final DataInputStream input = new DataInputStream(new BufferedInputStream(new FileInputStream(file), 1 << 16));
+    try {
+      if (input.readInt() != MAGIC || input.readInt() != VERSION) {
+        throw new IOException("Not a soundex index snapshot of version " + VERSION + ": " + file);
+      }
+      final Watermark watermark = new Watermark(input.readInt(), input.readLong());
+      final int count = input.readInt();
+      final SoundexIndex.Builder builder = new SoundexIndex.Builder();
+      for (int i = 0; i < count; i++) {
+        final int personNameId = input.readInt();
+        final int patientId = input.readInt();
+        final int givenNameCode = input.readInt();
+        final int familyNameCode = input.readInt();
+        final int familyName2Code = input.readInt();
+        builder.add(new NameEntry(personNameId, patientId, readString(input), readString(input), readString(input),
+                givenNameCode, familyNameCode, familyName2Code));
+      }
+      if (input.readInt() != MAGIC) {
+        throw new IOException("Soundex index snapshot is corrupt: " + file);
+      }
+      return new Contents(builder.build(), watermark);
+    } catch (EOFException e) {
+      throw new IOException("Soundex index snapshot is truncated: " + file);
+    } finally {
+      input.close();
+    }
+  }
+
+  /**
+   * Write the snapshot. It is written to a temporary file first, which then replaces the snapshot.
+   * @param index the index
+   * @param watermark the state of the database the index reflects, read before the index was loaded
+   * @throws IOException if writing fails
+   */
+  public void write(SoundexIndex index, Watermark watermark) throws IOException {
+    final File temp = new File(file.getPath() + ".tmp");
+    final DataOutputStream output = new DataOutputStream(new BufferedOutputStream(new FileOutputStream(temp), 1 << 16));
+    try {
+      output.writeInt(MAGIC);
+      output.writeInt(VERSION);
+      output.writeInt(watermark.getMaxPersonNameId());
+      output.writeLong(watermark.getChangedSince());
+      // patients may be updated while writing, so the names are collected before their count is written
+      final List<NameEntry> names = new ArrayList<NameEntry>(index.getPatientCount() * 2);
+      for (NameEntry[] patientNames : index.getAllNames()) {
+        for (NameEntry name : patientNames) {
+          names.add(name);
+        }
+      }
+      output.writeInt(names.size());
+      for (NameEntry name : names) {
+        output.writeInt(name.getPersonNameId());
+        output.writeInt(name.getPatientId());
+        output.writeInt(name.getPackedGivenNameCode());
+        output.writeInt(name.getPackedFamilyNameCode());
+        output.writeInt(name.getPackedFamilyName2Code());
+        writeString(output, name.getGivenName());
+        writeString(output, name.getFamilyName());
+        writeString(output, name.getFamilyName2());
+      }
+      output.writeInt(MAGIC);
+    } finally {
+      output.close();
+    }
+    if (!temp.renameTo(file) && !(file.delete() && temp.renameTo(file))) {
+      throw new IOException("Replacing the soundex index snapshot " + file + " failed");
+    }
+  }
+
+  /**
+   * Remove the snapshot, e.g. after the stored codes have changed.
+   * @throws IOException if the snapshot cannot be removed
+   */
+  public void delete() throws IOException {
+    if (file.exists() && !file.delete()) {
+      throw new IOException("Removing the soundex index snapshot " + file + " failed");
+    }
+  }
+
+  @Override
+  public String toString() {
+    return file.getPath();
+  }
+
+  private static String readString(DataInputStream input) throws IOException {
+    final int length = input.readInt();
+    if (length < 0) {
+      return null;
+    }
+    final byte[] bytes = new byte[length];
+    input.readFully(bytes);
+    return new String(bytes, CHARSET);
+  }
+
+  private static void writeString(DataOutputStream output, String str) throws IOException {
+    if (str == null) {
+      output.writeInt(-1);
+    } else {
+      final byte[] bytes = str.getBytes(CHARSET);
+      output.writeInt(bytes.length);
+      output.write(bytes);
+    }
+  }
+
+  /**
+   * The state of the database an index reflects: names with a higher id, and names and patients changed or
+   * voided at or after the given time, may be missing from the index.
+   */
+  public static class Watermark {
+
+    private final int maxPersonNameId;
+    private final long changedSince;
+
+    /**
+     * Constructor.
+     * @param maxPersonNameId the highest person_name_id
+     * @param changedSince the latest change or void time of names and patients, in milliseconds
+     */
+    public Watermark(int maxPersonNameId, long changedSince) {
+      this.maxPersonNameId = maxPersonNameId;
+      this.changedSince = changedSince;
+    }
+
+    public int getMaxPersonNameId() {
+      return maxPersonNameId;
+    }
+
+    public long getChangedSince() {
+      return changedSince;
+    }
+
+    @Override
+    public String toString() {
+      return "person_name_id " + maxPersonNameId + ", changes since " + new Date(changedSince);
+    }
+  }
+
+  /**
+   * An index read from a snapshot.
+   */
+  public static class Contents {
+
+    private final SoundexIndex index;
+    private final Watermark watermark;
+
+    Contents(SoundexIndex index, Watermark watermark) {
+      this.index = index;
+      this.watermark = watermark;
+    }
+
+    public SoundexIndex getIndex() {
+      return index;
+    }
+
+    public Watermark getWatermark() {
+      return watermark;
+    }
+  }
+}
@@ -0,0 +1,413 @@
+/**
+ * Copyright (C) 2011 innoQ Deutschland GmbH
+ *
+ * The contents of this file are subject to the OpenMRS Public License
+ * Version 1.0 (the "License"); you may not use this file except in
+ * compliance with the License. You may obtain a copy of the License at
+ * http://license.openmrs.org
+ *
+ * Software distributed under the License is distributed on an "AS IS"
+ * basis, WITHOUT WARRANTY OF ANY KIND, either express or implied. See the
+ * License for the specific language governing rights and limitations
+ * under the License.
+ *
+ * @author Arnd Kleinbeck, innoQ Deutschland GmbH, http://www.innoq.com
+ */
+package org.openmrs.module.soundex.index;
+
+import org.openmrs.module.soundex.encoder.SoundexEncoder;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.Comparator;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.PriorityQueue;
+
+/**
+ * Ranking of name entries in the order of the ORDER BY clauses of the soundex SQL queries
+ * (see PatientServiceAroundAdvisor). SQL NULL values sort first, INSTR and string comparisons
+ * ignore case like the default MySQL collation. Codes are compared packed.
+ */
+public abstract class SoundexRanking {
+
+  /** sort key of SQL NULL values, which come first in ascending order. */
+  static final int NULL_KEY = Integer.MIN_VALUE;
+
+  /**
+   * Ranking of the given name query.
+   * @param name the search string
+   * @param code the soundex code of the search string
+   * @return the ranking
+   */
+  public static SoundexRanking givenName(final String name, String code) {
+    final int packedCode = SoundexEncoder.pack(code);
+    return new SoundexRanking() {
+
+      public boolean matches(NameEntry entry) {
+        return SoundexEncoder.startsWith(entry.getPackedGivenNameCode(), packedCode);
+      }
+
+      int[] keys(NameEntry entry) {
+        return new int[] {
+          instrKey(entry.getGivenName(), name),
+          SoundexEncoder.codeLength(entry.getPackedGivenNameCode())
+        };
+      }
+
+      String[] names(NameEntry entry) {
+        return new String[] { entry.getGivenName(), entry.getFamilyName() };
+      }
+    };
+  }
+
+  /**
+   * Ranking of the family name query.
+   * @param name the search string
+   * @param code the soundex code of the search string
+   * @return the ranking
+   */
+  public static SoundexRanking familyName(final String name, final String code) {
+    final int packedCode = SoundexEncoder.pack(code);
+    return new SoundexRanking() {
+
+      public boolean matches(NameEntry entry) {
+        return SoundexEncoder.startsWith(entry.getPackedFamilyNameCode(), packedCode) ||
+                SoundexEncoder.startsWith(entry.getPackedFamilyName2Code(), packedCode);
+      }
+
+      int[] keys(NameEntry entry) {
+        final int familyNameCode = entry.getPackedFamilyNameCode();
+        final int codeKey;
+        if (SoundexEncoder.startsWith(familyNameCode, packedCode)) {
+          codeKey = 1;
+        } else {
+          codeKey = instrKey(familyNameCode, packedCode);
+        }
+        return new int[] {
+          instrKey(entry.getFamilyName(), name),
+          codeKey,
+          familyNameCode == SoundexEncoder.NO_CODE ? NULL_KEY : Math.abs(SoundexEncoder.codeLength(familyNameCode) - code.length())
+        };
+      }
+
+      String[] names(NameEntry entry) {
+        return new String[] { entry.getFamilyName(), entry.getGivenName() };
+      }
+    };
+  }
+
+  /**
+   * Ranking of the given name and family name query.
+   * @param givenName the given name search string
+   * @param familyName the family name search string
+   * @param givenCode the soundex code of the given name search string
+   * @param familyCode the soundex code of the family name search string
+   * @return the ranking
+   */
+  public static SoundexRanking givenAndFamilyName(final String givenName, final String familyName,
+                                                  final String givenCode, final String familyCode) {
+    final int packedGivenCode = SoundexEncoder.pack(givenCode);
+    final int packedFamilyCode = SoundexEncoder.pack(familyCode);
+    return new SoundexRanking() {
+
+      public boolean matches(NameEntry entry) {
+        return SoundexEncoder.startsWith(entry.getPackedGivenNameCode(), packedGivenCode) &&
+                (SoundexEncoder.startsWith(entry.getPackedFamilyNameCode(), packedFamilyCode) ||
+                 SoundexEncoder.startsWith(entry.getPackedFamilyName2Code(), packedFamilyCode));
+      }
+
+      int[] keys(NameEntry entry) {
+        final Integer family = instr(entry.getFamilyName(), familyName);
+        final Integer family2 = instr(entry.getFamilyName2(), familyName);
+        final Integer given = instr(entry.getGivenName(), givenName);
+        final boolean familyFound = isPositive(family) || isPositive(family2);
+        final boolean familyMissed = isZero(family) && isZero(family2);
+        return new int[] {
+          familyFound && isPositive(given) ? 1 : 2,
+          familyFound && isZero(given) ? 1 : 2,
+          familyMissed && isPositive(given) ? 1 : 2,
+          lengthDifference(entry.getFamilyName(), familyCode.length()),
+          lengthDifference(entry.getGivenName(), givenCode.length())
+        };
+      }
+
+      String[] names(NameEntry entry) {
+        return new String[] { entry.getFamilyName(), entry.getGivenName(), entry.getFamilyName2() };
+      }
+    };
+  }
+
+  /**
+   * Ranking of a search for three or more names, which has no SQL counterpart. Patients match if each name
+   * matches one of their given names, family names or second family names by code, possibly in different name
+   * entries. A name entry ranks higher the more of the query names it matches by code, then the more of the
+   * query names it contains literally, then by family name, given name and second family name.
+   * Names without code are ignored.
+   * @param names the search strings
+   * @param codes the soundex codes of the search strings
+   * @return the ranking
+   */
+  public static SoundexRanking allNames(final String[] names, String[] codes) {
+    final int[] packedCodes = new int[codes.length];
+    for (int i = 0; i < codes.length; i++) {
+      packedCodes[i] = SoundexEncoder.pack(codes[i]);
+    }
+    return new SoundexRanking() {
+
+      public boolean matches(NameEntry entry) {
+        for (int code : packedCodes) {
+          if (matchesCode(entry, code)) {
+            return true;
+          }
+        }
+        return false;
+      }
+
+      int[] keys(NameEntry entry) {
+        int codeMisses = 0;
+        int nameMisses = 0;
+        for (int i = 0; i < packedCodes.length; i++) {
+          if (packedCodes[i] == SoundexEncoder.NO_CODE) {
+            continue;
+          }
+          if (!matchesCode(entry, packedCodes[i])) {
+            codeMisses++;
+          }
+          if (!isPositive(instr(entry.getGivenName(), names[i])) && !isPositive(instr(entry.getFamilyName(), names[i])) &&
+                  !isPositive(instr(entry.getFamilyName2(), names[i]))) {
+            nameMisses++;
+          }
+        }
+        return new int[] { codeMisses, nameMisses };
+      }
+
+      String[] names(NameEntry entry) {
+        return new String[] { entry.getFamilyName(), entry.getGivenName(), entry.getFamilyName2() };
+      }
+    };
+  }
+
+  /**
+   * Checks whether the entry matches the WHERE clause of the query.
+   * @param entry the name entry
+   * @return true, if the entry is a candidate
+   */
+  public abstract boolean matches(NameEntry entry);
+
+  /**
+   * Get the numeric sort keys of an entry, in the order of the ORDER BY clause.
+   * @param entry the name entry
+   * @return sort keys, SQL NULL is represented by NULL_KEY
+   */
+  abstract int[] keys(NameEntry entry);
+
+  /**
+   * Get the name sort keys of an entry, which follow the numeric keys in the ORDER BY clause.
+   * @param entry the name entry
+   * @return names, may contain null
+   */
+  abstract String[] names(NameEntry entry);
+
+  /**
+   * Rank the matching names of the given patients.
+   * @param index the soundex index
+   * @param patientIds the candidate patients
+   * @param limit the maximum number of patients to return
+   * @return the ids of the best ranked patients, each patient is ranked by its best name
+   */
+  public List<Integer> rank(SoundexIndex index, int[] patientIds, int limit) {
+    final TopCandidates top = new TopCandidates(limit);
+    for (int patientId : patientIds) {
+      top.offer(best(index.getNames(patientId)));
+    }
+    return top.toPatientIds();
+  }
+
+  /**
+   * Rank the matching names of candidate rows read from the database.
+   * @param entries the name entries, in any order
+   * @param limit the maximum number of patients to return
+   * @return the ids of the best ranked patients, each patient is ranked by its best name
+   */
+  public List<Integer> rank(List<NameEntry> entries, int limit) {
+    final Map<Integer, List<NameEntry>> entriesByPatient = new LinkedHashMap<Integer, List<NameEntry>>();
+    for (NameEntry entry : entries) {
+      List<NameEntry> patientEntries = entriesByPatient.get(entry.getPatientId());
+      if (patientEntries == null) {
+        patientEntries = new ArrayList<NameEntry>(1);
+        entriesByPatient.put(entry.getPatientId(), patientEntries);
+      }
+      patientEntries.add(entry);
+    }
+    final TopCandidates top = new TopCandidates(limit);
+    for (List<NameEntry> patientEntries : entriesByPatient.values()) {
+      top.offer(best(patientEntries.toArray(new NameEntry[patientEntries.size()])));
+    }
+    return top.toPatientIds();
+  }
+
+  /**
+   * Get the best ranked matching name of a patient.
+   * @param entries the names of the patient
+   * @return the candidate or null, if no name matches
+   */
+  private Candidate best(NameEntry[] entries) {
+    Candidate best = null;
+    for (NameEntry entry : entries) {
+      if (matches(entry)) {
+        final Candidate candidate = new Candidate(entry.getPatientId(), keys(entry), names(entry));
+        if (best == null || CANDIDATE_ORDER.compare(candidate, best) < 0) {
+          best = candidate;
+        }
+      }
+    }
+    return best;
+  }
+
+  /**
+   * Sort key of CASE INSTR(str, substr) WHEN 0 THEN 9999 ELSE INSTR(str, substr) END.
+   */
+  static int instrKey(String str, String substr) {
+    final Integer position = instr(str, substr);
+    if (position == null) {
+      return NULL_KEY;
+    }
+    return position == 0 ? 9999 : position;
+  }
+
+  /**
+   * Sort key of CASE INSTR(code, part) WHEN 0 THEN 9999 ELSE INSTR(code, part) END for packed codes.
+   */
+  static int instrKey(int code, int part) {
+    if (code == SoundexEncoder.NO_CODE || part == SoundexEncoder.NO_CODE) {
+      return NULL_KEY;
+    }
+    final int last = SoundexEncoder.codeLength(code) - SoundexEncoder.codeLength(part);
+    for (int i = 0; i <= last; i++) {
+      // shifting drops the leading characters, the code then starts at position i + 1
+      if (SoundexEncoder.startsWith(code << (8 * i), part)) {
+        return i + 1;
+      }
+    }
+    return 9999;
+  }
+
+  /**
+   * MySQL INSTR(str, substr), ignoring case.
+   * @return the 1-based position of substr in str, 0 if not found, null if any argument is null
+   */
+  static Integer instr(String str, String substr) {
+    if (str == null || substr == null) {
+      return null;
+    }
+    final int last = str.length() - substr.length();
+    for (int i = 0; i <= last; i++) {
+      if (str.regionMatches(true, i, substr, 0, substr.length())) {
+        return i + 1;
+      }
+    }
+    return 0;
+  }
+
+  /**
+   * Sort key of ABS(LENGTH(str) - length).
+   */
+  static int lengthDifference(String str, int length) {
+    return str == null ? NULL_KEY : Math.abs(str.length() - length);
+  }
+
+  private static boolean matchesCode(NameEntry entry, int code) {
+    return SoundexEncoder.startsWith(entry.getPackedGivenNameCode(), code) ||
+            SoundexEncoder.startsWith(entry.getPackedFamilyNameCode(), code) ||
+            SoundexEncoder.startsWith(entry.getPackedFamilyName2Code(), code);
+  }
+
+  private static boolean isPositive(Integer position) {
+    return position != null && position > 0;
+  }
+
+  private static boolean isZero(Integer position) {
+    return position != null && position == 0;
+  }
+
+  /**
+   * A matching name entry with its sort keys.
+   */
+  private static class Candidate {
+
+    final int patientId;
+    final int[] keys;
+    final String[] names;
+
+    Candidate(int patientId, int[] keys, String[] names) {
+      this.patientId = patientId;
+      this.keys = keys;
+      this.names = names;
+    }
+  }
+
+  /**
+   * Selection of the best ranked patients with a bounded heap, its head is the worst of the patients kept.
+   * Offering n patients takes O(n log k) instead of sorting all of them.
+   */
+  private static class TopCandidates {
+
+    private final int limit;
+    private final PriorityQueue<Candidate> heap;
+
+    TopCandidates(int limit) {
+      this.limit = limit;
+      this.heap = new PriorityQueue<Candidate>(Math.min(Math.max(limit, 1), 1024), Collections.reverseOrder(CANDIDATE_ORDER));
+    }
+
+    void offer(Candidate candidate) {
+      if (candidate == null || limit <= 0) {
+        return;
+      }
+      if (heap.size() < limit) {
+        heap.add(candidate);
+      } else if (CANDIDATE_ORDER.compare(candidate, heap.peek()) < 0) {
+        heap.poll();
+        heap.add(candidate);
+      }
+    }
+
+    List<Integer> toPatientIds() {
+      final Candidate[] candidates = heap.toArray(new Candidate[heap.size()]);
+      Arrays.sort(candidates, CANDIDATE_ORDER);
+      final List<Integer> patientIds = new ArrayList<Integer>(candidates.length);
+      for (Candidate candidate : candidates) {
+        patientIds.add(candidate.patientId);
+      }
+      return patientIds;
+    }
+  }
+
+  /** order of the ORDER BY clause, ties are broken by patient id to keep the result stable. */
+  private static final Comparator<Candidate> CANDIDATE_ORDER = new Comparator<Candidate>() {
+    public int compare(Candidate a, Candidate b) {
+      for (int i = 0; i < a.keys.length; i++) {
+        if (a.keys[i] != b.keys[i]) {
+          return a.keys[i] < b.keys[i] ? -1 : 1;
+        }
+      }
+      for (int i = 0; i < a.names.length; i++) {
+        final int c = compareNullsFirst(a.names[i], b.names[i]);
+        if (c != 0) {
+          return c;
+        }
+      }
+      return a.patientId < b.patientId ? -1 : (a.patientId == b.patientId ? 0 : 1);
+    }
+  };
+
+  private static int compareNullsFirst(String a, String b) {
+    if (a == null) {
+      return b == null ? 0 : -1;
+    }
+    return b == null ? 1 : String.CASE_INSENSITIVE_ORDER.compare(a, b);
+  }
+}
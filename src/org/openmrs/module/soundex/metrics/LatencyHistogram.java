@@ -0,0 +1,133 @@
+/**
+ * Copyright (C) 2011 innoQ Deutschland GmbH
+ *
+ * The contents of this file are subject to the OpenMRS Public License
+ * Version 1.0 (the "License"); you may not use this file except in
+ * compliance with the License. You may obtain a copy of the License at
+ * http://license.openmrs.org
+ *
+ * Software distributed under the License is distributed on an "AS IS"
+ * basis, WITHOUT WARRANTY OF ANY KIND, either express or implied. See the
+ * License for the specific language governing rights and limitations
+ * under the License.
+ *
+ * @author Arnd Kleinbeck, innoQ Deutschland GmbH, http://www.innoq.com
+ */
+package org.openmrs.module.soundex.metrics;
+
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.atomic.AtomicLongArray;
+
+/**
+ * Lock-free histogram of latencies in microseconds. Buckets grow exponentially, each power of two is split into
+ * four buckets, so percentiles are reported with an error of at most 25%. Latencies of more than about
+ * 12 days fall into the last bucket.
+ */
+public class LatencyHistogram {
+
+  /** number of buckets per power of two. */
+  private static final int SUB_BUCKETS = 4;
+
+  /** log2 of SUB_BUCKETS. */
+  private static final int SUB_BUCKET_BITS = 2;
+
+  /** the highest power of two with buckets of its own. */
+  private static final int MAX_EXPONENT = 40;
+
+  private static final int BUCKET_COUNT = SUB_BUCKETS + (MAX_EXPONENT - SUB_BUCKET_BITS + 1) * SUB_BUCKETS;
+
+  private final AtomicLongArray counts = new AtomicLongArray(BUCKET_COUNT);
+  private final AtomicLong count = new AtomicLong();
+  private final AtomicLong sum = new AtomicLong();
+
+  /**
+   * Record a latency.
+   * @param micros the latency in microseconds
+   */
+  public void record(long micros) {
+    final long value = Math.max(0, micros);
+    counts.incrementAndGet(bucket(value));
+    count.incrementAndGet();
+    sum.addAndGet(value);
+  }
+
+  /**
+   * @return the number of recorded latencies
+   */
+  public long getCount() {
+    return count.get();
+  }
+
+  /**
+   * @return the mean latency in microseconds, 0 if nothing is recorded
+   */
+  public long getMean() {
+    final long n = count.get();
+    return n == 0 ? 0 : sum.get() / n;
+  }
+
+  /**
+   * Get a percentile of the recorded latencies. Latencies recorded concurrently may or may not be taken into account.
+   * @param percentile the percentile, e.g. 0.95
+   * @return the upper bound of the bucket the percentile falls into in microseconds, 0 if nothing is recorded
+   */
+  public long getPercentile(double percentile) {
+    final long[] snapshot = new long[BUCKET_COUNT];
+    long total = 0;
+    for (int i = 0; i < BUCKET_COUNT; i++) {
+      snapshot[i] = counts.get(i);
+      total += snapshot[i];
+    }
+    if (total == 0) {
+      return 0;
+    }
+    final long rank = Math.max(1, (long) Math.ceil(percentile * total));
+    long cumulative = 0;
+    for (int i = 0; i < BUCKET_COUNT; i++) {
+      cumulative += snapshot[i];
+      if (cumulative >= rank) {
+        return upperBound(i);
+      }
+    }
+    return upperBound(BUCKET_COUNT - 1);
+  }
+
+  /**
+   * Drop all recorded latencies. Latencies recorded concurrently may or may not be dropped.
+   */
+  public void reset() {
+    for (int i = 0; i < BUCKET_COUNT; i++) {
+      counts.set(i, 0);
+    }
+    count.set(0);
+    sum.set(0);
+  }
+
+  /**
+   * Get the bucket of a latency: values below SUB_BUCKETS have a bucket each, larger values are bucketed by their
+   * highest bit and the SUB_BUCKET_BITS bits below it.
+   */
+  static int bucket(long value) {
+    if (value < SUB_BUCKETS) {
+      return (int) value;
+    }
+    final int exponent = 63 - Long.numberOfLeadingZeros(value);
+    if (exponent > MAX_EXPONENT) {
+      return BUCKET_COUNT - 1;
+    }
+    final int subBucket = (int) (value >>> (exponent - SUB_BUCKET_BITS)) & (SUB_BUCKETS - 1);
+    return SUB_BUCKETS + (exponent - SUB_BUCKET_BITS) * SUB_BUCKETS + subBucket;
+  }
+
+  /**
+   * Get the largest value of a bucket.
+   */
+  static long upperBound(int bucket) {
+    if (bucket < SUB_BUCKETS) {
+      return bucket;
+    }
+    final int shift = (bucket - SUB_BUCKETS) / SUB_BUCKETS;
+    final int subBucket = (bucket - SUB_BUCKETS) % SUB_BUCKETS;
+    return ((long) (SUB_BUCKETS + subBucket + 1) << shift) - 1;
+  }
+}
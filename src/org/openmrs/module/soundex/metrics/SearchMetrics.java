@@ -0,0 +1,157 @@
+/**
+ * Copyright (C) 2011 innoQ Deutschland GmbH
+ *
+ * The contents of this file are subject to the OpenMRS Public License
+ * Version 1.0 (the "License"); you may not use this file except in
+ * compliance with the License. You may obtain a copy of the License at
+ * http://license.openmrs.org
+ *
+ * Software distributed under the License is distributed on an "AS IS"
+ * basis, WITHOUT WARRANTY OF ANY KIND, either express or implied. See the
+ * License for the specific language governing rights and limitations
+ * under the License.
+ *
+ * @author Arnd Kleinbeck, innoQ Deutschland GmbH, http://www.innoq.com
+ */
+package org.openmrs.module.soundex.metrics;
+
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * Counters and latency histograms of the searches passing through the soundex advisor, per search type and
+ * phase, and of the read-only connections taken by concurrent queries. Recording is lock-free, so that searches
+ * do not contend on the metrics.
+ */
+public class SearchMetrics {
+
+  private final TypeMetrics[] types = new TypeMetrics[SearchType.values().length];
+
+  /** time to get the read-only connections of concurrent queries, see ReadOnlyQueryCallable. */
+  private final LatencyHistogram readOnlyConnections = new LatencyHistogram();
+
+  /**
+   * Constructor.
+   */
+  public SearchMetrics() {
+    for (int i = 0; i < types.length; i++) {
+      types[i] = new TypeMetrics();
+    }
+  }
+
+  /**
+   * Record a finished search.
+   * @param trace the trace of the search
+   */
+  public void record(SearchTrace trace) {
+    final TypeMetrics metrics = types[trace.getType().ordinal()];
+    metrics.total.record(trace.getTotalNanos() / 1000);
+    for (SearchPhase phase : SearchPhase.values()) {
+      final long nanos = trace.getPhaseNanos(phase);
+      // phases a search type does not have are not recorded, so that they do not dilute the percentiles
+      if (nanos > 0) {
+        metrics.phases[phase.ordinal()].record(nanos / 1000);
+      }
+    }
+    metrics.sqlRows.addAndGet(trace.getSqlRows());
+    metrics.returnedRows.addAndGet(trace.getReturnedRows());
+    metrics.statements.addAndGet(trace.getStatements().size());
+  }
+
+  /**
+   * Record the time a concurrent query waited for its read-only connection.
+   * @param nanos the time to open the session and get its connection
+   */
+  public void recordReadOnlyConnection(long nanos) {
+    readOnlyConnections.record(nanos / 1000);
+  }
+
+  /**
+   * @param type the search type
+   * @return the number of searches of that type
+   */
+  public long getCount(SearchType type) {
+    return types[type.ordinal()].total.getCount();
+  }
+
+  /**
+   * @param type the search type
+   * @return the latency histogram of whole searches of that type
+   */
+  public LatencyHistogram getTotal(SearchType type) {
+    return types[type.ordinal()].total;
+  }
+
+  /**
+   * @param type the search type
+   * @param phase the phase
+   * @return the latency histogram of the phase of searches of that type
+   */
+  public LatencyHistogram getPhase(SearchType type, SearchPhase phase) {
+    return types[type.ordinal()].phases[phase.ordinal()];
+  }
+
+  /**
+   * @param type the search type
+   * @return the number of rows read by searches of that type
+   */
+  public long getSqlRows(SearchType type) {
+    return types[type.ordinal()].sqlRows.get();
+  }
+
+  /**
+   * @param type the search type
+   * @return the number of patients returned by searches of that type
+   */
+  public long getReturnedRows(SearchType type) {
+    return types[type.ordinal()].returnedRows.get();
+  }
+
+  /**
+   * @param type the search type
+   * @return the number of database statements run by searches of that type
+   */
+  public long getStatements(SearchType type) {
+    return types[type.ordinal()].statements.get();
+  }
+
+  /**
+   * @return the latency histogram of getting the read-only connections of concurrent queries
+   */
+  public LatencyHistogram getReadOnlyConnections() {
+    return readOnlyConnections;
+  }
+
+  /**
+   * Drop all counts.
+   */
+  public void reset() {
+    for (TypeMetrics metrics : types) {
+      metrics.total.reset();
+      for (LatencyHistogram phase : metrics.phases) {
+        phase.reset();
+      }
+      metrics.sqlRows.set(0);
+      metrics.returnedRows.set(0);
+      metrics.statements.set(0);
+    }
+    readOnlyConnections.reset();
+  }
+
+  /**
+   * Metrics of one search type.
+   */
+  private static class TypeMetrics {
+
+    final LatencyHistogram total = new LatencyHistogram();
+    final LatencyHistogram[] phases = new LatencyHistogram[SearchPhase.values().length];
+    final AtomicLong sqlRows = new AtomicLong();
+    final AtomicLong returnedRows = new AtomicLong();
+    final AtomicLong statements = new AtomicLong();
+
+    TypeMetrics() {
+      for (int i = 0; i < phases.length; i++) {
+        phases[i] = new LatencyHistogram();
+      }
+    }
+  }
+}
@@ -0,0 +1,211 @@
+/**
+ * Copyright (C) 2011 innoQ Deutschland GmbH
+ *
+ * The contents of this file are subject to the OpenMRS Public License
+ * Version 1.0 (the "License"); you may not use this file except in
+ * compliance with the License. You may obtain a copy of the License at
+ * http://license.openmrs.org
+ *
+ * Software distributed under the License is distributed on an "AS IS"
+ * basis, WITHOUT WARRANTY OF ANY KIND, either express or implied. See the
+ * License for the specific language governing rights and limitations
+ * under the License.
+ *
+ * @author Arnd Kleinbeck, innoQ Deutschland GmbH, http://www.innoq.com
+ */
+package org.openmrs.module.soundex.metrics;
+
+import javax.management.Attribute;
+import javax.management.AttributeList;
+import javax.management.AttributeNotFoundException;
+import javax.management.DynamicMBean;
+import javax.management.JMException;
+import javax.management.MBeanAttributeInfo;
+import javax.management.MBeanInfo;
+import javax.management.MBeanOperationInfo;
+import javax.management.MBeanParameterInfo;
+import javax.management.MBeanServer;
+import javax.management.ObjectName;
+import javax.management.ReflectionException;
+import java.lang.management.ManagementFactory;
+import java.util.ArrayList;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+
+/**
+ * JMX view of the {@link SearchMetrics}. There is one read-only attribute per search type and metric, e.g.
+ * SingleNameCount, SingleNameP95Micros, SingleNameSqlP99Micros, SingleNameReturnedRows or SingleNameStatements,
+ * the attributes ReadOnlyConnectionCount and ReadOnlyConnectionP99Micros etc. of concurrent queries, and an operation
+ * reset. The operations dumpSlowSearches and clearSlowSearches give access to the {@link SlowSearchLog}.
+ */
+public class SearchMetricsMBean implements DynamicMBean {
+
+  /** the name the MBean is registered with. */
+  public static final String OBJECT_NAME = "org.openmrs.module.soundex:type=SearchMetrics";
+
+  private static final double[] PERCENTILES = {0.5, 0.95, 0.99};
+  private static final String[] PERCENTILE_LABELS = {"P50", "P95", "P99"};
+
+  private final SearchMetrics metrics;
+
+  /** the slow search log, null if slow searches are not logged. */
+  private final SlowSearchLog slowSearchLog;
+
+  /** attribute values by attribute name, in the order they are listed. */
+  private final Map<String, Value> attributes = new LinkedHashMap<String, Value>();
+
+  private final MBeanInfo info;
+
+  /**
+   * Constructor.
+   * @param metrics the metrics
+   * @param slowSearchLog the slow search log, null if slow searches are not logged
+   */
+  public SearchMetricsMBean(final SearchMetrics metrics, SlowSearchLog slowSearchLog) {
+    this.metrics = metrics;
+    this.slowSearchLog = slowSearchLog;
+    for (final SearchType type : SearchType.values()) {
+      attributes.put(type.getLabel() + "Count", new Value() {
+        long get() {
+          return metrics.getCount(type);
+        }
+      });
+      attributes.put(type.getLabel() + "SqlRows", new Value() {
+        long get() {
+          return metrics.getSqlRows(type);
+        }
+      });
+      attributes.put(type.getLabel() + "ReturnedRows", new Value() {
+        long get() {
+          return metrics.getReturnedRows(type);
+        }
+      });
+      attributes.put(type.getLabel() + "Statements", new Value() {
+        long get() {
+          return metrics.getStatements(type);
+        }
+      });
+      addLatencies(type.getLabel(), metrics.getTotal(type));
+      for (SearchPhase phase : SearchPhase.values()) {
+        addLatencies(type.getLabel() + phase.getLabel(), metrics.getPhase(type, phase));
+      }
+    }
+    attributes.put("ReadOnlyConnectionCount", new Value() {
+      long get() {
+        return metrics.getReadOnlyConnections().getCount();
+      }
+    });
+    addLatencies("ReadOnlyConnection", metrics.getReadOnlyConnections());
+
+    final List<MBeanAttributeInfo> attributeInfos = new ArrayList<MBeanAttributeInfo>(attributes.size());
+    for (String name : attributes.keySet()) {
+      attributeInfos.add(new MBeanAttributeInfo(name, Long.class.getName(), name, true, false, false));
+    }
+    this.info = new MBeanInfo(getClass().getName(), "Soundex search metrics",
+            attributeInfos.toArray(new MBeanAttributeInfo[attributeInfos.size()]), null,
+            new MBeanOperationInfo[] {
+              new MBeanOperationInfo("reset", "Drop all counts", new MBeanParameterInfo[0], "void", MBeanOperationInfo.ACTION),
+              new MBeanOperationInfo("dumpSlowSearches", "Show the logged slow searches", new MBeanParameterInfo[0],
+                      String.class.getName(), MBeanOperationInfo.INFO),
+              new MBeanOperationInfo("clearSlowSearches", "Drop the logged slow searches", new MBeanParameterInfo[0],
+                      "void", MBeanOperationInfo.ACTION)
+            }, null);
+  }
+
+  private void addLatencies(String prefix, final LatencyHistogram histogram) {
+    attributes.put(prefix + "MeanMicros", new Value() {
+      long get() {
+        return histogram.getMean();
+      }
+    });
+    for (int i = 0; i < PERCENTILES.length; i++) {
+      final double percentile = PERCENTILES[i];
+      attributes.put(prefix + PERCENTILE_LABELS[i] + "Micros", new Value() {
+        long get() {
+          return histogram.getPercentile(percentile);
+        }
+      });
+    }
+  }
+
+  public Object getAttribute(String name) throws AttributeNotFoundException {
+    final Value value = attributes.get(name);
+    if (value == null) {
+      throw new AttributeNotFoundException(name);
+    }
+    return value.get();
+  }
+
+  public AttributeList getAttributes(String[] names) {
+    final AttributeList list = new AttributeList();
+    for (String name : names) {
+      final Value value = attributes.get(name);
+      if (value != null) {
+        list.add(new Attribute(name, value.get()));
+      }
+    }
+    return list;
+  }
+
+  public void setAttribute(Attribute attribute) throws AttributeNotFoundException {
+    throw new AttributeNotFoundException("read-only attribute " + attribute.getName());
+  }
+
+  public AttributeList setAttributes(AttributeList attributes) {
+    return new AttributeList();
+  }
+
+  public Object invoke(String actionName, Object[] params, String[] signature) throws ReflectionException {
+    if ("reset".equals(actionName)) {
+      metrics.reset();
+      return null;
+    }
+    if ("dumpSlowSearches".equals(actionName)) {
+      return slowSearchLog == null ? "Slow searches are not logged, see soundex.search.slow.threshold." : slowSearchLog.dump();
+    }
+    if ("clearSlowSearches".equals(actionName)) {
+      if (slowSearchLog != null) {
+        slowSearchLog.clear();
+      }
+      return null;
+    }
+    throw new ReflectionException(new NoSuchMethodException(actionName));
+  }
+
+  public MBeanInfo getMBeanInfo() {
+    return info;
+  }
+
+  /**
+   * Register the MBean with the platform MBean server, replacing an MBean left over by a previous start of the module.
+   * @throws JMException if registration fails
+   */
+  public void register() throws JMException {
+    final MBeanServer server = ManagementFactory.getPlatformMBeanServer();
+    final ObjectName name = new ObjectName(OBJECT_NAME);
+    if (server.isRegistered(name)) {
+      server.unregisterMBean(name);
+    }
+    server.registerMBean(this, name);
+  }
+
+  /**
+   * Remove the MBean from the platform MBean server.
+   * @throws JMException if removing fails
+   */
+  public static void unregister() throws JMException {
+    final MBeanServer server = ManagementFactory.getPlatformMBeanServer();
+    final ObjectName name = new ObjectName(OBJECT_NAME);
+    if (server.isRegistered(name)) {
+      server.unregisterMBean(name);
+    }
+  }
+
+  /**
+   * A metric value.
+   */
+  private abstract static class Value {
+    abstract long get();
+  }
+}
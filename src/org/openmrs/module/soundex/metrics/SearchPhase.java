@@ -0,0 +1,50 @@
+/**
+ * Copyright (C) 2011 innoQ Deutschland GmbH
+ *
+ * The contents of this file are subject to the OpenMRS Public License
+ * Version 1.0 (the "License"); you may not use this file except in
+ * compliance with the License. You may obtain a copy of the License at
+ * http://license.openmrs.org
+ *
+ * Software distributed under the License is distributed on an "AS IS"
+ * basis, WITHOUT WARRANTY OF ANY KIND, either express or implied. See the
+ * License for the specific language governing rights and limitations
+ * under the License.
+ *
+ * @author Arnd Kleinbeck, innoQ Deutschland GmbH, http://www.innoq.com
+ */
+package org.openmrs.module.soundex.metrics;
+
+/**
+ * The phases of a patient search that are timed separately.
+ */
+public enum SearchPhase {
+
+  /** detection of the activator code. */
+  ACTIVATOR("Activator"),
+
+  /** soundex encoding of the names of the query. */
+  ENCODING("Encoding"),
+
+  /** execution of the soundex queries, or of the in-memory index lookups, or of the conventional search. */
+  SQL("Sql"),
+
+  /** loading the patients of the ranked ids. */
+  HYDRATION("Hydration"),
+
+  /** mixing up family name and given name matches and applying the result limit. */
+  MERGE("Merge");
+
+  private final String label;
+
+  private SearchPhase(String label) {
+    this.label = label;
+  }
+
+  /**
+   * @return the name used in JMX attribute names
+   */
+  public String getLabel() {
+    return label;
+  }
+}
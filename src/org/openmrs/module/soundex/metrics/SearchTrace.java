@@ -0,0 +1,152 @@
+/**
+ * Copyright (C) 2011 innoQ Deutschland GmbH
+ *
+ * The contents of this file are subject to the OpenMRS Public License
+ * Version 1.0 (the "License"); you may not use this file except in
+ * compliance with the License. You may obtain a copy of the License at
+ * http://license.openmrs.org
+ *
+ * Software distributed under the License is distributed on an "AS IS"
+ * basis, WITHOUT WARRANTY OF ANY KIND, either express or implied. See the
+ * License for the specific language governing rights and limitations
+ * under the License.
+ *
+ * @author Arnd Kleinbeck, innoQ Deutschland GmbH, http://www.innoq.com
+ */
+package org.openmrs.module.soundex.metrics;
+
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.List;
+
+/**
+ * Timings and row counts of a single search, collected while it runs and recorded in the {@link SearchMetrics}
+ * when it is finished. A trace is used by one thread only.
+ */
+public class SearchTrace {
+
+  private final long startNanos = System.nanoTime();
+  private final long[] phaseNanos = new long[SearchPhase.values().length];
+
+  private SearchType type = SearchType.CONVENTIONAL;
+  private long totalNanos = -1;
+  private int sqlRows;
+  private int returnedRows;
+
+  private String query;
+  private String[] codes;
+  private List<TracedStatement> statements;
+
+  /**
+   * Set the type of the search, conventional until the activator code is found.
+   * @param type the search type
+   */
+  public void setType(SearchType type) {
+    this.type = type;
+  }
+
+  public SearchType getType() {
+    return type;
+  }
+
+  /**
+   * Add the time since the given mark to a phase. Phases may be entered more than once.
+   * @param phase the phase
+   * @param mark the System.nanoTime() the phase was entered
+   * @return the current System.nanoTime(), to be used as mark of the next phase
+   */
+  public long endPhase(SearchPhase phase, long mark) {
+    final long now = System.nanoTime();
+    phaseNanos[phase.ordinal()] += now - mark;
+    return now;
+  }
+
+  /**
+   * Get the time spent in a phase.
+   * @param phase the phase
+   * @return the time in nanoseconds
+   */
+  public long getPhaseNanos(SearchPhase phase) {
+    return phaseNanos[phase.ordinal()];
+  }
+
+  /**
+   * Count rows read from the database or candidates taken from the in-memory index.
+   * @param rows the number of rows
+   */
+  public void addSqlRows(int rows) {
+    sqlRows += rows;
+  }
+
+  public int getSqlRows() {
+    return sqlRows;
+  }
+
+  /**
+   * Set the number of patients returned by the search.
+   * @param rows the number of patients
+   */
+  public void setReturnedRows(int rows) {
+    returnedRows = rows;
+  }
+
+  public int getReturnedRows() {
+    return returnedRows;
+  }
+
+  /**
+   * Set the effective soundex query and the codes of its names.
+   * @param query the effective soundex query
+   * @param codes the soundex codes of the names
+   */
+  public void setQuery(String query, String[] codes) {
+    this.query = query;
+    this.codes = codes;
+  }
+
+  /**
+   * @return the effective soundex query, null for conventional searches
+   */
+  public String getQuery() {
+    return query;
+  }
+
+  /**
+   * @return the soundex codes of the names of the query, null for conventional searches
+   */
+  public String[] getCodes() {
+    return codes;
+  }
+
+  /**
+   * Add a statement run by the search.
+   * @param statement the statement
+   */
+  public void addStatement(TracedStatement statement) {
+    if (statements == null) {
+      statements = new ArrayList<TracedStatement>(2);
+    }
+    statements.add(statement);
+  }
+
+  /**
+   * @return the statements run by the search, empty if it was answered from the cache or the index
+   */
+  public List<TracedStatement> getStatements() {
+    return statements == null ? Collections.<TracedStatement>emptyList() : statements;
+  }
+
+  /**
+   * Stop the clock of the search.
+   */
+  public void finish() {
+    totalNanos = System.nanoTime() - startNanos;
+  }
+
+  /**
+   * @return the duration of the search in nanoseconds, up to now if it is not finished
+   */
+  public long getTotalNanos() {
+    return totalNanos < 0 ? System.nanoTime() - startNanos : totalNanos;
+  }
+}
@@ -0,0 +1,47 @@
+/**
+ * Copyright (C) 2011 innoQ Deutschland GmbH
+ *
+ * The contents of this file are subject to the OpenMRS Public License
+ * Version 1.0 (the "License"); you may not use this file except in
+ * compliance with the License. You may obtain a copy of the License at
+ * http://license.openmrs.org
+ *
+ * Software distributed under the License is distributed on an "AS IS"
+ * basis, WITHOUT WARRANTY OF ANY KIND, either express or implied. See the
+ * License for the specific language governing rights and limitations
+ * under the License.
+ *
+ * @author Arnd Kleinbeck, innoQ Deutschland GmbH, http://www.innoq.com
+ */
+package org.openmrs.module.soundex.metrics;
+
+/**
+ * The kinds of patient searches passing through the soundex advisor.
+ */
+public enum SearchType {
+
+  /** a search without activator code, run by PatientService itself. */
+  CONVENTIONAL("Conventional"),
+
+  /** a soundex search for a single name, matching family and given names. */
+  SINGLE_NAME("SingleName"),
+
+  /** a soundex search for a given name and a family name. */
+  GIVEN_AND_FAMILY_NAME("GivenAndFamilyName"),
+
+  /** a soundex search for three or more names, each matching any name. */
+  MULTI_NAME("MultiName");
+
+  private final String label;
+
+  private SearchType(String label) {
+    this.label = label;
+  }
+
+  /**
+   * @return the name used in JMX attribute names
+   */
+  public String getLabel() {
+    return label;
+  }
+}
@@ -0,0 +1,280 @@
+/**
+ * Copyright (C) 2011 innoQ Deutschland GmbH
+ *
+ * The contents of this file are subject to the OpenMRS Public License
+ * Version 1.0 (the "License"); you may not use this file except in
+ * compliance with the License. You may obtain a copy of the License at
+ * http://license.openmrs.org
+ *
+ * Software distributed under the License is distributed on an "AS IS"
+ * basis, WITHOUT WARRANTY OF ANY KIND, either express or implied. See the
+ * License for the specific language governing rights and limitations
+ * under the License.
+ *
+ * @author Arnd Kleinbeck, innoQ Deutschland GmbH, http://www.innoq.com
+ */
+package org.openmrs.module.soundex.metrics;
+
+import org.apache.commons.logging.Log;
+import org.apache.commons.logging.LogFactory;
+import org.hibernate.SessionFactory;
+import org.hibernate.StatelessSession;
+
+import java.sql.Connection;
+import java.sql.SQLException;
+import java.text.SimpleDateFormat;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Date;
+import java.util.LinkedList;
+import java.util.List;
+
+/**
+ * Bounded in-memory log of soundex searches that took longer than a threshold. Each record keeps the query, the
+ * soundex codes, the exact statements with their bound values, the row counts and the phase timings, so that
+ * indexes can be tuned for the codes that are actually slow. When the log is full, the oldest record is dropped.
+ * The statements are explained when the log is dumped, on a connection of its own, so that recording costs the
+ * slow search no further database work.
+ */
+public class SlowSearchLog {
+
+  /** logger */
+  private Log log = LogFactory.getLog(this.getClass());
+
+  private final long thresholdNanos;
+  private final int maxSize;
+  private final SessionFactory sessionFactory;
+
+  /** records, oldest first. */
+  private final LinkedList<Record> records = new LinkedList<Record>();
+
+  /**
+   * Constructor.
+   * @param thresholdMillis searches taking at least that many milliseconds are recorded
+   * @param maxSize the maximum number of records
+   */
+  public SlowSearchLog(long thresholdMillis, int maxSize) {
+    this(thresholdMillis, maxSize, null);
+  }
+
+  /**
+   * Constructor.
+   * @param thresholdMillis searches taking at least that many milliseconds are recorded
+   * @param maxSize the maximum number of records
+   * @param sessionFactory the session factory providing the connection for EXPLAIN, null to dump without plans
+   */
+  public SlowSearchLog(long thresholdMillis, int maxSize, SessionFactory sessionFactory) {
+    this.thresholdNanos = thresholdMillis * 1000000L;
+    this.maxSize = maxSize;
+    this.sessionFactory = sessionFactory;
+  }
+
+  /**
+   * Checks whether a finished search is slow.
+   * @param trace the trace of the search
+   * @return true, if the search took at least the threshold
+   */
+  public boolean isSlow(SearchTrace trace) {
+    return trace.getTotalNanos() >= thresholdNanos;
+  }
+
+  /**
+   * Record a slow search. The statements are kept with their bound values and explained by {@link #dump()}.
+   * @param trace the trace of the finished search
+   */
+  public void record(SearchTrace trace) {
+    final Record record = new Record(trace, new ArrayList<TracedStatement>(trace.getStatements()));
+    log.warn("Slow soundex search: " + record.getSummary());
+    synchronized (records) {
+      records.addLast(record);
+      if (records.size() > maxSize) {
+        records.removeFirst();
+      }
+    }
+  }
+
+  /**
+   * @return the recorded searches, oldest first
+   */
+  public List<Record> getRecords() {
+    synchronized (records) {
+      return new ArrayList<Record>(records);
+    }
+  }
+
+  /**
+   * Format all records, oldest first. Statements not explained yet are explained on a read-only connection of
+   * a session of its own.
+   * @return the records as text
+   */
+  public String dump() {
+    if (sessionFactory == null) {
+      return format();
+    }
+    final StatelessSession session = sessionFactory.openStatelessSession();
+    try {
+      final Connection connection = session.connection();
+      final boolean readOnly = connection.isReadOnly();
+      connection.setReadOnly(true);
+      try {
+        return dump(connection);
+      } finally {
+        // the connection goes back to the pool
+        connection.setReadOnly(readOnly);
+      }
+    } catch (SQLException e) {
+      log.warn("Explaining slow soundex searches failed", e);
+      return format();
+    } finally {
+      session.close();
+    }
+  }
+
+  /**
+   * Explain the statements not explained yet and format all records, oldest first.
+   * @param connection the connection for EXPLAIN
+   * @return the records as text
+   */
+  String dump(Connection connection) {
+    for (Record record : getRecords()) {
+      record.explain(connection);
+    }
+    return format();
+  }
+
+  private String format() {
+    final StringBuilder dump = new StringBuilder();
+    for (Record record : getRecords()) {
+      record.appendTo(dump);
+    }
+    return dump.length() == 0 ? "No slow soundex searches recorded." : dump.toString();
+  }
+
+  /**
+   * Drop all records.
+   */
+  public void clear() {
+    synchronized (records) {
+      records.clear();
+    }
+  }
+
+  public long getThresholdMillis() {
+    return thresholdNanos / 1000000L;
+  }
+
+  /**
+   * A slow search.
+   */
+  public static class Record {
+
+    private final long time = System.currentTimeMillis();
+    private final SearchType type;
+    private final String query;
+    private final String[] codes;
+    private final long totalMicros;
+    private final long[] phaseMicros = new long[SearchPhase.values().length];
+    private final int sqlRows;
+    private final int returnedRows;
+    private final String[] statements;
+    private final List<TracedStatement> tracedStatements;
+
+    /** EXPLAIN output of each statement, null until explained. */
+    private List<List<String>> plans;
+
+    Record(SearchTrace trace, List<TracedStatement> tracedStatements) {
+      this.type = trace.getType();
+      this.query = trace.getQuery();
+      this.codes = trace.getCodes();
+      this.totalMicros = trace.getTotalNanos() / 1000;
+      for (SearchPhase phase : SearchPhase.values()) {
+        phaseMicros[phase.ordinal()] = trace.getPhaseNanos(phase) / 1000;
+      }
+      this.sqlRows = trace.getSqlRows();
+      this.returnedRows = trace.getReturnedRows();
+      this.statements = new String[tracedStatements.size()];
+      for (int i = 0; i < statements.length; i++) {
+        statements[i] = tracedStatements.get(i).toString();
+      }
+      this.tracedStatements = tracedStatements;
+    }
+
+    /**
+     * Explain the statements, unless done before. A plan that cannot be read is replaced by the error message.
+     * @param connection the connection for EXPLAIN
+     */
+    synchronized void explain(Connection connection) {
+      if (plans != null) {
+        return;
+      }
+      final List<List<String>> plans = new ArrayList<List<String>>(tracedStatements.size());
+      for (TracedStatement statement : tracedStatements) {
+        try {
+          plans.add(statement.explain(connection));
+        } catch (SQLException e) {
+          plans.add(Arrays.asList("EXPLAIN failed: " + e.getMessage()));
+        }
+      }
+      this.plans = plans;
+    }
+
+    public String getQuery() {
+      return query;
+    }
+
+    public String[] getCodes() {
+      return codes;
+    }
+
+    public long getTotalMicros() {
+      return totalMicros;
+    }
+
+    /**
+     * @return the statements with the bound values inlined, empty if the search was answered from the index
+     */
+    public String[] getStatements() {
+      return statements;
+    }
+
+    /**
+     * @return the EXPLAIN output of each statement, null if the log has not been dumped since the search
+     */
+    public synchronized List<List<String>> getPlans() {
+      return plans;
+    }
+
+    /**
+     * @return one line with the query, the codes, the timings and the row counts
+     */
+    public String getSummary() {
+      final StringBuilder summary = new StringBuilder();
+      summary.append(type.getLabel()).append(" '").append(query).append("' codes ").append(Arrays.toString(codes))
+              .append(" took ").append(totalMicros / 1000).append(" ms (");
+      for (SearchPhase phase : SearchPhase.values()) {
+        summary.append(phase == SearchPhase.ACTIVATOR ? "" : ", ").append(phase.getLabel()).append(' ')
+                .append(phaseMicros[phase.ordinal()] / 1000).append(" ms");
+      }
+      summary.append("), ").append(sqlRows).append(" rows read, ").append(returnedRows).append(" patients returned");
+      return summary.toString();
+    }
+
+    synchronized void appendTo(StringBuilder dump) {
+      dump.append(new SimpleDateFormat("yyyy-MM-dd HH:mm:ss.SSS").format(new Date(time))).append(' ')
+              .append(getSummary()).append('\n');
+      if (statements.length == 0) {
+        dump.append("  no statements, answered from the result cache or the in-memory index\n");
+      }
+      for (int i = 0; i < statements.length; i++) {
+        dump.append("  SQL: ").append(statements[i]).append('\n');
+        if (plans == null) {
+          dump.append("    EXPLAIN not run\n");
+          continue;
+        }
+        for (String row : plans.get(i)) {
+          dump.append("    ").append(row).append('\n');
+        }
+      }
+    }
+  }
+}
@@ -0,0 +1,40 @@
+/**
+ * Copyright (C) 2011 innoQ Deutschland GmbH
+ *
+ * The contents of this file are subject to the OpenMRS Public License
+ * Version 1.0 (the "License"); you may not use this file except in
+ * compliance with the License. You may obtain a copy of the License at
+ * http://license.openmrs.org
+ *
+ * Software distributed under the License is distributed on an "AS IS"
+ * basis, WITHOUT WARRANTY OF ANY KIND, either express or implied. See the
+ * License for the specific language governing rights and limitations
+ * under the License.
+ *
+ * @author Arnd Kleinbeck, innoQ Deutschland GmbH, http://www.innoq.com
+ */
+package org.openmrs.module.soundex.metrics;
+
+import java.sql.Connection;
+import java.sql.SQLException;
+import java.util.List;
+
+/**
+ * A statement run by a search, recorded in its {@link SearchTrace} for the analysis of slow searches.
+ */
+public interface TracedStatement {
+
+  /**
+   * Get the SQL text with the bound values inlined, for logging purposes only.
+   * @return the SQL statement
+   */
+  String toString();
+
+  /**
+   * Ask the database for the execution plan of the statement with the bound values.
+   * @param connection the JDBC connection
+   * @return the rows of the plan, one line each
+   * @throws SQLException in case of database errors
+   */
+  List<String> explain(Connection connection) throws SQLException;
+}
@@ -0,0 +1,289 @@
+/**
+ * Copyright (C) 2011 innoQ Deutschland GmbH
+ *
+ * The contents of this file are subject to the OpenMRS Public License
+ * Version 1.0 (the "License"); you may not use this file except in
+ * compliance with the License. You may obtain a copy of the License at
+ * http://license.openmrs.org
+ *
+ * Software distributed under the License is distributed on an "AS IS"
+ * basis, WITHOUT WARRANTY OF ANY KIND, either express or implied. See the
+ * License for the specific language governing rights and limitations
+ * under the License.
+ *
+ * @author Arnd Kleinbeck, innoQ Deutschland GmbH, http://www.innoq.com
+ */
+package org.openmrs.module.soundex.reencode;
+
+import org.apache.commons.logging.Log;
+import org.apache.commons.logging.LogFactory;
+import org.openmrs.api.APIException;
+import org.openmrs.module.soundex.encoder.SoundexEncoder;
+import org.openmrs.module.soundex.index.NameDictionary;
+
+import java.sql.Connection;
+import java.sql.PreparedStatement;
+import java.sql.ResultSet;
+import java.sql.SQLException;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Future;
+
+/**
+ * Regenerates person_name_code from person_name. Names are streamed in the order of their ids and
+ * processed in batches: each batch is encoded in parallel, compared with the stored codes and written
+ * with batched updates and inserts, and committed on the write connection. A run is not atomic, after
+ * each commit the checkpoint is advanced, so that an interrupted run continues with the next batch.
+ * Each distinct spelling is encoded once per run.
+ */
+public class PersonNameCodeReencoder {
+
+  /** all names after the checkpoint, in the order of their ids. */
+  private static final String SELECT_NAMES =
+          "SELECT person_name_id, given_name, middle_name, family_name, family_name2 " +
+            "FROM person_name " +
+          "WHERE person_name_id > ? " +
+          "ORDER BY person_name_id";
+
+  /** the stored codes of a batch. */
+  private static final String SELECT_CODES =
+          "SELECT person_name_id, given_name_code, middle_name_code, family_name_code, family_name2_code " +
+            "FROM person_name_code " +
+          "WHERE person_name_id BETWEEN ? AND ?";
+
+  private static final String UPDATE_CODES =
+          "UPDATE person_name_code " +
+            "SET given_name_code = ?, middle_name_code = ?, family_name_code = ?, family_name2_code = ? " +
+          "WHERE person_name_id = ?";
+
+  private static final String INSERT_CODES =
+          "INSERT INTO person_name_code (given_name_code, middle_name_code, family_name_code, family_name2_code, person_name_id) " +
+          "VALUES (?, ?, ?, ?, ?)";
+
+  /** number of name columns, given, middle, family and family2. */
+  private static final int NAME_COLUMNS = 4;
+
+  /** logger */
+  private Log log = LogFactory.getLog(this.getClass());
+
+  private final NameDictionary spellings;
+  private final ExecutorService executor;
+  private final int threads;
+  private final int batchSize;
+  private final ReencodeCheckpoint checkpoint;
+
+  private volatile boolean stopped;
+  private volatile long processedCount;
+  private volatile long writtenCount;
+
+  /**
+   * Constructor.
+   * @param encoder the thread-safe encoder
+   * @param executor the executor encoding the names
+   * @param threads the number of tasks per batch, usually the number of threads of the executor
+   * @param batchSize the number of names per transaction
+   * @param checkpoint the checkpoint
+   */
+  public PersonNameCodeReencoder(SoundexEncoder encoder, ExecutorService executor, int threads, int batchSize,
+                                 ReencodeCheckpoint checkpoint) {
+    this.spellings = new NameDictionary(encoder);
+    this.executor = executor;
+    this.threads = threads;
+    this.batchSize = batchSize;
+    this.checkpoint = checkpoint;
+  }
+
+  /**
+   * Re-encode all names after the checkpoint.
+   * @param readConnection the connection the names are streamed from
+   * @param writeConnection the connection the codes are written with, must not be in auto-commit mode, as
+   * each batch is committed and, if writing fails, rolled back on it
+   * @return true, if all names have been processed, false if the run has been stopped
+   * @throws SQLException if reading or writing fails
+   */
+  public boolean run(Connection readConnection, Connection writeConnection) throws SQLException {
+    final int start = checkpoint.read();
+    if (start > 0) {
+      log.info("Resuming re-encoding of person names after person_name_id " + start + " (" + checkpoint + ")");
+    }
+    final long startTime = System.currentTimeMillis();
+
+    final PreparedStatement select = readConnection.prepareStatement(SELECT_NAMES, ResultSet.TYPE_FORWARD_ONLY, ResultSet.CONCUR_READ_ONLY);
+    try {
+      // makes MySQL Connector/J stream the rows instead of reading the whole result
+      if (readConnection.getMetaData().getDriverName().startsWith("MySQL")) {
+        select.setFetchSize(Integer.MIN_VALUE);
+      }
+      select.setInt(1, start);
+      final ResultSet resultSet = select.executeQuery();
+      final List<String[]> batch = new ArrayList<String[]>(batchSize);
+      final int[] ids = new int[batchSize];
+      while (!stopped) {
+        final boolean more = resultSet.next();
+        if (more) {
+          ids[batch.size()] = resultSet.getInt(1);
+          batch.add(new String[] {resultSet.getString(2), resultSet.getString(3), resultSet.getString(4), resultSet.getString(5)});
+        }
+        if (batch.size() == batchSize || (!more && !batch.isEmpty())) {
+          writeBatch(writeConnection, Arrays.copyOf(ids, batch.size()), encodeBatch(batch));
+          checkpoint.write(ids[batch.size() - 1]);
+          processedCount += batch.size();
+          batch.clear();
+          logProgress(startTime);
+        }
+        if (!more) {
+          break;
+        }
+      }
+    } finally {
+      select.close();
+    }
+
+    if (stopped) {
+      log.info("Re-encoding of person names stopped after " + processedCount + " names, it resumes with the next run.");
+      return false;
+    }
+    checkpoint.clear();
+    log.info("Re-encoded " + processedCount + " person names with " + spellings.size() + " spellings, " + writtenCount + " codes changed.");
+    return true;
+  }
+
+  /**
+   * Stop the run after the current batch.
+   */
+  public void stop() {
+    stopped = true;
+  }
+
+  /**
+   * @return the number of names processed by this run
+   */
+  public long getProcessedCount() {
+    return processedCount;
+  }
+
+  /**
+   * @return the number of person_name_code rows updated or inserted by this run
+   */
+  public long getWrittenCount() {
+    return writtenCount;
+  }
+
+  /**
+   * Encode the names of a batch in parallel, each task takes a contiguous slice of the batch.
+   * @param names the names of the batch
+   * @return the codes, in the order of the names
+   */
+  private String[][] encodeBatch(final List<String[]> names) {
+    final String[][] codes = new String[names.size()][];
+    final int sliceSize = (names.size() + threads - 1) / threads;
+    final List<Future<?>> slices = new ArrayList<Future<?>>(threads);
+    for (int from = 0; from < names.size(); from += sliceSize) {
+      final int sliceStart = from;
+      final int sliceEnd = Math.min(from + sliceSize, names.size());
+      slices.add(executor.submit(new Callable<Object>() {
+        public Object call() {
+          for (int i = sliceStart; i < sliceEnd; i++) {
+            final String[] name = names.get(i);
+            final String[] code = new String[NAME_COLUMNS];
+            for (int column = 0; column < NAME_COLUMNS; column++) {
+              code[column] = spellings.getCode(name[column]);
+            }
+            codes[i] = code;
+          }
+          return null;
+        }
+      }));
+    }
+    try {
+      for (Future<?> slice : slices) {
+        slice.get();
+      }
+    } catch (InterruptedException e) {
+      Thread.currentThread().interrupt();
+      throw new APIException("Re-encoding of person names interrupted", e);
+    } catch (ExecutionException e) {
+      throw new APIException("Re-encoding of person names failed", e.getCause());
+    }
+    return codes;
+  }
+
+  /**
+   * Write the codes of a batch and commit them. Rows with unchanged codes are skipped, missing rows
+   * are inserted.
+   * @param connection the write connection
+   * @param ids the person_name_ids of the batch, ascending
+   * @param codes the new codes
+   * @throws SQLException if writing fails
+   */
+  private void writeBatch(Connection connection, int[] ids, String[][] codes) throws SQLException {
+    final Map<Integer, String[]> storedCodes = readStoredCodes(connection, ids[0], ids[ids.length - 1]);
+    final PreparedStatement update = connection.prepareStatement(UPDATE_CODES);
+    final PreparedStatement insert = connection.prepareStatement(INSERT_CODES);
+    try {
+      int updates = 0;
+      int inserts = 0;
+      for (int i = 0; i < ids.length; i++) {
+        final String[] stored = storedCodes.get(ids[i]);
+        if (stored == null) {
+          addBatch(insert, ids[i], codes[i]);
+          inserts++;
+        } else if (!Arrays.equals(stored, codes[i])) {
+          addBatch(update, ids[i], codes[i]);
+          updates++;
+        }
+      }
+      if (updates > 0) {
+        update.executeBatch();
+      }
+      if (inserts > 0) {
+        insert.executeBatch();
+      }
+      connection.commit();
+      writtenCount += updates + inserts;
+    } catch (SQLException e) {
+      connection.rollback();
+      throw e;
+    } finally {
+      update.close();
+      insert.close();
+    }
+  }
+
+  private Map<Integer, String[]> readStoredCodes(Connection connection, int firstId, int lastId) throws SQLException {
+    final Map<Integer, String[]> storedCodes = new HashMap<Integer, String[]>(batchSize * 2);
+    final PreparedStatement select = connection.prepareStatement(SELECT_CODES);
+    try {
+      select.setInt(1, firstId);
+      select.setInt(2, lastId);
+      final ResultSet resultSet = select.executeQuery();
+      while (resultSet.next()) {
+        storedCodes.put(resultSet.getInt(1),
+                new String[] {resultSet.getString(2), resultSet.getString(3), resultSet.getString(4), resultSet.getString(5)});
+      }
+    } finally {
+      select.close();
+    }
+    return storedCodes;
+  }
+
+  private static void addBatch(PreparedStatement statement, int personNameId, String[] codes) throws SQLException {
+    for (int column = 0; column < NAME_COLUMNS; column++) {
+      statement.setString(column + 1, codes[column]);
+    }
+    statement.setInt(NAME_COLUMNS + 1, personNameId);
+    statement.addBatch();
+  }
+
+  private void logProgress(long startTime) {
+    final long elapsed = Math.max(1, System.currentTimeMillis() - startTime);
+    log.info("Re-encoded " + processedCount + " person names (" + (processedCount * 1000 / elapsed) + " names/s), " +
+            writtenCount + " codes changed.");
+  }
+}
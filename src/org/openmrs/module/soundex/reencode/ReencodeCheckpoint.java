@@ -0,0 +1,100 @@
+/**
+ * Copyright (C) 2011 innoQ Deutschland GmbH
+ *
+ * The contents of this file are subject to the OpenMRS Public License
+ * Version 1.0 (the "License"); you may not use this file except in
+ * compliance with the License. You may obtain a copy of the License at
+ * http://license.openmrs.org
+ *
+ * Software distributed under the License is distributed on an "AS IS"
+ * basis, WITHOUT WARRANTY OF ANY KIND, either express or implied. See the
+ * License for the specific language governing rights and limitations
+ * under the License.
+ *
+ * @author Arnd Kleinbeck, innoQ Deutschland GmbH, http://www.innoq.com
+ */
+package org.openmrs.module.soundex.reencode;
+
+import org.openmrs.api.APIException;
+
+import java.io.BufferedReader;
+import java.io.File;
+import java.io.FileReader;
+import java.io.FileWriter;
+import java.io.IOException;
+import java.io.Writer;
+
+/**
+ * Watermark of a re-encoding run: the highest person_name_id whose codes have been committed.
+ * It is kept in a file, so that an interrupted run continues after the last committed batch.
+ */
+public class ReencodeCheckpoint {
+
+  private final File file;
+
+  /**
+   * Constructor.
+   * @param file the checkpoint file
+   */
+  public ReencodeCheckpoint(File file) {
+    this.file = file;
+  }
+
+  /**
+   * Read the watermark.
+   * @return the highest committed person_name_id, 0 if no run is in progress
+   */
+  public int read() {
+    if (!file.exists()) {
+      return 0;
+    }
+    try {
+      final BufferedReader reader = new BufferedReader(new FileReader(file));
+      try {
+        final String line = reader.readLine();
+        return line == null ? 0 : Integer.parseInt(line.trim());
+      } finally {
+        reader.close();
+      }
+    } catch (IOException e) {
+      throw new APIException("Reading the re-encoding checkpoint " + file + " failed", e);
+    } catch (NumberFormatException e) {
+      throw new APIException("Invalid re-encoding checkpoint " + file, e);
+    }
+  }
+
+  /**
+   * Write the watermark. The file is replaced as a whole, so that a crash never leaves a partial value.
+   * @param personNameId the highest committed person_name_id
+   */
+  public void write(int personNameId) {
+    final File temp = new File(file.getPath() + ".tmp");
+    try {
+      final Writer writer = new FileWriter(temp);
+      try {
+        writer.write(String.valueOf(personNameId));
+      } finally {
+        writer.close();
+      }
+    } catch (IOException e) {
+      throw new APIException("Writing the re-encoding checkpoint " + file + " failed", e);
+    }
+    if (!temp.renameTo(file) && !(file.delete() && temp.renameTo(file))) {
+      throw new APIException("Writing the re-encoding checkpoint " + file + " failed");
+    }
+  }
+
+  /**
+   * Remove the watermark after a completed run.
+   */
+  public void clear() {
+    if (file.exists() && !file.delete()) {
+      throw new APIException("Removing the re-encoding checkpoint " + file + " failed");
+    }
+  }
+
+  @Override
+  public String toString() {
+    return file.getPath();
+  }
+}
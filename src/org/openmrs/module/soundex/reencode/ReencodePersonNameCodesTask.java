@@ -0,0 +1,159 @@
+/**
+ * Copyright (C) 2011 innoQ Deutschland GmbH
+ *
+ * The contents of this file are subject to the OpenMRS Public License
+ * Version 1.0 (the "License"); you may not use this file except in
+ * compliance with the License. You may obtain a copy of the License at
+ * http://license.openmrs.org
+ *
+ * Software distributed under the License is distributed on an "AS IS"
+ * basis, WITHOUT WARRANTY OF ANY KIND, either express or implied. See the
+ * License for the specific language governing rights and limitations
+ * under the License.
+ *
+ * @author Arnd Kleinbeck, innoQ Deutschland GmbH, http://www.innoq.com
+ */
+package org.openmrs.module.soundex.reencode;
+
+import org.apache.commons.logging.Log;
+import org.apache.commons.logging.LogFactory;
+import org.hibernate.SessionFactory;
+import org.hibernate.StatelessSession;
+import org.openmrs.api.APIException;
+import org.openmrs.api.context.Context;
+import org.openmrs.module.soundex.SoundexContext;
+import org.openmrs.module.soundex.SoundexRuntimePropertyAccess;
+import org.openmrs.module.soundex.cache.SearchResultCache;
+import org.openmrs.module.soundex.index.SoundexIndex;
+import org.openmrs.module.soundex.index.SoundexIndexLoader;
+import org.openmrs.module.soundex.index.SoundexIndexSnapshot;
+import org.openmrs.scheduler.tasks.AbstractTask;
+import org.openmrs.util.OpenmrsUtil;
+
+import java.io.File;
+import java.io.IOException;
+import java.sql.Connection;
+import java.sql.SQLException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+
+/**
+ * Scheduler task that regenerates person_name_code for all person names, e.g. after the encoder rules
+ * have changed or after a data import. Each batch of names is committed on its own, an interrupted run
+ * resumes with the next execution after the last committed batch.
+ * The task properties "threads" and "batchSize" set the number of encoding threads and the number of
+ * names per transaction.
+ */
+public class ReencodePersonNameCodesTask extends AbstractTask {
+
+  /** task property for the number of encoding threads. */
+  public static final String THREADS_PROPERTY = "threads";
+
+  /** task property for the number of names per transaction. */
+  public static final String BATCH_SIZE_PROPERTY = "batchSize";
+
+  private static final int DEFAULT_BATCH_SIZE = 1000;
+
+  /** name of the checkpoint file in the soundex directory of the application data directory. */
+  private static final String CHECKPOINT_FILE = "reencode.checkpoint";
+
+  /** logger */
+  private Log log = LogFactory.getLog(this.getClass());
+
+  /** the current run, null if the task is not executing. */
+  private volatile PersonNameCodeReencoder reencoder;
+
+  @Override
+  public void execute() {
+    if (isExecuting) {
+      log.info("Re-encoding of person names is already running.");
+      return;
+    }
+    startExecuting();
+    final int threads = getIntProperty(THREADS_PROPERTY, Runtime.getRuntime().availableProcessors());
+    final ExecutorService executor = Executors.newFixedThreadPool(threads);
+    try {
+      final File directory = OpenmrsUtil.getDirectoryInApplicationDataDirectory("soundex");
+      reencoder = new PersonNameCodeReencoder(SoundexContext.getEncoder(), executor, threads,
+              getIntProperty(BATCH_SIZE_PROPERTY, DEFAULT_BATCH_SIZE), new ReencodeCheckpoint(new File(directory, CHECKPOINT_FILE)));
+      final SessionFactory sessionFactory = Context.getRegisteredComponents(SessionFactory.class).get(0);
+      if (run(sessionFactory, reencoder) && reencoder.getWrittenCount() > 0) {
+        refreshSearchState(sessionFactory);
+      }
+    } finally {
+      reencoder = null;
+      executor.shutdownNow();
+      stopExecuting();
+    }
+  }
+
+  @Override
+  public void shutdown() {
+    final PersonNameCodeReencoder current = reencoder;
+    if (current != null) {
+      current.stop();
+    }
+    super.shutdown();
+  }
+
+  /**
+   * Run the re-encoding on two stateless sessions, one streaming the names, one writing the codes. The
+   * connection of the writing session is taken out of auto-commit mode, the re-encoder commits each batch.
+   */
+  private boolean run(SessionFactory sessionFactory, PersonNameCodeReencoder reencoder) {
+    final StatelessSession readSession = sessionFactory.openStatelessSession();
+    final StatelessSession writeSession = sessionFactory.openStatelessSession();
+    try {
+      final Connection writeConnection = writeSession.connection();
+      final boolean autoCommit = writeConnection.getAutoCommit();
+      writeConnection.setAutoCommit(false);
+      try {
+        return reencoder.run(readSession.connection(), writeConnection);
+      } finally {
+        writeConnection.setAutoCommit(autoCommit);
+      }
+    } catch (SQLException e) {
+      throw new APIException("Re-encoding of person names failed", e);
+    } finally {
+      writeSession.close();
+      readSession.close();
+    }
+  }
+
+  /**
+   * The in-memory index, its snapshot and cached results are based on the old codes, they are replaced.
+   * Changed codes leave no trace in the database the snapshot could be validated against.
+   */
+  private void refreshSearchState(SessionFactory sessionFactory) {
+    final SearchResultCache cache = SoundexContext.getResultCache();
+    if (cache != null) {
+      cache.clear();
+    }
+    SoundexIndexSnapshot snapshot = SoundexIndexSnapshot.inApplicationDataDirectory();
+    try {
+      snapshot.delete();
+    } catch (IOException e) {
+      log.error("Removing the outdated soundex index snapshot failed", e);
+      snapshot = null;
+    }
+    final SoundexIndex index = SoundexContext.getIndex();
+    if (index != null) {
+      final long generation = SoundexContext.startLoadingIndex();
+      try {
+        if (SoundexContext.setIndex(SoundexIndexLoader.load(sessionFactory,
+                SoundexRuntimePropertyAccess.isIndexSnapshotEnabled() ? snapshot : null), generation)) {
+          log.info("Reloaded " + SoundexContext.getIndex());
+        }
+      } catch (RuntimeException e) {
+        // keep the previous index, which has seen all updates
+        SoundexContext.setIndex(index, generation);
+        log.error("Reloading the soundex index failed", e);
+      }
+    }
+  }
+
+  private int getIntProperty(String name, int defaultValue) {
+    final String value = taskDefinition == null ? null : taskDefinition.getProperty(name);
+    return value == null || value.trim().length() == 0 ? defaultValue : Integer.parseInt(value.trim());
+  }
+}
@@ -0,0 +1,216 @@
+/**
+ * Copyright (C) 2011 innoQ Deutschland GmbH
+ *
+ * The contents of this file are subject to the OpenMRS Public License
+ * Version 1.0 (the "License"); you may not use this file except in
+ * compliance with the License. You may obtain a copy of the License at
+ * http://license.openmrs.org
+ *
+ * Software distributed under the License is distributed on an "AS IS"
+ * basis, WITHOUT WARRANTY OF ANY KIND, either express or implied. See the
+ * License for the specific language governing rights and limitations
+ * under the License.
+ *
+ * @author Arnd Kleinbeck, innoQ Deutschland GmbH, http://www.innoq.com
+ */
+package org.openmrs.module.soundex.warmup;
+
+import org.apache.commons.logging.Log;
+import org.apache.commons.logging.LogFactory;
+import org.hibernate.SessionFactory;
+import org.hibernate.StatelessSession;
+import org.openmrs.module.soundex.SoundexContext;
+import org.openmrs.module.soundex.SoundexRuntimePropertyAccess;
+import org.openmrs.module.soundex.advisor.PatientServiceAroundAdvisor;
+import org.openmrs.module.soundex.index.SoundexIndex;
+
+import javax.management.JMException;
+import javax.management.MBeanServer;
+import javax.management.ObjectName;
+import java.lang.management.ManagementFactory;
+import java.sql.Connection;
+import java.sql.PreparedStatement;
+import java.sql.ResultSet;
+import java.sql.SQLException;
+import java.util.ArrayList;
+import java.util.List;
+
+/**
+ * Warm-up after startup, run in the background. It searches the most frequent given names and family names on
+ * the database, which compiles the search path and loads person_name_code and its prefix indexes into the MySQL
+ * buffer pool, waits for the in-memory index and searches the names on the index. The module reports ready
+ * when it is done; failing searches are logged and do not keep it from becoming ready.
+ */
+public class SoundexWarmUp implements SoundexWarmUpMBean, Runnable {
+
+  /** the name the MBean is registered with. */
+  public static final String OBJECT_NAME = "org.openmrs.module.soundex:type=WarmUp";
+
+  /** the most frequent non-voided names of a column, parameter the number of names. */
+  private static final String SELECT_FREQUENT_NAMES =
+          "SELECT %1$s FROM person_name WHERE voided = 0 AND %1$s IS NOT NULL GROUP BY %1$s ORDER BY COUNT(*) DESC LIMIT ?";
+
+  /** interval of checking whether the index is loaded. */
+  private static final long INDEX_POLL_INTERVAL = 200;
+
+  /** logger */
+  private Log log = LogFactory.getLog(this.getClass());
+
+  private final SessionFactory sessionFactory;
+  private final int nameCount;
+  private final long startTime = System.currentTimeMillis();
+
+  private volatile boolean ready;
+  private volatile long endTime;
+  private volatile int searchCount;
+
+  /**
+   * Constructor.
+   * @param sessionFactory the session factory, the warm-up searches run on a stateless session of their own
+   * @param nameCount the number of most frequent given names and family names to search, 0 to search none
+   */
+  public SoundexWarmUp(SessionFactory sessionFactory, int nameCount) {
+    this.sessionFactory = sessionFactory;
+    this.nameCount = nameCount;
+  }
+
+  public void run() {
+    try {
+      List<String> givenNames = new ArrayList<String>();
+      List<String> familyNames = new ArrayList<String>();
+      if (nameCount > 0) {
+        final StatelessSession session = sessionFactory.openStatelessSession();
+        try {
+          final Connection connection = session.connection();
+          givenNames = findFrequentNames(connection, "given_name");
+          familyNames = findFrequentNames(connection, "family_name");
+          searchDatabase(connection, givenNames, familyNames);
+        } catch (SQLException e) {
+          log.warn("Soundex warm-up searches on the database failed", e);
+        } finally {
+          session.close();
+        }
+      }
+      while (SoundexContext.isIndexLoading()) {
+        Thread.sleep(INDEX_POLL_INTERVAL);
+      }
+      final SoundexIndex index = SoundexContext.getIndex();
+      if (index != null && SoundexRuntimePropertyAccess.isIndexEnabled()) {
+        searchIndex(index, givenNames, familyNames);
+      }
+    } catch (InterruptedException e) {
+      // the module is shut down
+      return;
+    } catch (RuntimeException e) {
+      log.warn("Soundex warm-up failed", e);
+    }
+    endTime = System.currentTimeMillis();
+    ready = true;
+    log.info("Soundex search ready after " + getDurationMillis() + " ms, " + searchCount + " warm-up searches.");
+  }
+
+  public boolean isReady() {
+    return ready;
+  }
+
+  public long getDurationMillis() {
+    return (ready ? endTime : System.currentTimeMillis()) - startTime;
+  }
+
+  public int getSearchCount() {
+    return searchCount;
+  }
+
+  /**
+   * Register the MBean with the platform MBean server, replacing an MBean left over by a previous start of the module.
+   * @throws JMException if registration fails
+   */
+  public void register() throws JMException {
+    final MBeanServer server = ManagementFactory.getPlatformMBeanServer();
+    final ObjectName name = new ObjectName(OBJECT_NAME);
+    if (server.isRegistered(name)) {
+      server.unregisterMBean(name);
+    }
+    server.registerMBean(this, name);
+  }
+
+  /**
+   * Remove the MBean from the platform MBean server.
+   * @throws JMException if removing fails
+   */
+  public static void unregister() throws JMException {
+    final MBeanServer server = ManagementFactory.getPlatformMBeanServer();
+    final ObjectName name = new ObjectName(OBJECT_NAME);
+    if (server.isRegistered(name)) {
+      server.unregisterMBean(name);
+    }
+  }
+
+  private List<String> findFrequentNames(Connection connection, String column) throws SQLException {
+    final List<String> names = new ArrayList<String>(nameCount);
+    final PreparedStatement statement = connection.prepareStatement(String.format(SELECT_FREQUENT_NAMES, column));
+    try {
+      statement.setInt(1, nameCount);
+      final ResultSet resultSet = statement.executeQuery();
+      while (resultSet.next()) {
+        names.add(resultSet.getString(1));
+      }
+    } finally {
+      statement.close();
+    }
+    return names;
+  }
+
+  /**
+   * Run the statements of single name searches for all names and of given and family name searches for
+   * pairs of names of equal frequency rank.
+   */
+  private void searchDatabase(Connection connection, List<String> givenNames, List<String> familyNames)
+          throws SQLException, InterruptedException {
+    final PatientServiceAroundAdvisor advisor = new PatientServiceAroundAdvisor();
+    for (int i = 0; i < Math.max(givenNames.size(), familyNames.size()); i++) {
+      if (Thread.interrupted()) {
+        throw new InterruptedException();
+      }
+      if (i < givenNames.size()) {
+        advisor.buildSoundexSingleNameQuery(givenNames.get(i)).listPatientIds(connection);
+        searchCount++;
+      }
+      if (i < familyNames.size()) {
+        advisor.buildSoundexSingleNameQuery(familyNames.get(i)).listPatientIds(connection);
+        searchCount++;
+      }
+      if (i < givenNames.size() && i < familyNames.size()) {
+        advisor.buildSoundexGivenAndFamilyNameQuery(givenNames.get(i), familyNames.get(i)).listPatientIds(connection);
+        searchCount++;
+      }
+    }
+  }
+
+  /**
+   * Run the same searches on the in-memory index, which also builds the bitmaps of the frequent codes.
+   */
+  private void searchIndex(SoundexIndex index, List<String> givenNames, List<String> familyNames) {
+    final int limit = SoundexRuntimePropertyAccess.getDefaultSqlLimit();
+    for (int i = 0; i < Math.max(givenNames.size(), familyNames.size()); i++) {
+      final String givenName = i < givenNames.size() ? givenNames.get(i) : null;
+      final String familyName = i < familyNames.size() ? familyNames.get(i) : null;
+      final String givenCode = SoundexContext.getEncoder().encode(givenName);
+      final String familyCode = SoundexContext.getEncoder().encode(familyName);
+      if (givenName != null) {
+        index.findFamilyName(givenName, givenCode, limit);
+        index.findGivenName(givenName, givenCode, limit);
+        searchCount++;
+      }
+      if (familyName != null) {
+        index.findFamilyName(familyName, familyCode, limit);
+        index.findGivenName(familyName, familyCode, limit);
+        searchCount++;
+      }
+      if (givenName != null && familyName != null) {
+        index.findGivenAndFamilyName(givenName, familyName, givenCode, familyCode, limit);
+        searchCount++;
+      }
+    }
+  }
+}
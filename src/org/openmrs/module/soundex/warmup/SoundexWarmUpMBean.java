@@ -0,0 +1,37 @@
+/**
+ * Copyright (C) 2011 innoQ Deutschland GmbH
+ *
+ * The contents of this file are subject to the OpenMRS Public License
+ * Version 1.0 (the "License"); you may not use this file except in
+ * compliance with the License. You may obtain a copy of the License at
+ * http://license.openmrs.org
+ *
+ * Software distributed under the License is distributed on an "AS IS"
+ * basis, WITHOUT WARRANTY OF ANY KIND, either express or implied. See the
+ * License for the specific language governing rights and limitations
+ * under the License.
+ *
+ * @author Arnd Kleinbeck, innoQ Deutschland GmbH, http://www.innoq.com
+ */
+package org.openmrs.module.soundex.warmup;
+
+/**
+ * JMX view of the {@link SoundexWarmUp}, registered as {@link SoundexWarmUp#OBJECT_NAME}.
+ */
+public interface SoundexWarmUpMBean {
+
+  /**
+   * @return true, if the index is loaded (or disabled) and the warm-up searches have run
+   */
+  boolean isReady();
+
+  /**
+   * @return the time from the start of the module until it became ready, or until now if it is not ready yet
+   */
+  long getDurationMillis();
+
+  /**
+   * @return the number of warm-up searches run so far
+   */
+  int getSearchCount();
+}
@@ -0,0 +1,66 @@
+/**
+ * Copyright (C) 2011 innoQ Deutschland GmbH
+ *
+ * The contents of this file are subject to the OpenMRS Public License
+ * Version 1.0 (the "License"); you may not use this file except in
+ * compliance with the License. You may obtain a copy of the License at
+ * http://license.openmrs.org
+ *
+ * Software distributed under the License is distributed on an "AS IS"
+ * basis, WITHOUT WARRANTY OF ANY KIND, either express or implied. See the
+ * License for the specific language governing rights and limitations
+ * under the License.
+ *
+ * @author Arnd Kleinbeck, innoQ Deutschland GmbH, http://www.innoq.com
+ */
+package org.openmrs.module.soundex;
+
+import org.junit.After;
+import org.junit.Test;
+import org.openmrs.module.soundex.index.SoundexCodeDictionary;
+import org.openmrs.module.soundex.index.SoundexIndex;
+
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertNull;
+import static org.junit.Assert.assertSame;
+import static org.junit.Assert.assertTrue;
+
+/**
+ * Test class for publishing the search state loaded in the background.
+ */
+public class SoundexContextTest {
+
+  @After
+  public void tearDown() {
+    SoundexContext.setIndex(null);
+    SoundexContext.setCodeDictionary(null);
+  }
+
+  @Test
+  public void testLoadFinishingAfterShutdownIsDropped() {
+    final long generation = SoundexContext.startLoadingIndex();
+    SoundexContext.setIndex(null);
+    assertFalse(SoundexContext.setIndex(new SoundexIndex.Builder().build(), generation));
+    assertNull(SoundexContext.getIndex());
+    assertFalse(SoundexContext.isTrackingUpdates());
+  }
+
+  @Test
+  public void testOnlyLatestLoadIsPublished() {
+    final long outdated = SoundexContext.startLoadingIndex();
+    final long latest = SoundexContext.startLoadingIndex();
+    final SoundexIndex index = new SoundexIndex.Builder().build();
+    assertTrue(SoundexContext.setIndex(index, latest));
+    assertFalse(SoundexContext.setIndex(new SoundexIndex.Builder().build(), outdated));
+    assertSame(index, SoundexContext.getIndex());
+
+  }
+
+  @Test
+  public void testCodeDictionaryLoadFinishingAfterShutdownIsDropped() {
+    final long generation = SoundexContext.startLoadingCodeDictionary();
+    SoundexContext.setCodeDictionary(null);
+    assertFalse(SoundexContext.setCodeDictionary(new SoundexCodeDictionary(), generation));
+    assertNull(SoundexContext.getCodeDictionary());
+  }
+}
@@ -0,0 +1,42 @@
+/**
+ * Copyright (C) 2011 innoQ Deutschland GmbH
+ *
+ * The contents of this file are subject to the OpenMRS Public License
+ * Version 1.0 (the "License"); you may not use this file except in
+ * compliance with the License. You may obtain a copy of the License at
+ * http://license.openmrs.org
+ *
+ * Software distributed under the License is distributed on an "AS IS"
+ * basis, WITHOUT WARRANTY OF ANY KIND, either express or implied. See the
+ * License for the specific language governing rights and limitations
+ * under the License.
+ *
+ * @author Arnd Kleinbeck, innoQ Deutschland GmbH, http://www.innoq.com
+ */
+package org.openmrs.module.soundex;
+
+import org.junit.Test;
+import org.openmrs.api.context.Context;
+
+import java.util.Properties;
+
+import static org.junit.Assert.assertEquals;
+
+/**
+ * Test class for reading the runtime properties of the soundex search.
+ */
+public class SoundexRuntimePropertyAccessTest {
+
+  @Test
+  public void testPropertiesSetInContextTakeEffectAtOnce() {
+    final Properties properties = new Properties();
+    properties.setProperty(SoundexRuntimePropertyAccess.DEFAULT_RESULT_LIMIT_TAG, "7");
+    Context.setRuntimeProperties(properties);
+    assertEquals(7, SoundexRuntimePropertyAccess.getDefaultResultLimit());
+
+    final Properties changed = new Properties();
+    changed.setProperty(SoundexRuntimePropertyAccess.DEFAULT_RESULT_LIMIT_TAG, "9");
+    Context.setRuntimeProperties(changed);
+    assertEquals(9, SoundexRuntimePropertyAccess.getDefaultResultLimit());
+  }
+}
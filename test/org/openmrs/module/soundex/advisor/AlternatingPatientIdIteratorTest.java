@@ -0,0 +1,61 @@
+/**
+ * Copyright (C) 2011 innoQ Deutschland GmbH
+ *
+ * The contents of this file are subject to the OpenMRS Public License
+ * Version 1.0 (the "License"); you may not use this file except in
+ * compliance with the License. You may obtain a copy of the License at
+ * http://license.openmrs.org
+ *
+ * Software distributed under the License is distributed on an "AS IS"
+ * basis, WITHOUT WARRANTY OF ANY KIND, either express or implied. See the
+ * License for the specific language governing rights and limitations
+ * under the License.
+ *
+ * @author Arnd Kleinbeck, innoQ Deutschland GmbH, http://www.innoq.com
+ */
+package org.openmrs.module.soundex.advisor;
+
+import org.junit.Test;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Iterator;
+import java.util.List;
+
+import static org.junit.Assert.assertEquals;
+
+/**
+ * Test class for mixing up family name and given name matches.
+ */
+public class AlternatingPatientIdIteratorTest {
+
+  @Test
+  public void testAlternatingGroups() {
+    List<Integer> family = Arrays.asList(1, 2, 3, 4, 5, 6, 7);
+    List<Integer> given = Arrays.asList(11, 12, 13);
+    assertEquals(Arrays.asList(1, 2, 3, 4, 5, 11, 12, 13, 6, 7), drain(family, given, 5));
+  }
+
+  @Test
+  public void testDuplicatesTakeTheirPlaceInTheGroup() {
+    List<Integer> family = Arrays.asList(1, 2, 3, 4);
+    List<Integer> given = Arrays.asList(2, 11, 1, 12);
+    assertEquals(Arrays.asList(1, 2, 11, 3, 4, 12), drain(family, given, 2));
+  }
+
+  @Test
+  public void testEmptySequences() {
+    List<Integer> empty = new ArrayList<Integer>();
+    assertEquals(empty, drain(empty, empty, 5));
+    assertEquals(Arrays.asList(11, 12), drain(empty, Arrays.asList(11, 12), 5));
+  }
+
+  private static List<Integer> drain(List<Integer> first, List<Integer> second, int groupSize) {
+    final Iterator<Integer> iterator = new AlternatingPatientIdIterator(first.iterator(), second.iterator(), groupSize);
+    final List<Integer> patientIds = new ArrayList<Integer>();
+    while (iterator.hasNext()) {
+      patientIds.add(iterator.next());
+    }
+    return patientIds;
+  }
+}
@@ -0,0 +1,62 @@
+/**
+ * Copyright (C) 2011 innoQ Deutschland GmbH
+ *
+ * The contents of this file are subject to the OpenMRS Public License
+ * Version 1.0 (the "License"); you may not use this file except in
+ * compliance with the License. You may obtain a copy of the License at
+ * http://license.openmrs.org
+ *
+ * Software distributed under the License is distributed on an "AS IS"
+ * basis, WITHOUT WARRANTY OF ANY KIND, either express or implied. See the
+ * License for the specific language governing rights and limitations
+ * under the License.
+ *
+ * @author Arnd Kleinbeck, innoQ Deutschland GmbH, http://www.innoq.com
+ */
+package org.openmrs.module.soundex.advisor;
+
+import org.junit.Test;
+
+import java.util.Arrays;
+
+import static org.junit.Assert.assertArrayEquals;
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertNull;
+
+/**
+ * Test class for activator code detection and splitting of soundex queries.
+ */
+public class SoundexActivatorMatcherTest {
+
+  private final SoundexActivatorMatcher matcher = new SoundexActivatorMatcher(Arrays.asList("soundex:", "s:", ":soundex", ":s"), "~");
+
+  @Test
+  public void testActivatorCodes() {
+    assertEquals(" Mary Banda", matcher.getEffectiveQuery("s: Mary Banda"));
+    assertEquals("", matcher.getEffectiveQuery("s:"));
+    assertEquals(" Alina", matcher.getEffectiveQuery("SOUNDEX: Alina"));
+    assertEquals("John ", matcher.getEffectiveQuery("John :S"));
+    assertEquals("Mary", matcher.getEffectiveQuery("~Mary"));
+
+    assertNull(matcher.getEffectiveQuery("soundex Alina"));
+    assertNull(matcher.getEffectiveQuery(""));
+    assertNull(matcher.getEffectiveQuery("Mary"));
+    assertNull(matcher.getEffectiveQuery(":"));
+    assertNull(matcher.getEffectiveQuery("sound: Alina"));
+  }
+
+  @Test
+  public void testAlias() {
+    assertEquals(true, matcher.hasAlias("~"));
+    assertEquals(false, matcher.hasAlias("sound:"));
+    assertEquals(" Alina", new SoundexActivatorMatcher(Arrays.asList("s:"), "sound:").getEffectiveQuery("sound: Alina"));
+  }
+
+  @Test
+  public void testSplitNames() {
+    assertArrayEquals(new String[] {"Mary", "Banda"}, PatientServiceAroundAdvisor.splitNames(" Mary  Banda "));
+    assertArrayEquals(new String[] {"Banda", "Mary"}, PatientServiceAroundAdvisor.splitNames("Banda, Mary"));
+    assertArrayEquals(new String[] {"Banda,Mary"}, PatientServiceAroundAdvisor.splitNames("Banda,Mary"));
+    assertArrayEquals(new String[0], PatientServiceAroundAdvisor.splitNames("  "));
+  }
+}
@@ -0,0 +1,86 @@
+/**
+ * Copyright (C) 2011 innoQ Deutschland GmbH
+ *
+ * The contents of this file are subject to the OpenMRS Public License
+ * Version 1.0 (the "License"); you may not use this file except in
+ * compliance with the License. You may obtain a copy of the License at
+ * http://license.openmrs.org
+ *
+ * Software distributed under the License is distributed on an "AS IS"
+ * basis, WITHOUT WARRANTY OF ANY KIND, either express or implied. See the
+ * License for the specific language governing rights and limitations
+ * under the License.
+ *
+ * @author Arnd Kleinbeck, innoQ Deutschland GmbH, http://www.innoq.com
+ */
+package org.openmrs.module.soundex.cache;
+
+import org.junit.Test;
+import org.openmrs.module.soundex.index.NameEntry;
+import org.openmrs.module.soundex.index.PatientNamesUpdate;
+
+import java.util.Arrays;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertNull;
+
+/**
+ * Test class for eviction and invalidation of the search result cache.
+ */
+public class SearchResultCacheTest {
+
+  @Test
+  public void testKeyIgnoresCase() {
+    assertEquals(SearchResultCache.key(new String[] {"mary", "Banda"}, 100, 50),
+            SearchResultCache.key(new String[] {"MARY", "banda"}, 100, 50));
+  }
+
+  @Test
+  public void testLeastRecentlyUsedEviction() {
+    SearchResultCache cache = new SearchResultCache(2, 60000);
+    cache.put("a", Arrays.asList(1), new String[] {"B53"}, 0);
+    cache.put("b", Arrays.asList(2), new String[] {"P4"}, 0);
+    cache.get("a");
+    cache.put("c", Arrays.asList(3), new String[] {"N4"}, 0);
+    assertEquals(Arrays.asList(1), cache.get("a"));
+    assertNull(cache.get("b"));
+    assertEquals(2, cache.size());
+  }
+
+  @Test
+  public void testTimeToLive() throws InterruptedException {
+    SearchResultCache cache = new SearchResultCache(10, 1);
+    cache.put("a", Arrays.asList(1), new String[] {"B53"}, 0);
+    Thread.sleep(5);
+    assertNull(cache.get("a"));
+  }
+
+  @Test
+  public void testInvalidation() {
+    SearchResultCache cache = new SearchResultCache(10, 60000);
+    cache.put("banda", Arrays.asList(1, 2), new String[] {"B53"}, 0);
+    cache.put("phiri", Arrays.asList(3), new String[] {"P4"}, 0);
+    cache.put("mary", Arrays.asList(4), new String[] {"N4"}, 0);
+
+    // patient 2 is renamed, patient 5 becomes a Bandawe
+    cache.invalidate(PatientNamesUpdate.removal(2));
+    cache.invalidate(new PatientNamesUpdate(5, new NameEntry[] {
+            new NameEntry(1, 5, "John", "Bandawe", null, "Y5", "B538", null) }));
+    assertNull(cache.get("banda"));
+    assertEquals(Arrays.asList(3), cache.get("phiri"));
+    assertEquals(Arrays.asList(4), cache.get("mary"));
+
+    cache.invalidate(new PatientNamesUpdate(6, new NameEntry[] {
+            new NameEntry(2, 6, "Maria", "Mwale", null, "N4", "N84", null) }));
+    assertNull(cache.get("mary"));
+  }
+
+  @Test
+  public void testResultOfConcurrentSearchIsDropped() {
+    SearchResultCache cache = new SearchResultCache(10, 60000);
+    long invalidationCount = cache.getInvalidationCount();
+    cache.invalidate(PatientNamesUpdate.removal(7));
+    cache.put("banda", Arrays.asList(7), new String[] {"B53"}, invalidationCount);
+    assertNull(cache.get("banda"));
+  }
+}
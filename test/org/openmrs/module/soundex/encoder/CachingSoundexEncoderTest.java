@@ -0,0 +1,52 @@
+/**
+ * Copyright (C) 2011 innoQ Deutschland GmbH
+ *
+ * The contents of this file are subject to the OpenMRS Public License
+ * Version 1.0 (the "License"); you may not use this file except in
+ * compliance with the License. You may obtain a copy of the License at
+ * http://license.openmrs.org
+ *
+ * Software distributed under the License is distributed on an "AS IS"
+ * basis, WITHOUT WARRANTY OF ANY KIND, either express or implied. See the
+ * License for the specific language governing rights and limitations
+ * under the License.
+ *
+ * @author Arnd Kleinbeck, innoQ Deutschland GmbH, http://www.innoq.com
+ */
+package org.openmrs.module.soundex.encoder;
+
+import org.junit.Test;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertNull;
+import static org.junit.Assert.assertTrue;
+
+/**
+ * Test class for the caching soundex encoder.
+ */
+public class CachingSoundexEncoderTest {
+
+  @Test
+  public void testCachedCodes() {
+    CachingSoundexEncoder encoder = new CachingSoundexEncoder(100);
+    SoundexEncoder plain = new SoundexEncoder();
+
+    assertEquals(plain.encode("Banda"), encoder.encode("Banda"));
+    assertEquals(plain.encode("Banda"), encoder.encode("Banda"));
+    assertNull(encoder.encode("'"));
+    assertNull(encoder.encode("'"));
+    assertNull(encoder.encode(null));
+
+    assertEquals(2, encoder.getMissCount());
+    assertEquals(2, encoder.getHitCount());
+  }
+
+  @Test
+  public void testBoundedSize() {
+    CachingSoundexEncoder encoder = new CachingSoundexEncoder(32);
+    for (int i = 0; i < 1000; i++) {
+      encoder.encode("Name" + i);
+    }
+    assertTrue(encoder.size() <= 32);
+  }
+}
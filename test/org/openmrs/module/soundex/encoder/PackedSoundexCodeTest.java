@@ -0,0 +1,59 @@
+/**
+ * Copyright (C) 2011 innoQ Deutschland GmbH
+ *
+ * The contents of this file are subject to the OpenMRS Public License
+ * Version 1.0 (the "License"); you may not use this file except in
+ * compliance with the License. You may obtain a copy of the License at
+ * http://license.openmrs.org
+ *
+ * Software distributed under the License is distributed on an "AS IS"
+ * basis, WITHOUT WARRANTY OF ANY KIND, either express or implied. See the
+ * License for the specific language governing rights and limitations
+ * under the License.
+ *
+ * @author Arnd Kleinbeck, innoQ Deutschland GmbH, http://www.innoq.com
+ */
+package org.openmrs.module.soundex.encoder;
+
+import org.junit.Test;
+
+import static org.junit.Assert.assertArrayEquals;
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertNull;
+import static org.junit.Assert.assertTrue;
+
+/**
+ * Test class for packed soundex codes, see {@link SoundexEncoder#pack(String)}.
+ */
+public class PackedSoundexCodeTest {
+
+  @Test
+  public void testPackedCodes() {
+    SoundexEncoder encoder = new SoundexEncoder();
+
+    assertEquals("pack one character per byte", 0x5A353734, encoder.encodeToInt("DZANJALIMODZI"));
+    assertEquals("pack short codes left aligned", 0x4B000000, encoder.encodeToInt(new StringBuilder("KAEI")));
+    assertEquals("pack names without code as NO_CODE", SoundexEncoder.NO_CODE, encoder.encodeToInt("1234"));
+    assertEquals(SoundexEncoder.NO_CODE, encoder.encodeToInt(null));
+    assertEquals("998", SoundexEncoder.unpack(encoder.encodeToInt("CHICHEWA")));
+    assertNull(SoundexEncoder.unpack(SoundexEncoder.NO_CODE));
+    assertEquals(3, SoundexEncoder.codeLength(SoundexEncoder.pack("B53")));
+
+    int[] codes = new int[4];
+    encoder.encodeAll(new CharSequence[] {"Banda", "Bandawe", "-", "Phiri"}, codes);
+    assertArrayEquals(new int[] {SoundexEncoder.pack("B53"), SoundexEncoder.pack("B538"), SoundexEncoder.NO_CODE,
+            SoundexEncoder.pack("P4")}, codes);
+
+    assertTrue("packed codes order like strings", SoundexEncoder.pack("B5") < SoundexEncoder.pack("B53"));
+    assertTrue("packed codes order like strings", SoundexEncoder.pack("B599") < SoundexEncoder.pack("B6"));
+    assertTrue("prefixes are ranges", SoundexEncoder.startsWith(SoundexEncoder.pack("B538"), SoundexEncoder.pack("B5")));
+    assertTrue(SoundexEncoder.startsWith(SoundexEncoder.pack("B5"), SoundexEncoder.pack("B5")));
+    assertFalse(SoundexEncoder.startsWith(SoundexEncoder.pack("B6"), SoundexEncoder.pack("B5")));
+    assertFalse(SoundexEncoder.startsWith(SoundexEncoder.pack("B"), SoundexEncoder.pack("B5")));
+    assertFalse(SoundexEncoder.startsWith(SoundexEncoder.NO_CODE, SoundexEncoder.pack("B")));
+    assertFalse(SoundexEncoder.startsWith(SoundexEncoder.pack("B"), SoundexEncoder.NO_CODE));
+    assertEquals(SoundexEncoder.pack("B5"), SoundexEncoder.prefix(SoundexEncoder.pack("B538"), 2));
+    assertEquals(SoundexEncoder.pack("B538"), SoundexEncoder.prefix(SoundexEncoder.pack("B538"), 4));
+  }
+}
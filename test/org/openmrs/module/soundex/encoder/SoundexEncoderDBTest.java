@@ -29,9 +29,11 @@ import org.openmrs.api.AdministrationService;
 import org.openmrs.api.context.Context;
 import org.openmrs.module.soundex.SoundexRuntimePropertyAccess;
 import org.openmrs.module.soundex.advisor.PatientServiceAroundAdvisor;
+import org.openmrs.module.soundex.advisor.SoundexQuery;
 import org.openmrs.test.BaseContextSensitiveTest;
 import org.openmrs.test.TestUtil;
 
+import java.sql.SQLException;
 import java.util.ArrayList;
 import java.util.Arrays;
 import java.util.Collection;
@@ -395,29 +397,29 @@ public class SoundexEncoderDBTest extends BaseContextSensitiveTest {
    * Executes given Name Soundex search.
    * @param queryString the given name
    */
-  private void executeGivenNameSoundexQuery(String queryString) {
+  private void executeGivenNameSoundexQuery(String queryString) throws SQLException {
 
 //    System.out.println("searching for given name " + queryString);
     PatientServiceAroundAdvisor advisor = new PatientServiceAroundAdvisor();
-    final String sql = advisor.buildSoundexGivenNameQueryString(queryString, 100);
+    final SoundexQuery query = advisor.buildSoundexGivenNameQuery(queryString, 100);
 
-//    System.out.println("sql: " + sql);
+//    System.out.println("sql: " + query);
 
     final long start = System.currentTimeMillis();
 
-    final SQLQuery query = getCurrentSession().createSQLQuery(sql);
+    final List<Integer> patientIds = query.listPatientIds(getCurrentSession().connection());
 
     List<Patient> patients;
     if (true) {
       patients = new ArrayList<Patient>();
-      Iterator iterator = query.list().iterator();
+      Iterator iterator = patientIds.iterator();
       while (iterator.hasNext()) {
         int id = (Integer)iterator.next();
         final Patient patient = Context.getPatientService().getPatient(id);
         patients.add(patient);
       }
     } else {
-      patients = Context.getPatientSetService().getPatients(query.list());
+      patients = Context.getPatientSetService().getPatients(patientIds);
     }
 
     final long end = System.currentTimeMillis();
@@ -449,16 +451,15 @@ public class SoundexEncoderDBTest extends BaseContextSensitiveTest {
    * Execute family name soundex query.
    * @param queryString the family name
    */
-  private void executeFamilyNameSoundexQuery(String queryString) {
+  private void executeFamilyNameSoundexQuery(String queryString) throws SQLException {
     System.out.println("searching for family name " + queryString);
 
     PatientServiceAroundAdvisor advisor = new PatientServiceAroundAdvisor();
-    final String sql = advisor.buildSoundexFamilyNameQueryString(queryString, 1000);
+    final SoundexQuery query = advisor.buildSoundexFamilyNameQuery(queryString, 1000);
 
-    System.out.println("sql: " + sql);
+    System.out.println("sql: " + query);
 
-    final SQLQuery query = getCurrentSession().createSQLQuery(sql);
-    final List<Patient> patients = Context.getPatientSetService().getPatients(query.list());
+    final List<Patient> patients = Context.getPatientSetService().getPatients(query.listPatientIds(getCurrentSession().connection()));
 
     System.out.println("found " + patients.size() + " results for name " + queryString);
   }
@@ -487,19 +488,19 @@ public class SoundexEncoderDBTest extends BaseContextSensitiveTest {
    * @param givenNameQueryString the given name
    * @param familyNameQueryString the family name
    */
-  private void executeGivenAndFamilyNameSoundexQuery(String givenNameQueryString, String familyNameQueryString) {
+  private void executeGivenAndFamilyNameSoundexQuery(String givenNameQueryString, String familyNameQueryString) throws SQLException {
     System.out.println("searching for name " + givenNameQueryString + " " + familyNameQueryString);
 
     final long start = System.currentTimeMillis();
 
     PatientServiceAroundAdvisor advisor = new PatientServiceAroundAdvisor();
-    final String sql = advisor.buildSoundexGivenAndFamilyNameQueryString(givenNameQueryString, familyNameQueryString, 5000);
+    final SoundexQuery query = advisor.buildSoundexGivenAndFamilyNameQuery(givenNameQueryString, familyNameQueryString, 5000);
 
-//    System.out.println("sql: " + sql);
+//    System.out.println("sql: " + query);
 
     List<Patient> individuallyConvertedPatients = new ArrayList<Patient>();
-    final SQLQuery query = getCurrentSession().createSQLQuery(sql);
-    final Iterator iterator = query.list().iterator();
+    final List<Integer> patientIds = query.listPatientIds(getCurrentSession().connection());
+    final Iterator iterator = patientIds.iterator();
 
     int counter = 0;
     while (iterator.hasNext()) {
@@ -513,7 +514,7 @@ public class SoundexEncoderDBTest extends BaseContextSensitiveTest {
 
     final long individual = System.currentTimeMillis();
 
-    List<Patient> batchConvertedPatients = Context.getPatientSetService().getPatients(query.list());
+    List<Patient> batchConvertedPatients = Context.getPatientSetService().getPatients(patientIds);
 
     final long end = System.currentTimeMillis();
 
@@ -0,0 +1,129 @@
+/**
+ * Copyright (C) 2011 innoQ Deutschland GmbH
+ *
+ * The contents of this file are subject to the OpenMRS Public License
+ * Version 1.0 (the "License"); you may not use this file except in
+ * compliance with the License. You may obtain a copy of the License at
+ * http://license.openmrs.org
+ *
+ * Software distributed under the License is distributed on an "AS IS"
+ * basis, WITHOUT WARRANTY OF ANY KIND, either express or implied. See the
+ * License for the specific language governing rights and limitations
+ * under the License.
+ *
+ * @author Arnd Kleinbeck, innoQ Deutschland GmbH, http://www.innoq.com
+ */
+package org.openmrs.module.soundex.encoder;
+
+import org.junit.Test;
+
+import java.util.Random;
+
+import static org.junit.Assert.assertEquals;
+
+/**
+ * Makes sure that the single pass SoundexEncoder produces exactly the codes of the original
+ * rule chain based on regular expressions.
+ */
+public class SoundexEncoderRegressionTest {
+
+  /** letters that take part in the special rules are over-represented. */
+  private static final String ALPHABET = "AARRGGTTHHYYCCWWMMNNDDEIOUKSZLBFJPQVX aeiourgthycwmnd'-,1\u00e4\u00df\u0131";
+
+  private static final String[] NAMES = {
+    "Banda", "John", "James", "Joseph", "Peter", "Moses", "Charles", "George", "Petro", "Yohane", "Test",
+    "Frank", "Manuel", "Donda", "Steven", "Elias", "Alfred", "Patrick", "Phiri", "Paul", "Mary", "Magret",
+    "Margret", "Agness", "Grace", "Rose", "Patricia", "Catherine", "Mercy", "Maria", "Christina", "Eliza",
+    "Malita", "Lucy", "Alice", "Ruth", "Chrissy", "Esnart", "Mishek", "Waters", "Thiery", "Wanda", "Alina",
+    "Mndala", "Ndhlovu", "Dzanjalimodzi", "Mzimba", "Ngombe", "Chichewa", "Thyolo", "Mwale", "Kachitchi",
+    "Mnd", "MNDZ", "Nkhata", "Mbewe", "O'Neill", "van der Merwe", "Bwaiwla", "Wawa", "artarg", "ARARG"
+  };
+
+  @Test
+  public void testNames() {
+    SoundexEncoder encoder = new SoundexEncoder();
+    for (String name : NAMES) {
+      assertEquals(name, encodeWithRegularExpressions(name), encoder.encode(name));
+    }
+  }
+
+  @Test
+  public void testRandomStrings() {
+    SoundexEncoder encoder = new SoundexEncoder();
+    Random random = new Random(4711);
+    for (int i = 0; i < 200000; i++) {
+      StringBuilder sb = new StringBuilder();
+      int length = random.nextInt(12);
+      for (int j = 0; j < length; j++) {
+        sb.append(ALPHABET.charAt(random.nextInt(ALPHABET.length())));
+      }
+      String str = sb.toString();
+      assertEquals(str, encodeWithRegularExpressions(str), encoder.encode(str));
+    }
+  }
+
+  /**
+   * The original implementation of SoundexEncoder.encode(String).
+   * @param str the string to encode
+   * @return the soundex code
+   */
+  private static String encodeWithRegularExpressions(String str) {
+
+    if (str == null || str.equals(""))
+      return null;
+
+    str = str.toUpperCase();
+    str = str.replaceAll("[^A-Z]", "");
+
+    if (str == null || str.equals(""))
+      return null;
+
+    str = str.replaceAll("^M([BDFGJKLMNPQRSTVXZ])", "$1");
+    str = str.replaceAll("^N([BCDFGJKLMNPQRSTVXZ])", "$1");
+    str = str.replaceAll("^D([BCDFGJKLMNPQRSTVXZ])", "$1");
+
+    str = str.replaceAll("ARG", "AG");
+    str = str.replaceAll("ART", "AT");
+
+    str = str.replaceAll("(THY|CH|TCH)", "9");
+
+    String initial = String.valueOf(str.charAt(0));
+    String tail = str.substring(1, str.length());
+
+    initial = initial.replaceAll("[AEI]", "E");
+    initial = initial.replaceAll("[CK]", "K");
+    initial = initial.replaceAll("[JY]", "Y");
+    initial = initial.replaceAll("[VF]", "F");
+    initial = initial.replaceAll("[LR]", "R");
+    initial = initial.replaceAll("[MN]", "N");
+    initial = initial.replaceAll("[SZ]", "Z");
+
+    tail = tail.replaceAll("W[AEIOUHY]", "8");
+
+    tail = tail.replaceAll("[AEIOUHWY]", "0");
+    tail = tail.replaceAll("[BFPV]", "1");
+    tail = tail.replaceAll("[CGKQX]", "2");
+    tail = tail.replaceAll("[DT]", "3");
+    tail = tail.replaceAll("[LR]", "4");
+    tail = tail.replaceAll("[MN]", "5");
+    tail = tail.replaceAll("[SZ]", "6");
+    tail = tail.replaceAll("[J]", "7");
+
+    tail = tail.replaceAll("1+", "1");
+    tail = tail.replaceAll("2+", "2");
+    tail = tail.replaceAll("3+", "3");
+    tail = tail.replaceAll("4+", "4");
+    tail = tail.replaceAll("5+", "5");
+    tail = tail.replaceAll("6+", "6");
+    tail = tail.replaceAll("7+", "7");
+    tail = tail.replaceAll("8+", "8");
+    tail = tail.replaceAll("9+", "9");
+
+    tail = tail.replaceAll("0", "");
+
+    if (tail.length() < 3)
+      return initial + tail;
+    else
+      return initial + tail.substring(0, 3);
+  }
+}
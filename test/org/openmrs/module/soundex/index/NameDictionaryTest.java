@@ -0,0 +1,79 @@
+/**
+ * Copyright (C) 2011 innoQ Deutschland GmbH
+ *
+ * The contents of this file are subject to the OpenMRS Public License
+ * Version 1.0 (the "License"); you may not use this file except in
+ * compliance with the License. You may obtain a copy of the License at
+ * http://license.openmrs.org
+ *
+ * Software distributed under the License is distributed on an "AS IS"
+ * basis, WITHOUT WARRANTY OF ANY KIND, either express or implied. See the
+ * License for the specific language governing rights and limitations
+ * under the License.
+ *
+ * @author Arnd Kleinbeck, innoQ Deutschland GmbH, http://www.innoq.com
+ */
+package org.openmrs.module.soundex.index;
+
+import org.junit.Test;
+import org.openmrs.module.soundex.encoder.SoundexEncoder;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertNull;
+import static org.junit.Assert.assertSame;
+import static org.junit.Assert.assertTrue;
+
+/**
+ * Test class for the dictionary of name spellings.
+ */
+public class NameDictionaryTest {
+
+  @Test
+  public void testSpellings() {
+    final NameDictionary dictionary = new NameDictionary();
+    final String banda = new String("Banda");
+    assertSame(banda, dictionary.intern(banda));
+    assertSame(banda, dictionary.intern(new String("Banda")));
+    assertEquals(dictionary.getId("Banda"), dictionary.getId(new String("Banda")));
+    assertTrue(dictionary.getId("Banda") != dictionary.getId("BANDA"));
+    assertEquals(-1, dictionary.getId(null));
+    assertNull(dictionary.intern((String) null));
+    assertEquals(2, dictionary.size());
+  }
+
+  @Test
+  public void testCodes() {
+    final int[] encoded = new int[1];
+    final NameDictionary dictionary = new NameDictionary(new SoundexEncoder() {
+      @Override
+      public String encode(String str) {
+        encoded[0]++;
+        return super.encode(str);
+      }
+    });
+    for (int i = 0; i < 3; i++) {
+      assertEquals(new SoundexEncoder().encode("Banda"), dictionary.getCode(new String("Banda")));
+    }
+    assertEquals(new SoundexEncoder().encode("Mary"), dictionary.getCode("Mary"));
+    assertEquals(2, encoded[0]);
+    assertNull(dictionary.getCode(null));
+  }
+
+  @Test(expected = IllegalStateException.class)
+  public void testCodesWithoutEncoder() {
+    new NameDictionary().getCode("Banda");
+  }
+
+  @Test
+  public void testIndexSharesSpellings() {
+    final SoundexEncoder encoder = new SoundexEncoder();
+    final SoundexIndex index = new SoundexIndex.Builder()
+            .add(new NameEntry(1, 10, new String("Mary"), new String("Banda"), null, encoder.encode("Mary"), encoder.encode("Banda"), null))
+            .add(new NameEntry(2, 11, new String("Mary"), new String("Banda"), null, encoder.encode("Mary"), encoder.encode("Banda"), null))
+            .build();
+    assertSame(index.getNames(10)[0].getFamilyName(), index.getNames(11)[0].getFamilyName());
+    index.updatePatient(12, new NameEntry[] { new NameEntry(3, 12, new String("Mary"), new String("Phiri"), null,
+            encoder.encode("Mary"), encoder.encode("Phiri"), null) });
+    assertSame(index.getNames(10)[0].getGivenName(), index.getNames(12)[0].getGivenName());
+  }
+}
@@ -0,0 +1,70 @@
+/**
+ * Copyright (C) 2011 innoQ Deutschland GmbH
+ *
+ * The contents of this file are subject to the OpenMRS Public License
+ * Version 1.0 (the "License"); you may not use this file except in
+ * compliance with the License. You may obtain a copy of the License at
+ * http://license.openmrs.org
+ *
+ * Software distributed under the License is distributed on an "AS IS"
+ * basis, WITHOUT WARRANTY OF ANY KIND, either express or implied. See the
+ * License for the specific language governing rights and limitations
+ * under the License.
+ *
+ * @author Arnd Kleinbeck, innoQ Deutschland GmbH, http://www.innoq.com
+ */
+package org.openmrs.module.soundex.index;
+
+import org.junit.Test;
+
+import static org.junit.Assert.assertArrayEquals;
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertTrue;
+
+/**
+ * Test class for the compressed patient id sets of the soundex index.
+ */
+public class PatientBitmapTest {
+
+  @Test
+  public void testSparseSets() {
+    final PatientBitmap a = PatientBitmap.of(new int[] {1, 5, 70000, 70001, 200000});
+    final PatientBitmap b = PatientBitmap.of(new int[] {5, 6, 70001, 300000});
+    assertArrayEquals(new int[] {5, 70001}, a.and(b).toArray());
+    assertArrayEquals(new int[] {1, 5, 6, 70000, 70001, 200000, 300000}, a.or(b).toArray());
+    assertTrue(a.contains(70000));
+    assertFalse(a.contains(70002));
+    assertFalse(a.contains(-1));
+    assertEquals(0, a.and(PatientBitmap.of(new int[] {2, 300000})).getCardinality());
+    assertArrayEquals(a.toArray(), a.or(PatientBitmap.EMPTY).toArray());
+  }
+
+  @Test
+  public void testDenseSets() {
+    // even ids of the first two chunks and every third id of the first chunk, dense and sparse chunks mixed
+    final PatientBitmap even = PatientBitmap.of(range(0, 131072, 2));
+    final PatientBitmap third = PatientBitmap.of(range(0, 65536, 3));
+    final PatientBitmap sparse = PatientBitmap.of(range(65530, 65550, 1));
+
+    assertEquals(65536, even.getCardinality());
+    assertArrayEquals(range(0, 65536, 6), even.and(third).toArray());
+    assertArrayEquals(new int[] {65530, 65532, 65534, 65536, 65538, 65540, 65542, 65544, 65546, 65548}, even.and(sparse).toArray());
+    assertArrayEquals(new int[] {65532, 65535}, sparse.and(third).toArray());
+
+    final PatientBitmap union = even.or(third);
+    assertEquals(32768 + 21846 - 10923 + 32768, union.getCardinality());
+    assertTrue(union.contains(9));
+    assertFalse(union.contains(65537));
+    assertEquals(even.getCardinality() + 10, even.or(sparse).getCardinality());
+    assertArrayEquals(even.or(sparse).toArray(), sparse.or(even).toArray());
+  }
+
+  private static int[] range(int from, int to, int step) {
+    final int[] ids = new int[(to - from + step - 1) / step];
+    for (int i = 0; i < ids.length; i++) {
+      ids[i] = from + i * step;
+    }
+    return ids;
+  }
+}
@@ -0,0 +1,58 @@
+/**
+ * Copyright (C) 2011 innoQ Deutschland GmbH
+ *
+ * The contents of this file are subject to the OpenMRS Public License
+ * Version 1.0 (the "License"); you may not use this file except in
+ * compliance with the License. You may obtain a copy of the License at
+ * http://license.openmrs.org
+ *
+ * Software distributed under the License is distributed on an "AS IS"
+ * basis, WITHOUT WARRANTY OF ANY KIND, either express or implied. See the
+ * License for the specific language governing rights and limitations
+ * under the License.
+ *
+ * @author Arnd Kleinbeck, innoQ Deutschland GmbH, http://www.innoq.com
+ */
+package org.openmrs.module.soundex.index;
+
+import org.junit.Test;
+
+import java.util.Arrays;
+import java.util.Collections;
+
+import static org.junit.Assert.assertEquals;
+
+/**
+ * Test class for the neighbour lookup of the soundex code dictionary.
+ */
+public class SoundexCodeDictionaryTest {
+
+  @Test
+  public void testDistance() {
+    assertEquals(0, SoundexCodeDictionary.distance("B53", "B53"));
+    assertEquals(1, SoundexCodeDictionary.distance("B53", "P53"));
+    assertEquals(1, SoundexCodeDictionary.distance("B53", "B532"));
+    assertEquals(2, SoundexCodeDictionary.distance("B532", "B35"));
+    assertEquals(4, SoundexCodeDictionary.distance("", "M624"));
+  }
+
+  @Test
+  public void testFindNeighbours() {
+    final SoundexCodeDictionary dictionary = new SoundexCodeDictionary();
+    for (String code : new String[] {"B53", "B532", "P6", "M4", "M6", "M63", null, "", "B53"}) {
+      dictionary.add(code);
+    }
+    // distinct codes and their prefixes: B, B5, B53, B532, P, P6, M, M4, M6, M63
+    assertEquals(10, dictionary.size());
+
+    // a mistyped first letter
+    assertEquals(Arrays.asList("B53"), dictionary.findNeighbours("P53", 1, 10));
+    // codes starting with the query code are found by the prefix search, codes starting with a nearer one as well
+    assertEquals(Arrays.asList("B", "P"), dictionary.findNeighbours("M", 1, 10));
+    assertEquals(Arrays.asList("B5"), dictionary.findNeighbours("B52", 1, 10));
+    assertEquals(Arrays.asList("B5", "M4", "M6", "P6"), dictionary.findNeighbours("M5", 2, 10));
+    assertEquals(Arrays.asList("B5"), dictionary.findNeighbours("M5", 1, 1));
+    assertEquals(Collections.<String>emptyList(), dictionary.findNeighbours("Z111", 1, 10));
+    assertEquals(Collections.<String>emptyList(), dictionary.findNeighbours(null, 1, 10));
+  }
+}
@@ -0,0 +1,103 @@
+/**
+ * Copyright (C) 2011 innoQ Deutschland GmbH
+ *
+ * The contents of this file are subject to the OpenMRS Public License
+ * Version 1.0 (the "License"); you may not use this file except in
+ * compliance with the License. You may obtain a copy of the License at
+ * http://license.openmrs.org
+ *
+ * Software distributed under the License is distributed on an "AS IS"
+ * basis, WITHOUT WARRANTY OF ANY KIND, either express or implied. See the
+ * License for the specific language governing rights and limitations
+ * under the License.
+ *
+ * @author Arnd Kleinbeck, innoQ Deutschland GmbH, http://www.innoq.com
+ */
+package org.openmrs.module.soundex.index;
+
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+import org.openmrs.module.soundex.encoder.SoundexEncoder;
+
+import java.io.File;
+import java.io.IOException;
+import java.io.RandomAccessFile;
+import java.util.Arrays;
+
+import static org.junit.Assert.assertArrayEquals;
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertNull;
+import static org.junit.Assert.fail;
+
+/**
+ * Test class for writing and reading snapshots of the soundex index.
+ */
+public class SoundexIndexSnapshotTest {
+
+  private final SoundexEncoder encoder = new SoundexEncoder();
+
+  private File file;
+
+  @Before
+  public void setUp() throws IOException {
+    file = File.createTempFile("soundex-index", ".snapshot");
+    file.delete();
+  }
+
+  @After
+  public void tearDown() {
+    file.delete();
+  }
+
+  @Test
+  public void testWriteAndRead() throws IOException {
+    final SoundexIndexSnapshot snapshot = new SoundexIndexSnapshot(file);
+    assertNull(snapshot.read());
+
+    final SoundexIndex index = new SoundexIndex.Builder()
+            .add(name(1, 10, "Mary", "Banda", null))
+            .add(name(2, 11, "Maria", "Phiri", "Banda"))
+            .add(name(3, 11, "Zo\u00eb", "Mwale", null))
+            .add(name(4, 12, "'", "Banda", null))
+            .build();
+    snapshot.write(index, new SoundexIndexSnapshot.Watermark(4, 1234567L));
+
+    final SoundexIndexSnapshot.Contents contents = snapshot.read();
+    assertEquals(4, contents.getWatermark().getMaxPersonNameId());
+    assertEquals(1234567L, contents.getWatermark().getChangedSince());
+    final SoundexIndex restored = contents.getIndex();
+    assertEquals(4, restored.getNameCount());
+    assertArrayEquals(new int[] {10, 11, 12}, restored.findFamilyNamePatientIds(encoder.encode("Banda")));
+    assertEquals(Arrays.asList(11), restored.findGivenName("Zo\u00eb", encoder.encode("Zo\u00eb"), 10));
+    assertEquals("Zo\u00eb", restored.getNames(11)[1].getGivenName());
+    assertNull(restored.getNames(12)[0].getGivenNameCode());
+    assertNull(restored.getNames(10)[0].getFamilyName2());
+  }
+
+  @Test
+  public void testTruncatedSnapshot() throws IOException {
+    final SoundexIndexSnapshot snapshot = new SoundexIndexSnapshot(file);
+    snapshot.write(new SoundexIndex.Builder().add(name(1, 10, "Mary", "Banda", null)).build(),
+            new SoundexIndexSnapshot.Watermark(1, 0));
+    final RandomAccessFile output = new RandomAccessFile(file, "rw");
+    try {
+      output.setLength(output.length() - 6);
+    } finally {
+      output.close();
+    }
+    try {
+      snapshot.read();
+      fail("truncated snapshot read");
+    } catch (IOException e) {
+      // expected
+    }
+    snapshot.delete();
+    assertNull(snapshot.read());
+  }
+
+  private NameEntry name(int personNameId, int patientId, String givenName, String familyName, String familyName2) {
+    return new NameEntry(personNameId, patientId, givenName, familyName, familyName2,
+            encoder.encode(givenName), encoder.encode(familyName), encoder.encode(familyName2));
+  }
+}
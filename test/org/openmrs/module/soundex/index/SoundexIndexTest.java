@@ -0,0 +1,181 @@
+/**
+ * Copyright (C) 2011 innoQ Deutschland GmbH
+ *
+ * The contents of this file are subject to the OpenMRS Public License
+ * Version 1.0 (the "License"); you may not use this file except in
+ * compliance with the License. You may obtain a copy of the License at
+ * http://license.openmrs.org
+ *
+ * Software distributed under the License is distributed on an "AS IS"
+ * basis, WITHOUT WARRANTY OF ANY KIND, either express or implied. See the
+ * License for the specific language governing rights and limitations
+ * under the License.
+ *
+ * @author Arnd Kleinbeck, innoQ Deutschland GmbH, http://www.innoq.com
+ */
+package org.openmrs.module.soundex.index;
+
+import org.junit.Before;
+import org.junit.Test;
+import org.openmrs.module.soundex.encoder.SoundexEncoder;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+
+import static org.junit.Assert.assertArrayEquals;
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertTrue;
+
+/**
+ * Test class for lookups and ranking of the in-memory soundex index.
+ */
+public class SoundexIndexTest {
+
+  private final SoundexEncoder encoder = new SoundexEncoder();
+
+  private SoundexIndex index;
+
+  private int nextPersonNameId = 1;
+
+  @Before
+  public void setUp() {
+    SoundexIndex.Builder builder = new SoundexIndex.Builder();
+    builder.add(name(10, "Mary", "Banda", null));
+    builder.add(name(11, "Maria", "Phiri", "Banda"));
+    builder.add(name(12, "Marita", "Bandawe", null));
+    builder.add(name(13, "John", "Banda", null));
+    builder.add(name(14, "Mercy", "Mwale", null));
+    builder.add(name(14, "Mercy", "Banda", null));
+    builder.add(name(15, "'", "Banda", null));
+    index = builder.build();
+  }
+
+  @Test
+  public void testPrefixLookup() {
+    assertArrayEquals(new int[] {10, 11, 12, 13, 14, 15}, index.findFamilyNamePatientIds(encoder.encode("Banda")));
+    assertArrayEquals(new int[] {10, 11, 12, 14}, index.findGivenNamePatientIds("N"));
+    assertArrayEquals(new int[] {13}, index.findGivenNamePatientIds(encoder.encode("John")));
+    assertArrayEquals(new int[0], index.findGivenNamePatientIds("Q"));
+    assertArrayEquals(new int[0], index.findGivenNamePatientIds(null));
+    assertEquals(0, index.getNames(99).length);
+    assertEquals(2, index.getNames(14).length);
+  }
+
+  @Test
+  public void testGivenNameRanking() {
+    // names containing the search string first, then shorter codes, then alphabetically
+    assertEquals(Arrays.asList(11, 10, 12, 14), index.findGivenName("Mar", encoder.encode("Mary"), 10));
+    assertEquals(Arrays.asList(12), index.findGivenName("Marita", encoder.encode("Marita"), 10));
+    assertEquals(Arrays.asList(11, 10), index.findGivenName("Mar", encoder.encode("Mary"), 2));
+  }
+
+  @Test
+  public void testFamilyNameRanking() {
+    // patients are ranked by their best name, second family names match as well
+    assertEquals(Arrays.asList(15, 13, 10, 14, 12, 11), index.findFamilyName("Banda", encoder.encode("Banda"), 10));
+  }
+
+  @Test
+  public void testGivenAndFamilyNameRanking() {
+    assertEquals(Arrays.asList(10, 11, 12, 14),
+            index.findGivenAndFamilyName("Mar", "Banda", encoder.encode("Mar"), encoder.encode("Banda"), 10));
+    assertTrue(index.findGivenAndFamilyName("John", "Phiri", encoder.encode("John"), encoder.encode("Phiri"), 10).isEmpty());
+  }
+
+  @Test
+  public void testAllNamesRanking() {
+    // every name has to match, then entries matching all names literally first, then by family name
+    assertEquals(Arrays.asList(10, 12, 11, 14), index.findAllNames(new String[] {"Banda", "Mar", "M"},
+            new String[] {encoder.encode("Banda"), encoder.encode("Mar"), encoder.encode("M")}, 10));
+    assertEquals(Arrays.asList(11), index.findAllNames(new String[] {"Mar", "Banda", "Phiri"},
+            new String[] {encoder.encode("Mar"), encoder.encode("Banda"), encoder.encode("Phiri")}, 10));
+    assertTrue(index.findAllNames(new String[] {"Mar", "Banda", "John"},
+            new String[] {encoder.encode("Mar"), encoder.encode("Banda"), encoder.encode("John")}, 10).isEmpty());
+  }
+
+  @Test
+  public void testRankNameRows() {
+    // candidate rows read from the database, in any order and with names not matching the ranking
+    final List<NameEntry> rows = new ArrayList<NameEntry>();
+    for (int patientId = 15; patientId >= 10; patientId--) {
+      rows.addAll(Arrays.asList(index.getNames(patientId)));
+    }
+    rows.add(name(16, "Grace", "Mwale", null));
+    assertEquals(index.findFamilyName("Banda", encoder.encode("Banda"), 10),
+            SoundexRanking.familyName("Banda", encoder.encode("Banda")).rank(rows, 10));
+    assertEquals(Arrays.asList(15, 13, 10), SoundexRanking.familyName("Banda", encoder.encode("Banda")).rank(rows, 3));
+    assertEquals(Arrays.asList(11, 10), SoundexRanking.givenName("Mar", encoder.encode("Mary")).rank(rows, 2));
+    assertEquals(index.findGivenAndFamilyName("Mar", "Banda", encoder.encode("Mar"), encoder.encode("Banda"), 10),
+            SoundexRanking.givenAndFamilyName("Mar", "Banda", encoder.encode("Mar"), encoder.encode("Banda")).rank(rows, 10));
+    assertTrue(SoundexRanking.givenName("Mar", encoder.encode("Mary")).rank(rows, 0).isEmpty());
+  }
+
+  @Test
+  public void testIntersect() {
+    final int[] large = new int[1000];
+    for (int i = 0; i < large.length; i++) {
+      large[i] = 2 * i;
+    }
+    // merge intersection of sets of similar size, galloping through the larger set otherwise
+    assertArrayEquals(new int[] {4, 8}, IntArrays.intersect(new int[] {1, 4, 7, 8}, new int[] {2, 4, 8, 9}));
+    assertArrayEquals(new int[] {0, 998, 1998}, IntArrays.intersect(large, new int[] {0, 3, 998, 999, 1998, 2001}));
+    assertArrayEquals(new int[] {0, 998, 1998}, IntArrays.intersect(new int[] {-1, 0, 3, 998, 999, 1998, 2001}, large));
+    assertArrayEquals(new int[0], IntArrays.intersect(new int[0], large));
+    assertArrayEquals(new int[] {998}, IntArrays.intersectAll(new int[][] { large, {998, 1998}, {5, 998} }));
+    assertArrayEquals(new int[0], IntArrays.intersectAll(new int[][] { large, {1, 3}, {998} }));
+    assertArrayEquals(new int[0], IntArrays.intersectAll(new int[0][]));
+  }
+
+  @Test
+  public void testUpdatePatient() {
+    // rename, the old codes no longer find the patient
+    index.updatePatient(13, new NameEntry[] { name(13, "John", "Phiri", null) });
+    assertArrayEquals(new int[] {10, 11, 12, 14, 15}, index.findFamilyNamePatientIds(encoder.encode("Banda")));
+    assertArrayEquals(new int[] {11, 13}, index.findFamilyNamePatientIds(encoder.encode("Phiri")));
+
+    // new patient
+    index.updatePatient(9, new NameEntry[] { name(9, "Joseph", "Banda", null) });
+    assertArrayEquals(new int[] {9, 13}, index.findGivenNamePatientIds("Y"));
+    assertEquals(Arrays.asList(15, 9, 10, 14, 12, 11), index.findFamilyName("Banda", encoder.encode("Banda"), 10));
+
+    // voided name of a patient with two names
+    index.updatePatient(14, new NameEntry[] { name(14, "Mercy", "Mwale", null) });
+    assertArrayEquals(new int[] {9, 10, 11, 12, 15}, index.findFamilyNamePatientIds(encoder.encode("Banda")));
+
+    // cached bitmaps of code prefixes follow updates
+    assertArrayEquals(new int[] {9, 10, 11, 12, 15}, index.getFamilyNameBitmap("B").toArray());
+    index.updatePatient(12, new NameEntry[] { name(12, "Marita", "Mwale", null) });
+    assertArrayEquals(new int[] {9, 10, 11, 15}, index.getFamilyNameBitmap("B").toArray());
+
+    // voided patient
+    index.updatePatient(10, new NameEntry[0]);
+    assertEquals(0, index.getNames(10).length);
+    assertArrayEquals(new int[] {11, 12, 14}, index.findGivenNamePatientIds("N"));
+  }
+
+  @Test
+  public void testInstr() {
+    assertEquals(Integer.valueOf(2), SoundexRanking.instr("Abanda", "BAN"));
+    assertEquals(Integer.valueOf(0), SoundexRanking.instr("Phiri", "Banda"));
+    assertEquals(null, SoundexRanking.instr(null, "Banda"));
+    assertEquals(9999, SoundexRanking.instrKey("Phiri", "Banda"));
+    assertEquals(SoundexRanking.NULL_KEY, SoundexRanking.instrKey(null, "Banda"));
+    assertEquals(2, SoundexRanking.instrKey(SoundexEncoder.pack("B538"), SoundexEncoder.pack("53")));
+    assertEquals(9999, SoundexRanking.instrKey(SoundexEncoder.pack("B538"), SoundexEncoder.pack("B6")));
+    assertEquals(SoundexRanking.NULL_KEY, SoundexRanking.instrKey(SoundexEncoder.NO_CODE, SoundexEncoder.pack("B")));
+  }
+
+  @Test
+  public void testInvalidStoredCode() {
+    final NameEntry entry = new NameEntry(1, 20, "Mary", "Banda", null, "N4", "B5300", "B\u00e9");
+    assertEquals("N4", entry.getGivenNameCode());
+    assertEquals(SoundexEncoder.NO_CODE, entry.getPackedFamilyNameCode());
+    assertEquals(SoundexEncoder.NO_CODE, entry.getPackedFamilyName2Code());
+  }
+
+  private NameEntry name(int patientId, String givenName, String familyName, String familyName2) {
+    return new NameEntry(nextPersonNameId++, patientId, givenName, familyName, familyName2,
+            encoder.encode(givenName), encoder.encode(familyName), encoder.encode(familyName2));
+  }
+}
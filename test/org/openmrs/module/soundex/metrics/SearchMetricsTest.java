@@ -0,0 +1,97 @@
+/**
+ * Copyright (C) 2011 innoQ Deutschland GmbH
+ *
+ * The contents of this file are subject to the OpenMRS Public License
+ * Version 1.0 (the "License"); you may not use this file except in
+ * compliance with the License. You may obtain a copy of the License at
+ * http://license.openmrs.org
+ *
+ * Software distributed under the License is distributed on an "AS IS"
+ * basis, WITHOUT WARRANTY OF ANY KIND, either express or implied. See the
+ * License for the specific language governing rights and limitations
+ * under the License.
+ *
+ * @author Arnd Kleinbeck, innoQ Deutschland GmbH, http://www.innoq.com
+ */
+package org.openmrs.module.soundex.metrics;
+
+import org.junit.Test;
+
+import javax.management.MBeanServer;
+import javax.management.ObjectName;
+import java.lang.management.ManagementFactory;
+import java.sql.Connection;
+import java.util.Collections;
+import java.util.List;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertTrue;
+
+/**
+ * Test class for the latency histograms and the JMX view of the search metrics.
+ */
+public class SearchMetricsTest {
+
+  @Test
+  public void testBuckets() {
+    for (long value = 0; value < 100000; value++) {
+      final int bucket = LatencyHistogram.bucket(value);
+      assertTrue(value <= LatencyHistogram.upperBound(bucket));
+      assertTrue(bucket == 0 || value > LatencyHistogram.upperBound(bucket - 1));
+    }
+  }
+
+  @Test
+  public void testPercentiles() {
+    LatencyHistogram histogram = new LatencyHistogram();
+    assertEquals(0, histogram.getPercentile(0.5));
+    for (int i = 1; i <= 100; i++) {
+      histogram.record(i);
+    }
+    assertEquals(100, histogram.getCount());
+    assertEquals(50, histogram.getMean());
+    // reported as the upper bound of the bucket, within 25%
+    assertEquals(55, histogram.getPercentile(0.5));
+    assertEquals(95, histogram.getPercentile(0.95));
+    assertEquals(111, histogram.getPercentile(0.99));
+  }
+
+  @Test
+  public void testMBean() throws Exception {
+    SearchMetrics metrics = new SearchMetrics();
+    SearchTrace trace = new SearchTrace();
+    trace.setType(SearchType.SINGLE_NAME);
+    trace.endPhase(SearchPhase.SQL, System.nanoTime() - 2000000);
+    trace.addSqlRows(200);
+    trace.setReturnedRows(50);
+    trace.addStatement(new TracedStatement() {
+      public List<String> explain(Connection connection) {
+        return Collections.emptyList();
+      }
+    });
+    trace.finish();
+    metrics.record(trace);
+    metrics.recordReadOnlyConnection(3000000);
+
+    MBeanServer server = ManagementFactory.getPlatformMBeanServer();
+    ObjectName name = new ObjectName(SearchMetricsMBean.OBJECT_NAME);
+    new SearchMetricsMBean(metrics, null).register();
+    try {
+      assertEquals(1L, server.getAttribute(name, "SingleNameCount"));
+      assertEquals(200L, server.getAttribute(name, "SingleNameSqlRows"));
+      assertEquals(50L, server.getAttribute(name, "SingleNameReturnedRows"));
+      assertEquals(1L, server.getAttribute(name, "SingleNameStatements"));
+      assertEquals(1L, server.getAttribute(name, "ReadOnlyConnectionCount"));
+      assertTrue((Long) server.getAttribute(name, "ReadOnlyConnectionP99Micros") >= 3000);
+      assertTrue((Long) server.getAttribute(name, "SingleNameSqlP99Micros") >= 2000);
+      assertEquals(0L, server.getAttribute(name, "GivenAndFamilyNameCount"));
+      server.invoke(name, "reset", new Object[0], new String[0]);
+      assertEquals(0L, server.getAttribute(name, "SingleNameCount"));
+      assertEquals(0L, server.getAttribute(name, "ReadOnlyConnectionCount"));
+    } finally {
+      SearchMetricsMBean.unregister();
+    }
+    assertFalse(server.isRegistered(name));
+  }
+}
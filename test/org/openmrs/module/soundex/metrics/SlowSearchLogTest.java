@@ -0,0 +1,95 @@
+/**
+ * Copyright (C) 2011 innoQ Deutschland GmbH
+ *
+ * The contents of this file are subject to the OpenMRS Public License
+ * Version 1.0 (the "License"); you may not use this file except in
+ * compliance with the License. You may obtain a copy of the License at
+ * http://license.openmrs.org
+ *
+ * Software distributed under the License is distributed on an "AS IS"
+ * basis, WITHOUT WARRANTY OF ANY KIND, either express or implied. See the
+ * License for the specific language governing rights and limitations
+ * under the License.
+ *
+ * @author Arnd Kleinbeck, innoQ Deutschland GmbH, http://www.innoq.com
+ */
+package org.openmrs.module.soundex.metrics;
+
+import org.junit.Test;
+
+import java.sql.Connection;
+import java.sql.SQLException;
+import java.util.Arrays;
+import java.util.List;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertNull;
+import static org.junit.Assert.assertTrue;
+
+/**
+ * Test class for the bounded log of slow searches.
+ */
+public class SlowSearchLogTest {
+
+  @Test
+  public void testThreshold() {
+    SlowSearchLog log = new SlowSearchLog(1000, 2);
+    SearchTrace trace = new SearchTrace();
+    trace.finish();
+    assertFalse(log.isSlow(trace));
+    assertTrue(new SlowSearchLog(0, 2).isSlow(trace));
+  }
+
+  @Test
+  public void testRecordsAreBounded() {
+    SlowSearchLog log = new SlowSearchLog(0, 2);
+    log.record(trace("Mary"));
+    log.record(trace("Banda"));
+    log.record(trace("Alina"));
+    List<SlowSearchLog.Record> records = log.getRecords();
+    assertEquals(2, records.size());
+    assertEquals("Banda", records.get(0).getQuery());
+    assertEquals("Alina", records.get(1).getQuery());
+  }
+
+  @Test
+  public void testDump() {
+    SlowSearchLog log = new SlowSearchLog(0, 2);
+    SearchTrace trace = trace("Mary");
+    trace.addStatement(new TracedStatement() {
+      public List<String> explain(Connection connection) {
+        return Arrays.asList("table=person_name_code key=given_name_code_p3 rows=120");
+      }
+
+      @Override
+      public String toString() {
+        return "SELECT distinct patient.patient_id FROM person_name_code";
+      }
+    });
+    trace.addStatement(new TracedStatement() {
+      public List<String> explain(Connection connection) throws SQLException {
+        throw new SQLException("no connection");
+      }
+    });
+    log.record(trace);
+    assertNull("statements are explained when dumped", log.getRecords().get(0).getPlans());
+
+    String dump = log.dump(null);
+    assertTrue(dump.contains("SingleName 'Mary' codes [M6]"));
+    assertTrue(dump.contains("SQL: SELECT distinct patient.patient_id FROM person_name_code"));
+    assertTrue(dump.contains("key=given_name_code_p3"));
+    assertTrue(dump.contains("EXPLAIN failed: no connection"));
+
+    log.clear();
+    assertEquals("No slow soundex searches recorded.", log.dump());
+  }
+
+  private static SearchTrace trace(String query) {
+    SearchTrace trace = new SearchTrace();
+    trace.setType(SearchType.SINGLE_NAME);
+    trace.setQuery(query, new String[] {"M6"});
+    trace.finish();
+    return trace;
+  }
+}
@@ -0,0 +1,71 @@
+/**
+ * Copyright (C) 2011 innoQ Deutschland GmbH
+ *
+ * The contents of this file are subject to the OpenMRS Public License
+ * Version 1.0 (the "License"); you may not use this file except in
+ * compliance with the License. You may obtain a copy of the License at
+ * http://license.openmrs.org
+ *
+ * Software distributed under the License is distributed on an "AS IS"
+ * basis, WITHOUT WARRANTY OF ANY KIND, either express or implied. See the
+ * License for the specific language governing rights and limitations
+ * under the License.
+ *
+ * @author Arnd Kleinbeck, innoQ Deutschland GmbH, http://www.innoq.com
+ */
+package org.openmrs.module.soundex.warmup;
+
+import org.junit.After;
+import org.junit.Test;
+import org.openmrs.module.soundex.SoundexContext;
+import org.openmrs.module.soundex.index.SoundexIndex;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertTrue;
+
+/**
+ * Test class for the readiness reported by the warm-up.
+ */
+public class SoundexWarmUpTest {
+
+  @After
+  public void tearDown() {
+    SoundexContext.setIndex(null);
+    SoundexContext.setWarmUp(null);
+  }
+
+  @Test
+  public void testReadyAfterIndexLoaded() throws InterruptedException {
+    assertFalse(SoundexContext.isReady());
+    final SoundexWarmUp warmUp = new SoundexWarmUp(null, 0);
+    SoundexContext.setWarmUp(warmUp);
+    SoundexContext.startLoadingIndex();
+    final Thread thread = new Thread(warmUp);
+    thread.start();
+    thread.join(500);
+    assertTrue(thread.isAlive());
+    assertFalse(SoundexContext.isReady());
+
+    SoundexContext.setIndex(new SoundexIndex.Builder().build());
+    thread.join(5000);
+    assertTrue(SoundexContext.isReady());
+    assertEquals(0, warmUp.getSearchCount());
+    final long duration = warmUp.getDurationMillis();
+    assertTrue(duration >= 500);
+    Thread.sleep(10);
+    assertEquals(duration, warmUp.getDurationMillis());
+  }
+
+  @Test
+  public void testInterrupted() throws InterruptedException {
+    final SoundexWarmUp warmUp = new SoundexWarmUp(null, 0);
+    SoundexContext.startLoadingIndex();
+    final Thread thread = new Thread(warmUp);
+    thread.start();
+    thread.interrupt();
+    thread.join(5000);
+    assertFalse(thread.isAlive());
+    assertFalse(warmUp.isReady());
+  }
+}